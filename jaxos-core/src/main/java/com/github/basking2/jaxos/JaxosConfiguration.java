@@ -4,16 +4,26 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
 
 import com.github.basking2.jaxos.net.Protocol;
+import com.github.basking2.jaxos.net.ProtocolFactory;
 import com.github.basking2.jaxos.paxos.PaxosAcceptorDao;
 import com.github.basking2.jaxos.net.JaxosEnsemble;
 import com.github.basking2.jaxos.net.ProtocolUdp;
+import com.github.basking2.jaxos.net.ProtocolUdpMulticast;
+import com.github.basking2.jaxos.net.SelectorPool;
 import com.github.basking2.jaxos.paxos.Learner;
 import com.github.basking2.jaxos.paxos.PaxosProposerDao;
 import com.github.basking2.jaxos.net.ProtocolTcp;
 import com.github.basking2.jaxos.util.AppConfiguration;
+import com.github.basking2.jaxos.util.BufferPool;
+import com.github.basking2.jaxos.util.Compression;
+import com.github.basking2.jaxos.util.OrderedExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -22,10 +32,78 @@ import org.slf4j.LoggerFactory;
 public class JaxosConfiguration extends AppConfiguration {
     private static final Logger LOG = LoggerFactory.getLogger(JaxosConfiguration.class);
 
+    /**
+     * The selector threads shared by every protocol built from this configuration.
+     */
+    private SelectorPool selectorPool;
+
+    /**
+     * The buffers shared by every protocol built from this configuration.
+     */
+    private BufferPool bufferPool;
+
+    /**
+     * The threads handling messages for every ensemble, or null if messages are handled by selector threads.
+     */
+    private OrderedExecutor dispatcher;
+
+    /**
+     * Protocols of other schemes, by scheme, or null until they are loaded.
+     */
+    private Map<String, ProtocolFactory> protocolFactories;
+
     public JaxosConfiguration() {
         super("jaxos");
     }
 
+    /**
+     * Return the selector threads shared by all protocols, starting them if needed.
+     *
+     * There are {@code jaxos.io.threads} threads, by default one per processor.
+     *
+     * @return The shared selector pool.
+     * @throws IOException If a selector cannot be opened.
+     */
+    public synchronized SelectorPool getSelectorPool() throws IOException {
+        if (selectorPool == null) {
+            selectorPool = new SelectorPool(getInt(name+".io.threads", Runtime.getRuntime().availableProcessors()));
+        }
+
+        return selectorPool;
+    }
+
+    /**
+     * Return the buffers shared by all protocols, configured by {@code jaxos.buffers.*}.
+     *
+     * @return The shared buffer pool.
+     */
+    public synchronized BufferPool getBufferPool() {
+        if (bufferPool == null) {
+            bufferPool = BufferPool.fromConfiguration(this);
+        }
+
+        return bufferPool;
+    }
+
+    /**
+     * Return the threads that handle received messages for all ensembles, starting them if needed.
+     *
+     * There are {@code jaxos.dispatch.threads} threads, by default one per processor.
+     * If this is 0, messages are handled on the selector thread that received them.
+     *
+     * @return The shared dispatcher or null.
+     */
+    public synchronized OrderedExecutor getDispatcher() {
+        if (dispatcher == null) {
+            final int threads = getInt(name+".dispatch.threads", Runtime.getRuntime().availableProcessors());
+            if (threads > 0) {
+                dispatcher = new OrderedExecutor("jaxos-dispatch", threads);
+            }
+        }
+
+        return dispatcher;
+    }
+
     public List<JaxosEnsemble> buildEnsembles(
     		final PaxosProposerDao<ByteBuffer> proposerDao,
     		final PaxosAcceptorDao<ByteBuffer> acceptorDao,
@@ -57,11 +135,31 @@ public class JaxosConfiguration extends AppConfiguration {
     		final Learner.Listener<ByteBuffer> learner
     	) throws IOException {
     	final JaxosEnsemble ensemble = new JaxosEnsemble(proposerDao, acceptorDao, learner);
+    	ensemble.setDispatcher(getDispatcher());
+    	final String id = String.format("%s.ensemble.%s.id", name, ensembleName);
+    	if (containsKey(id)) {
+    		ensemble.setId(getLong(id));
+    	}
+    	ensemble.setCompression(
+    			Compression.of(getString(String.format("%s.ensemble.%s.compression", name, ensembleName), "none")),
+    			getInt(String.format("%s.ensemble.%s.compression.threshold", name, ensembleName), 1024));
+    	ensemble.setTransport(buildTransport(ensembleName));
+    	ensemble.setMulti(
+    			getBoolean(String.format("%s.ensemble.%s.multi", name, ensembleName), false),
+    			getLong(String.format("%s.ensemble.%s.multi.timeout", name, ensembleName), 5000L));
+    	ensemble.setWindow(getInt(String.format("%s.ensemble.%s.window", name, ensembleName), JaxosEnsemble.DEFAULT_WINDOW));
+    	ensemble.setLease(
+    			getLong(String.format("%s.ensemble.%s.lease", name, ensembleName), 0L),
+    			getLong(String.format("%s.ensemble.%s.lease.drift", name, ensembleName), 10L));
+    	ensemble.setBatching(
+    			getLong(String.format("%s.ensemble.%s.batch.target.micros", name, ensembleName), 0L),
+    			getInt(String.format("%s.ensemble.%s.batch.max", name, ensembleName), 1024));
     	
     	// Udp Acceptors, Learners and Bind.
     	final List<InetSocketAddress> udpAcceptors = protoAddresses(String.format("%s.ensemble.%s.acceptors", name, ensembleName), "udp");
     	final List<InetSocketAddress> udpLearners = protoAddresses(String.format("%s.ensemble.%s.learners", name, ensembleName), "udp");
     	final List<InetSocketAddress> udpBind = protoAddresses(String.format("%s.ensemble.%s.bind", name, ensembleName), "udp");
+    	final List<InetSocketAddress> udpGroup = protoAddresses(String.format("%s.ensemble.%s.acceptors.group", name, ensembleName), "udp");
 
     	// Tcp Acceptors, Learners and Bind.
     	final List<InetSocketAddress> tcpAcceptors = protoAddresses(String.format("%s.ensemble.%s.acceptors", name, ensembleName), "tcp");
@@ -69,26 +167,125 @@ public class JaxosConfiguration extends AppConfiguration {
     	final List<InetSocketAddress> tcpBind = protoAddresses(String.format("%s.ensemble.%s.bind", name, ensembleName), "tcp");
 
     	String.format("%s.ensemble.%s.quorum", name, ensembleName);
-    	String.format("%s.ensemble.%s.multi", name, ensembleName);
     	    	
     	// Build UDP Protocols
     	for (final InetSocketAddress bind : udpBind) {
     	    LOG.info("Binding udp to {}", bind);
-    		Protocol protocol = new ProtocolUdp(bind, this, udpAcceptors, udpLearners);
-    		ensemble.addProtocol(protocol);
+    		Protocol protocol = udpGroup.isEmpty()?
+    				new ProtocolUdp(bind, this, udpAcceptors, udpLearners, getSelectorPool(), getBufferPool()) :
+    				new ProtocolUdpMulticast(bind, this, udpAcceptors, udpLearners, udpGroup.get(0), getSelectorPool(), getBufferPool());
+    		addProtocol(ensemble, protocol);
     	}
 
 		// Build TCP Protocols
 		for (final InetSocketAddress bind : tcpBind) {
             LOG.info("Binding tcp to {}", bind);
-			Protocol protocol = new ProtocolTcp(bind, this, tcpAcceptors, tcpLearners);
-			ensemble.addProtocol(protocol);
+			Protocol protocol = new ProtocolTcp(bind, this, tcpAcceptors, tcpLearners, getSelectorPool(), getBufferPool());
+			addProtocol(ensemble, protocol);
+		}
+
+		// Build Protocols of the schemes added by ProtocolFactory services.
+		for (final ProtocolFactory factory : getProtocolFactories().values()) {
+			final String scheme = factory.getScheme();
+			for (final InetSocketAddress bind : protoAddresses(String.format("%s.ensemble.%s.bind", name, ensembleName), scheme)) {
+				LOG.info("Binding {} to {}", scheme, bind);
+				addProtocol(ensemble, factory.build(
+						bind,
+						this,
+						protoAddresses(String.format("%s.ensemble.%s.acceptors", name, ensembleName), scheme),
+						protoAddresses(String.format("%s.ensemble.%s.learners", name, ensembleName), scheme),
+						getSelectorPool(),
+						getBufferPool()));
+			}
 		}
 
     	return ensemble;
     }
     
     
+    /**
+     * Add a protocol, closing the ensemble and the protocol if the ensemble refuses it.
+     *
+     * @throws IOException If the ensemble refuses the protocol, such as for listing a peer under two ports.
+     */
+    private static void addProtocol(final JaxosEnsemble ensemble, final Protocol protocol) throws IOException {
+        try {
+            ensemble.addProtocol(protocol);
+        } catch (final IllegalArgumentException e) {
+            try {
+                protocol.close();
+                ensemble.close();
+            } catch (final Exception closing) {
+                LOG.warn("Closing a refused ensemble failed. {}", closing.getMessage());
+            }
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Return the {@link ProtocolFactory} services on the class path by their scheme, loading them if needed.
+     *
+     * Factories for the built in {@code udp} and {@code tcp} schemes are ignored.
+     *
+     * @return The factories.
+     */
+    public synchronized Map<String, ProtocolFactory> getProtocolFactories() {
+        if (protocolFactories == null) {
+            protocolFactories = new LinkedHashMap<String, ProtocolFactory>();
+            for (final ProtocolFactory factory : ServiceLoader.load(ProtocolFactory.class)) {
+                final String scheme = factory.getScheme();
+                if ("udp".equals(scheme) || "tcp".equals(scheme) || protocolFactories.containsKey(scheme)) {
+                    LOG.warn("Ignoring {} for scheme {}, which is already provided.", factory.getClass().getName(), scheme);
+                } else {
+                    protocolFactories.put(scheme, factory);
+                }
+            }
+        }
+
+        return protocolFactories;
+    }
+
+    /**
+     * Build how an ensemble sends to peers reached by more than one protocol, from
+     * {@code jaxos.ensemble.<name>.transport}, which is {@code size} or {@code all}.
+     *
+     * @param ensembleName The ensemble.
+     * @return The transport.
+     * @throws IllegalArgumentException If the transport is unknown.
+     */
+    public JaxosEnsemble.Transport buildTransport(final String ensembleName) {
+        final String prefix = String.format("%s.ensemble.%s.transport", name, ensembleName);
+        final String transport = getString(prefix, "size").trim();
+
+        if ("all".equalsIgnoreCase(transport)) {
+            return JaxosEnsemble.ALL_PROTOCOLS;
+        }
+
+        if (!"size".equalsIgnoreCase(transport)) {
+            throw new IllegalArgumentException("Unknown transport " + transport + " for ensemble " + ensembleName);
+        }
+
+        return new JaxosEnsemble.SizeTransport(
+                getInt(prefix + ".threshold", 1024),
+                schemes(prefix + ".small", "udp", "tcp"),
+                schemes(prefix + ".large", "tcp", "udp"));
+    }
+
+    private List<String> schemes(final String property, final String ... defaults) {
+        final List<String> schemes = new ArrayList<String>();
+        final String[] strings = getStringArray(property);
+
+        if (strings != null) {
+            for (final String scheme : strings) {
+                if (!scheme.trim().isEmpty()) {
+                    schemes.add(scheme.trim());
+                }
+            }
+        }
+
+        return schemes.isEmpty() ? Arrays.asList(defaults) : schemes;
+    }
+
     public List<InetSocketAddress> protoAddresses(final String property, final String proto) {
     	final List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
         final String[] addressesStrings = getStringArray(property);
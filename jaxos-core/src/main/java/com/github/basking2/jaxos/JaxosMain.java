@@ -50,6 +50,22 @@ public class JaxosMain {
 				}
 			}
 
+			try {
+				config.getSelectorPool().close();
+			}
+			catch (final Exception e) {
+				LOG.error(e.getMessage(), e);
+			}
+
+			try {
+				if (config.getDispatcher() != null) {
+					config.getDispatcher().close();
+				}
+			}
+			catch (final Exception e) {
+				LOG.error(e.getMessage(), e);
+			}
+
 			synchronized (waitToExit) {
 				waitToExit.notifyAll();
 			}
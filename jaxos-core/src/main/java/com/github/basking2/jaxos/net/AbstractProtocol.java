@@ -1,16 +1,24 @@
 package com.github.basking2.jaxos.net;
 
+import com.github.basking2.jaxos.util.BufferPool;
 import com.github.basking2.jaxos.util.CipherUtil;
 import org.apache.commons.configuration.Configuration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.SocketAddress;
-import java.nio.channels.Selector;
-import java.nio.channels.spi.AbstractSelector;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  */
@@ -18,30 +26,318 @@ public abstract class AbstractProtocol implements Protocol {
 
     private static final Logger LOG = LoggerFactory.getLogger(AbstractProtocol.class);
     protected final CipherUtil cipherUtil;
+
+    /**
+     * Buffers that messages are encoded into and received into.
+     */
+    protected final BufferPool bufferPool;
     private List<? extends SocketAddress> learners;
     private List<? extends SocketAddress> acceptors;
 
-    protected final Selector selector;
+    /**
+     * The configured acceptors and learners.
+     */
+    private final Set<SocketAddress> peers = new HashSet<SocketAddress>();
+
+    /**
+     * The threads that select on this protocol's channels.
+     */
+    protected final SelectorPool selectorPool;
+
+    /**
+     * If true, {@link #selectorPool} was built for this protocol alone and is closed with it.
+     */
+    private final boolean ownsSelectorPool;
 
+    /**
+     * The most bytes of messages batched into one frame, or 0 to send each message in its own frame.
+     */
+    private final int batchBytes;
+
+    /**
+     * Microseconds a batch waits for more messages. If 0, a batch is sent once its selector
+     * thread has handled what is ready now.
+     */
+    private final long batchLinger;
+
+    /**
+     * The batch being filled for each peer. Batches to peers that are not configured, such as the
+     * ephemeral ports replies go to, are removed once sent.
+     */
+    private final ConcurrentMap<SocketAddress, Batch> batches = new ConcurrentHashMap<SocketAddress, Batch>();
+
+    private volatile MessageHandler messageHandler;
+
+    /**
+     * If true, messages to this protocol's own address are handed to its {@link MessageHandler} without
+     * being encoded, encrypted or sent.
+     */
+    private final boolean localDelivery;
+
+    /**
+     * The thread that hands local messages to the {@link MessageHandler}, so they are handled in order
+     * and never within the call that sent them.
+     */
+    private final SelectorPool.SelectorThread localThread;
+
+    /**
+     * For each configured peer sent to, true if it is this protocol's own address. Other addresses, such as
+     * the ephemeral ports replies go to, are checked each time rather than kept forever.
+     */
+    private final ConcurrentMap<SocketAddress, Boolean> localPeers = new ConcurrentHashMap<SocketAddress, Boolean>();
+
+    /**
+     * Build a protocol with its own single selector thread and buffer pool.
+     */
     protected AbstractProtocol(
         final InetSocketAddress bind,
         final Configuration configuration,
         final List<? extends SocketAddress> acceptors,
         final List<? extends SocketAddress> learners
     ) throws IOException {
-        this.selector = (AbstractSelector)Selector.open();
+        this(bind, configuration, acceptors, learners, null, null);
+    }
+
+    /**
+     * Build a protocol that shares the threads of a {@link SelectorPool} and the buffers of a {@link BufferPool}.
+     *
+     * @param selectorPool The shared pool or null to build one with a single thread for this protocol.
+     * @param bufferPool The shared pool or null to build one for this protocol.
+     */
+    protected AbstractProtocol(
+        final InetSocketAddress bind,
+        final Configuration configuration,
+        final List<? extends SocketAddress> acceptors,
+        final List<? extends SocketAddress> learners,
+        final SelectorPool selectorPool,
+        final BufferPool bufferPool
+    ) throws IOException {
+        this.selectorPool = selectorPool == null? new SelectorPool(1) : selectorPool;
+        this.ownsSelectorPool = selectorPool == null;
         this.acceptors = acceptors;
         this.learners = learners;
+        this.peers.addAll(acceptors);
+        this.peers.addAll(learners);
         this.cipherUtil = new CipherUtil(configuration);
+        this.bufferPool = bufferPool == null? BufferPool.fromConfiguration(configuration) : bufferPool;
+        this.batchBytes = configuration.getInt("jaxos.batch.bytes", 0);
+        this.batchLinger = configuration.getLong("jaxos.batch.linger.micros", 0L);
+        this.localDelivery = configuration.getBoolean("jaxos.local.delivery", true);
+        this.localThread = this.selectorPool.next();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setMessageHandler(final MessageHandler messageHandler) {
+        this.messageHandler = messageHandler;
+    }
+
+    /**
+     * @return The handler received messages are given to, or null.
+     */
+    protected MessageHandler getMessageHandler() {
+        return messageHandler;
+    }
+
+    /**
+     * @return The address this protocol receives on, or null if it has none. Messages to it are delivered locally.
+     */
+    protected SocketAddress getBoundAddress() {
+        return null;
+    }
+
+    /**
+     * Decide if a peer is this protocol itself. A protocol bound to the wildcard address is reached
+     * at its port on any address of this host.
+     */
+    private boolean isLocal(final SocketAddress addr) {
+        if (!localDelivery || messageHandler == null) {
+            return false;
+        }
+
+        if (!peers.contains(addr)) {
+            return isSelf(addr);
+        }
+
+        return localPeers.computeIfAbsent(addr, this::isSelf);
+    }
+
+    private boolean isSelf(final SocketAddress addr) {
+        final SocketAddress bound = getBoundAddress();
+        if (!(addr instanceof InetSocketAddress) || !(bound instanceof InetSocketAddress)) {
+            return false;
+        }
+
+        final InetSocketAddress peer = (InetSocketAddress) addr;
+        final InetSocketAddress self = (InetSocketAddress) bound;
+        final InetAddress ip = peer.getAddress();
+        if (ip == null || peer.getPort() != self.getPort()) {
+            return false;
+        }
+
+        if (!self.getAddress().isAnyLocalAddress()) {
+            return ip.equals(self.getAddress());
+        }
+
+        try {
+            return ip.isLoopbackAddress() || ip.isAnyLocalAddress() || NetworkInterface.getByInetAddress(ip) != null;
+        } catch (final SocketException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Hand a message to this protocol's own handler, as if it had been received from this protocol's address.
+     *
+     * The message's values are shared, not copied.
+     */
+    private void deliverLocally(final BaseMessage msg) {
+        final MessageHandler handler = messageHandler;
+        final SocketAddress self = getBoundAddress();
+        localThread.executeLater(() -> BaseMessage.deliver(msg, self, this, handler));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<? extends SocketAddress> getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<? extends SocketAddress> getLearners() {
+        return learners;
+    }
+
+    /**
+     * Write an encrypted frame to the given address.
+     *
+     * @param encrypted The encrypted frame from position 0 to its limit. This is shared and must not be modified.
+     * @param addr Where to send the frame.
+     * @throws IOException
+     */
+    protected abstract void write(ByteBuffer encrypted, SocketAddress addr) throws IOException;
+
+    /**
+     * @return The most plain text bytes one frame may carry.
+     */
+    protected int maxFrameSize() {
+        return Integer.MAX_VALUE;
     }
 
+    /**
+     * @return True if {@link #write(ByteBuffer, SocketAddress)} is done with its buffer when it returns, as when
+     * it copies it, so {@link #writePlain(ByteBuffer, SocketAddress)} may encrypt into a pooled buffer.
+     */
+    protected boolean writeCopies() {
+        return false;
+    }
+
+    /**
+     * Encrypt and write one frame of plain text.
+     *
+     * Protocols that add to the plain text of each frame override this.
+     *
+     * @param plain The frame from its position to its limit. Its position may be advanced.
+     * @param addr Where to send the frame.
+     * @throws IOException If the frame cannot be sent.
+     */
+    protected void writePlain(final ByteBuffer plain, final SocketAddress addr) throws IOException {
+        if (!writeCopies()) {
+            write(Frame.encrypt(cipherUtil, plain), addr);
+            return;
+        }
+
+        final ByteBuffer encrypted = bufferPool.acquire(cipherUtil.getOutputSize(plain.remaining()));
+        try {
+            cipherUtil.encrypt(plain, encrypted);
+            encrypted.flip();
+            write(encrypted, addr);
+        }
+        finally {
+            bufferPool.release(encrypted);
+        }
+    }
+
+    /**
+     * Write a frame holding one message, reusing its encryption for every peer.
+     *
+     * @param frame The frame.
+     * @param addr Where to send the frame.
+     * @throws IOException If the frame cannot be sent.
+     */
+    protected void writeFrame(final Frame frame, final SocketAddress addr) throws IOException {
+        write(frame.encrypted(cipherUtil), addr);
+    }
+
+    /**
+     * Write a message larger than {@link #maxFrameSize()}.
+     *
+     * Protocols that limit their frames override this to split the message. By default it is written whole.
+     *
+     * @param encoded The encoded message from its position to its limit. It must not be modified.
+     * @param addr Where to send the message.
+     * @throws IOException If the message cannot be sent.
+     */
+    protected void writeOversized(final ByteBuffer encoded, final SocketAddress addr) throws IOException {
+        writePlain(encoded, addr);
+    }
+
+    /**
+     * Send a frame to one peer, in its own encrypted frame or in the peer's batch.
+     */
+    private void deliver(final Frame frame, final SocketAddress addr) throws IOException {
+        if (isLocal(addr)) {
+            deliverLocally(frame.getMessage());
+        } else if (batchBytes > 0) {
+            // A removed batch refuses the message, which goes in a new batch.
+            while (!batches.computeIfAbsent(addr, Batch::new).add(frame)) {
+                continue;
+            }
+        } else if (frame.getMessage().encodedSize() > maxFrameSize()) {
+            writeOversized(frame.encoded(), addr);
+        } else {
+            writeFrame(frame, addr);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
     @Override
-    public abstract void send(BaseMessage msg, SocketAddress addr) throws IOException;
+    public void send(final BaseMessage msg, final SocketAddress addr) throws IOException {
+        if (isLocal(addr)) {
+            deliverLocally(msg);
+            return;
+        }
+
+        final Frame frame = new Frame(msg, bufferPool);
+        try {
+            deliver(frame, addr);
+        }
+        finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void send(final Frame frame, final SocketAddress addr) throws IOException {
+        deliver(frame, addr);
+    }
 
     @Override
     public void close() throws Exception {
-        if (selector.isOpen()) {
-            selector.close();
+        if (ownsSelectorPool) {
+            selectorPool.close();
         }
     }
 
@@ -50,9 +346,22 @@ public abstract class AbstractProtocol implements Protocol {
      */
     @Override
     public void sendLearners(final AcceptMessage msg) throws IOException {
+        sendLearners(new Frame(msg));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sendLearners(final Frame frame) throws IOException {
         for (final SocketAddress addr : learners) {
-            LOG.info("Sending to learner {}", addr);
-            send(msg, addr);
+            LOG.debug("Sending to learner {}", addr);
+            try {
+                deliver(frame, addr);
+            } catch (final IOException e) {
+                // One unreachable peer must not keep the message from the others.
+                LOG.warn("Sending to learner {} failed. {}", addr, e.getMessage());
+            }
         }
     }
 
@@ -61,9 +370,21 @@ public abstract class AbstractProtocol implements Protocol {
      */
     @Override
     public void sendAcceptors(BaseMessage msg) throws IOException {
+        sendAcceptors(new Frame(msg));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sendAcceptors(final Frame frame) throws IOException {
         for (final SocketAddress addr : acceptors) {
-            LOG.info("Sending to acceptor {}", addr);
-            send(msg, addr);
+            LOG.debug("Sending to acceptor {}", addr);
+            try {
+                deliver(frame, addr);
+            } catch (final IOException e) {
+                LOG.warn("Sending to acceptor {} failed. {}", addr, e.getMessage());
+            }
         }
     }
 
@@ -85,4 +406,157 @@ public abstract class AbstractProtocol implements Protocol {
         return acceptors.size();
     }
 
+    /**
+     * Encoded messages waiting to be sent to one peer in a single {@link BaseMessage#BATCH_MSG} frame.
+     *
+     * A batch is sent when the next message does not fit or when its linger ends.
+     * Messages too large to batch are sent alone, after the batch, so a peer receives messages in order.
+     * A batch of one message is sent as its frame, whose encryption is shared with every other peer.
+     */
+    private class Batch {
+        final SocketAddress addr;
+
+        /**
+         * The thread that sends this batch when it has lingered.
+         */
+        final SelectorPool.SelectorThread thread;
+
+        final int capacity;
+
+        /**
+         * The batch being filled, or null if there is none.
+         */
+        ByteBuffer buffer;
+
+        int count;
+
+        /**
+         * The first message in {@link #buffer}.
+         */
+        Frame first;
+
+        /**
+         * True while a flush is scheduled.
+         */
+        boolean scheduled;
+
+        /**
+         * True once this is removed from {@link #batches}. It takes no more messages.
+         */
+        boolean removed;
+
+        Batch(final SocketAddress addr) {
+            this.addr = addr;
+            this.thread = selectorPool.next();
+            this.capacity = Math.min(batchBytes, maxFrameSize());
+        }
+
+        /**
+         * @return False if this batch was removed and the message must go in another.
+         */
+        synchronized boolean add(final Frame frame) throws IOException {
+            if (removed) {
+                return false;
+            }
+
+            final ByteBuffer encoded = frame.encoded();
+            final int size = 4 + encoded.remaining();
+
+            if (buffer != null && buffer.remaining() < size) {
+                flush();
+            }
+
+            if (BaseMessage.BATCH_HEADER_SIZE + size > capacity) {
+                flush();
+                if (encoded.remaining() > maxFrameSize()) {
+                    writeOversized(encoded, addr);
+                } else {
+                    writeFrame(frame, addr);
+                }
+                if (!scheduled) {
+                    removeIfTransient();
+                }
+                return true;
+            }
+
+            if (buffer == null) {
+                buffer = bufferPool.acquire(capacity);
+                buffer.limit(capacity);
+                buffer.put(BaseMessage.BATCH_MSG).putInt(0);
+                count = 0;
+                first = frame;
+            }
+
+            buffer.putInt(encoded.remaining()).put(encoded);
+            ++count;
+
+            if (!scheduled) {
+                scheduled = true;
+                if (batchLinger > 0) {
+                    thread.schedule(batchLinger, TimeUnit.MICROSECONDS, this::lingered);
+                } else {
+                    thread.executeLater(this::lingered);
+                }
+            }
+
+            return true;
+        }
+
+        synchronized void flush() throws IOException {
+            if (buffer == null) {
+                return;
+            }
+
+            final ByteBuffer batch = buffer;
+            // A frame already released by its sender would only be encoded again.
+            final Frame lone = count == 1 && first.isEncoded() ? first : null;
+            buffer = null;
+            first = null;
+
+            try {
+                if (lone != null) {
+                    writeFrame(lone, addr);
+                    return;
+                }
+
+                batch.putInt(1, count).flip();
+
+                // A lone message is sent as itself.
+                if (count == 1) {
+                    batch.position(BaseMessage.BATCH_HEADER_SIZE + 4);
+                }
+
+                writePlain(batch, addr);
+            }
+            finally {
+                bufferPool.release(batch);
+            }
+        }
+
+        /**
+         * Remove this empty batch if it is to a peer that is not configured, so such peers are not kept.
+         */
+        private void removeIfTransient() {
+            if (!peers.contains(addr)) {
+                removed = true;
+                batches.remove(addr, this);
+            }
+        }
+
+        private void lingered() {
+            try {
+                synchronized (this) {
+                    scheduled = false;
+                    try {
+                        flush();
+                    } finally {
+                        removeIfTransient();
+                    }
+                }
+            } catch (final IOException e) {
+                LOG.warn("Sending batch to {} failed. {}", addr, e.getMessage());
+            }
+        }
+    }
+
 }
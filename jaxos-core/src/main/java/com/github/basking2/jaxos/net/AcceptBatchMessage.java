@@ -0,0 +1,38 @@
+package com.github.basking2.jaxos.net;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import com.github.basking2.jaxos.paxos.Proposal;
+
+/**
+ * The proposals of a {@link ProposeBatchMessage} that an acceptor accepted, sent to learners as one message.
+ */
+public class AcceptBatchMessage extends ProposalBatchMessage {
+    /**
+     * The id of the acceptor's node, which learners count once however the message reaches them.
+     */
+    public final long acceptor;
+
+    public AcceptBatchMessage(
+            final long n,
+            final Map<String, Proposal<ByteBuffer>> proposals,
+            final long acceptor,
+            final SocketAddress addr,
+            final Protocol protocol
+    ) {
+        super(ACCEPT_BATCH_MSG, n, proposals, addr, protocol);
+        this.acceptor = acceptor;
+    }
+
+    @Override
+    protected int fieldsSize() {
+        return 8;
+    }
+
+    @Override
+    protected void putFields(final ByteBuffer buffer) {
+        buffer.putLong(acceptor);
+    }
+}
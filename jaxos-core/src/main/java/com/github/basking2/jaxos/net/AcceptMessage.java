@@ -10,27 +10,31 @@ import com.github.basking2.jaxos.paxos.Proposal;
  */
 public class AcceptMessage extends BaseMessage {
     public final Proposal<ByteBuffer> proposal;
-    public AcceptMessage(final String instance, final Proposal<ByteBuffer> proposal, final SocketAddress addr, final Protocol protocol) {
+
+    /**
+     * The id of the acceptor's node, which learners count once however the message reaches them.
+     */
+    public final long acceptor;
+
+    public AcceptMessage(final String instance, final Proposal<ByteBuffer> proposal, final long acceptor, final SocketAddress addr, final Protocol protocol) {
         super(ACCEPT_MSG, instance, addr, protocol);
         this.proposal = proposal;
+        this.acceptor = acceptor;
+    }
+
+    @Override
+    public int encodedSize() {
+        return headerSize() + 12 + proposal.getValue().limit();
     }
 
     /**
      * @throws IOException
      */
     @Override
-    public ByteBuffer encode() throws IOException {
-        final ByteBuffer buffer = ByteBuffer.allocate(17 + instance.getBytes().length + proposal.getValue().limit());
-        buffer.put(type);
-        buffer.putInt(instance.getBytes().length);
-        buffer.putLong(proposal.getN());
-        buffer.put(instance.getBytes());
-        buffer.putInt(proposal.getValue().limit());
-        proposal.getValue().position(0);
-        buffer.put(proposal.getValue());
-
-        return buffer;
+    public void encode(final ByteBuffer buffer) throws IOException {
+        putHeader(buffer, proposal.getN(), proposal.getEncoding());
+        buffer.putLong(acceptor);
+        putValue(buffer, proposal.getValue());
     }
 
 }
-
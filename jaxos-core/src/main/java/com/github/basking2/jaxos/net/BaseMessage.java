@@ -3,6 +3,9 @@ package com.github.basking2.jaxos.net;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import com.github.basking2.jaxos.paxos.Promise;
 import com.github.basking2.jaxos.paxos.Proposal;
@@ -32,12 +35,88 @@ public abstract class BaseMessage {
     public static final byte PROMISE_MSG = 3;
 
     /**
-     * Accept message type. PDU = (type, id, proposal number, datalen, data bytes...)
+     * Accept message type. PDU = (type, id, proposal number, acceptor, datalen, data bytes...)
      */
     public static final byte ACCEPT_MSG = 4;
 
     /**
-     * The largest message size a user may send, in bytes..
+     * Many messages for one peer in one frame. PDU = (type, count, then count times (length, message bytes...)).
+     *
+     * Batches do not nest.
+     */
+    public static final byte BATCH_MSG = 5;
+
+    /**
+     * The length of a batch's type and count.
+     */
+    public static final int BATCH_HEADER_SIZE = 5;
+
+    /**
+     * Part of a message too large for one datagram. PDU = (type, message id, message length, offset, bytes...).
+     *
+     * Fragments are reassembled by the {@link Protocol} that receives them and are never decoded alone.
+     */
+    public static final byte FRAGMENT_MSG = 6;
+
+    /**
+     * The length of a fragment's type, message id, message length and offset.
+     */
+    public static final int FRAGMENT_HEADER_SIZE = 17;
+
+    /**
+     * A numbered datagram that is resent until acknowledged. PDU = (type, session, number, lowest unacknowledged number, datagram bytes...).
+     */
+    public static final byte RELIABLE_MSG = 7;
+
+    /**
+     * The length of a reliable datagram's type, session and numbers.
+     */
+    public static final int RELIABLE_HEADER_SIZE = 25;
+
+    /**
+     * Acknowledges {@link #RELIABLE_MSG}s. PDU = (type, session, highest number received with none missing,
+     * number most recently received, count, then count numbers received above the first).
+     */
+    public static final byte ACK_MSG = 8;
+
+    /**
+     * The length of an acknowledgement's type, session, numbers and count.
+     */
+    public static final int ACK_HEADER_SIZE = 29;
+
+    /**
+     * Asks for a promise of every instance to a multi paxos leader. PDU = (type, empty id, leader number).
+     */
+    public static final byte LEAD_MSG = 9;
+
+    /**
+     * Answers a {@link #LEAD_MSG}. See {@link LeadPromiseMessage}.
+     */
+    public static final byte LEAD_PROMISE_MSG = 10;
+
+    /**
+     * A value for the multi paxos leader to propose. PDU = (type, id, 0, datalen, data bytes...).
+     */
+    public static final byte FORWARD_MSG = 11;
+
+    /**
+     * A multi paxos leader's proposals in many instances. See {@link ProposalBatchMessage}.
+     */
+    public static final byte PROPOSE_BATCH_MSG = 12;
+
+    /**
+     * The proposals of a {@link #PROPOSE_BATCH_MSG} an acceptor accepted. See {@link ProposalBatchMessage}.
+     */
+    public static final byte ACCEPT_BATCH_MSG = 13;
+
+    /**
+     * The low bits of the first byte hold the message type. The high bits hold how a carried value is encoded.
+     */
+    private static final int TYPE_MASK = 0x0f;
+    private static final int ENCODING_SHIFT = 4;
+
+    /**
+     * The largest plain text datagram sent, in bytes. Larger messages are sent as {@link #FRAGMENT_MSG}s.
      */
     public static final int MAX_DATA_SIZE = 65000;
 
@@ -51,6 +130,11 @@ public abstract class BaseMessage {
      */
     public final String instance;
 
+    /**
+     * The UTF-8 encoding of {@link #instance}. This is shared and must not be modified.
+     */
+    protected final byte[] instanceBytes;
+
     /**
      * The source address. This is only necessary for datagram protocols, but can be defined for streaming protocols.
      */
@@ -64,13 +148,91 @@ public abstract class BaseMessage {
     protected BaseMessage(final byte type, final String instance, final SocketAddress addr, final Protocol protocol) {
         this.type = type;
         this.instance = instance;
+        this.instanceBytes = InstanceNames.bytes(instance);
         this.addr = addr;
         this.protocol = protocol;
     }
 
-    public abstract ByteBuffer encode() throws IOException;
+    /**
+     * @return The number of bytes {@link #encode(ByteBuffer)} will write.
+     */
+    public abstract int encodedSize();
+
+    /**
+     * Encode this message into the given buffer at its position.
+     *
+     * @param buffer A buffer with at least {@link #encodedSize()} bytes remaining.
+     * @throws IOException
+     */
+    public abstract void encode(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Encode this message into a new buffer. The buffer's position is left at the end of the message.
+     *
+     * @return A new buffer holding the message.
+     * @throws IOException
+     */
+    public ByteBuffer encode() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(encodedSize());
+        encode(buffer);
+        return buffer;
+    }
 
     /**
+     * The number of bytes in the header every message starts with.
+     *
+     * @return The header length, including the instance name.
+     */
+    protected int headerSize() {
+        return 13 + instanceBytes.length;
+    }
+
+    /**
+     * Put the type, instance name length, proposal number and the instance name.
+     *
+     * @param buffer The buffer to write to.
+     * @param proposalN The proposal number of this message.
+     */
+    protected void putHeader(final ByteBuffer buffer, final long proposalN) {
+        putHeader(buffer, proposalN, (byte)0);
+    }
+
+    /**
+     * Put the header of a message carrying a value.
+     *
+     * @param buffer The buffer to write to.
+     * @param proposalN The proposal number of this message.
+     * @param encoding How the value is encoded. See {@link Proposal#getEncoding()}.
+     */
+    protected void putHeader(final ByteBuffer buffer, final long proposalN, final byte encoding) {
+        buffer.put((byte)(type | encoding << ENCODING_SHIFT)); // Put 1 byte.
+        buffer.putInt(instanceBytes.length); // Put 4 bytes.
+        buffer.putLong(proposalN); // Put 8 bytes.
+        buffer.put(instanceBytes);
+    }
+
+    /**
+     * Put the length of a value followed by the bytes from 0 to its limit.
+     *
+     * The value's position is not changed, so values may be shared between threads.
+     *
+     * @param buffer The buffer to write to.
+     * @param value The value to write.
+     */
+    protected static void putValue(final ByteBuffer buffer, final ByteBuffer value) {
+        buffer.putInt(value.limit());
+        if (value.hasArray()) {
+            buffer.put(value.array(), value.arrayOffset(), value.limit());
+        } else {
+            final ByteBuffer duplicate = value.duplicate();
+            duplicate.position(0);
+            buffer.put(duplicate);
+        }
+    }
+
+    /**
+     * Messages given to the handler copy what they keep, so the buffer may be reused once this returns.
+     *
      * @param buffer The buffer to decode.
      * @param addr The return address of the system that created this.
      * @param handler A handler to react to the produced message.
@@ -82,26 +244,50 @@ public abstract class BaseMessage {
             final Protocol protocol,
             final MessageHandler handler
     ) throws IOException {
+        if (buffer.limit() > 0 && buffer.get(0) == BATCH_MSG) {
+            decodeBatch(buffer, addr, protocol, handler);
+            return;
+        }
+
+        if (buffer.limit() > 0) {
+            switch (buffer.get(0)) {
+                case FRAGMENT_MSG:
+                    throw new IOException("Fragments must be reassembled before they are decoded.");
+                case RELIABLE_MSG:
+                case ACK_MSG:
+                    throw new IOException("Reliable datagrams must be handled by their protocol.");
+                default:
+                    break;
+            }
+        }
+
         final long bytesRead = buffer.limit();
         if (bytesRead < 13) {
             throw new IOException("Packet was too small to be a message.");
         }
 
         buffer.rewind();
-        final byte type = buffer.get(); // Get 1 byte.
+        final byte typeAndEncoding = buffer.get(); // Get 1 byte.
+        final byte type = (byte)(typeAndEncoding & TYPE_MASK);
+        final byte encoding = (byte)((typeAndEncoding & 0xff) >>> ENCODING_SHIFT);
         final int instanceLen = buffer.getInt(); // Get 4 bytes.
         final long proposalN = buffer.getLong(); // Get 8 bytes.
-        final byte[] instanceBytes = new byte[instanceLen];
-        buffer.get(instanceBytes);
-        final String instance = new String(instanceBytes);
+
+        if (instanceLen < 0 || instanceLen > buffer.remaining()) {
+            throw new IOException("Instance length does not fit in the buffer.");
+        }
+
+        final String instance = InstanceNames.name(buffer, instanceLen);
 
         switch (type) {
             case PREPARE_MSG:
-            	LOG.info("Decoding prepare: {}", proposalN);
+            	if (LOG.isDebugEnabled()) {
+            		LOG.debug("Decoding prepare: {}", proposalN);
+            	}
                 handler.handlePrepare(new PrepareMessage(instance, proposalN, addr, protocol));
                 break;
             case PROMISE_MSG: {
-            	LOG.info("Decoding promise.");
+            	LOG.debug("Decoding promise.");
                 final long accepted_proposal = buffer.getLong();
                 final int datalen = buffer.getInt();
 
@@ -113,14 +299,14 @@ public abstract class BaseMessage {
                 if (accepted_proposal == 0) {
                     handler.handlePromise(new PromiseMessage(instance, new Promise<ByteBuffer>(proposalN), addr, protocol));
                 } else {
-                    final Proposal<ByteBuffer> proposal = new Proposal<ByteBuffer>(accepted_proposal, buffer.slice());
+                    final Proposal<ByteBuffer> proposal = new Proposal<ByteBuffer>(accepted_proposal, copyValue(buffer), encoding);
                     final Promise<ByteBuffer> promise = new Promise<ByteBuffer>(proposalN, proposal);
                     handler.handlePromise(new PromiseMessage(instance, promise, addr, protocol));
                 }
                 break;
             }
             case PROPOSE_MSG: {
-            	LOG.info("Decoding propose.");
+            	LOG.debug("Decoding propose.");
                 final int datalen = buffer.getInt();
 
                 // Insanity check.
@@ -128,12 +314,13 @@ public abstract class BaseMessage {
                     throw new IOException("Data length does not match buffer limit.");
                 }
 
-                final Proposal<ByteBuffer> proposal = new Proposal<ByteBuffer>(proposalN, buffer.slice());
+                final Proposal<ByteBuffer> proposal = new Proposal<ByteBuffer>(proposalN, copyValue(buffer), encoding);
                 handler.handlePropose(new ProposeMessage(instance, proposal, addr, protocol));
                 break;
             }
             case ACCEPT_MSG: {
-            	LOG.info("Decoding accept.");
+            	LOG.debug("Decoding accept.");
+                final long acceptor = buffer.getLong();
                 final int datalen = buffer.getInt();
 
                 // Insanity check.
@@ -141,8 +328,64 @@ public abstract class BaseMessage {
                     throw new IOException("Data length does not match buffer limit.");
                 }
 
-                Proposal<ByteBuffer> proposal = new Proposal<ByteBuffer>(proposalN, buffer.slice());
-                handler.handleAccept(new AcceptMessage(instance, proposal, addr, protocol));
+                Proposal<ByteBuffer> proposal = new Proposal<ByteBuffer>(proposalN, copyValue(buffer), encoding);
+                handler.handleAccept(new AcceptMessage(instance, proposal, acceptor, addr, protocol));
+                break;
+            }
+            case LEAD_MSG: {
+                LOG.debug("Decoding lead: {}", proposalN);
+                final long lease = buffer.getLong();
+                final long stamp = buffer.getLong();
+                handler.handleLead(new LeadMessage(proposalN, lease, stamp, addr, protocol));
+                break;
+            }
+            case LEAD_PROMISE_MSG: {
+                LOG.debug("Decoding lead promise.");
+                final long promised = buffer.getLong();
+                final long stamp = buffer.getLong();
+                final long acceptor = buffer.getLong();
+                final int count = buffer.getInt();
+                final Map<String, Proposal<ByteBuffer>> proposals = new HashMap<String, Proposal<ByteBuffer>>();
+                for (int i = 0; i < count; ++i) {
+                    final int nameLen = buffer.getInt();
+                    if (nameLen < 0 || nameLen > buffer.remaining()) {
+                        throw new IOException("Instance length does not fit in the buffer.");
+                    }
+                    final String name = InstanceNames.name(buffer, nameLen);
+                    final long n = buffer.getLong();
+                    final byte valueEncoding = buffer.get();
+                    final int datalen = buffer.getInt();
+                    if (datalen < 0 || datalen > buffer.remaining()) {
+                        throw new IOException("Data length does not fit in the buffer.");
+                    }
+                    final ByteBuffer value = buffer.duplicate();
+                    value.limit(buffer.position() + datalen);
+                    buffer.position(buffer.position() + datalen);
+                    proposals.put(name, new Proposal<ByteBuffer>(n, copyValue(value), valueEncoding));
+                }
+                handler.handleLeadPromise(new LeadPromiseMessage(proposalN, promised, stamp, acceptor, proposals, addr, protocol));
+                break;
+            }
+            case FORWARD_MSG: {
+                LOG.debug("Decoding forward.");
+                final int datalen = buffer.getInt();
+
+                if (datalen != buffer.limit() - buffer.position()) {
+                    throw new IOException("Data length does not match buffer limit.");
+                }
+
+                final Proposal<ByteBuffer> proposal = new Proposal<ByteBuffer>(proposalN, copyValue(buffer), encoding);
+                handler.handleForward(new ForwardMessage(instance, proposal, addr, protocol));
+                break;
+            }
+            case PROPOSE_BATCH_MSG:
+                LOG.debug("Decoding propose batch.");
+                handler.handleProposeBatch(new ProposeBatchMessage(proposalN, decodeProposals(buffer, proposalN), addr, protocol));
+                break;
+            case ACCEPT_BATCH_MSG: {
+                LOG.debug("Decoding accept batch.");
+                final long acceptor = buffer.getLong();
+                handler.handleAcceptBatch(new AcceptBatchMessage(proposalN, decodeProposals(buffer, proposalN), acceptor, addr, protocol));
                 break;
             }
             default:
@@ -150,6 +393,150 @@ public abstract class BaseMessage {
         }
     }
 
+    /**
+     * Decode the proposals of a {@link ProposalBatchMessage}, in order.
+     */
+    private static Map<String, Proposal<ByteBuffer>> decodeProposals(final ByteBuffer buffer, final long n) throws IOException {
+        final int count = buffer.getInt();
+        if (count < 0) {
+            throw new IOException("Negative proposal count.");
+        }
+
+        final Map<String, Proposal<ByteBuffer>> proposals = new LinkedHashMap<String, Proposal<ByteBuffer>>();
+        for (int i = 0; i < count; ++i) {
+            final int nameLen = buffer.getInt();
+            if (nameLen < 0 || nameLen > buffer.remaining()) {
+                throw new IOException("Instance length does not fit in the buffer.");
+            }
+            final String name = InstanceNames.name(buffer, nameLen);
+            final byte valueEncoding = buffer.get();
+            final int datalen = buffer.getInt();
+            if (datalen < 0 || datalen > buffer.remaining()) {
+                throw new IOException("Data length does not fit in the buffer.");
+            }
+            final ByteBuffer value = buffer.duplicate();
+            value.limit(buffer.position() + datalen);
+            buffer.position(buffer.position() + datalen);
+            proposals.put(name, new Proposal<ByteBuffer>(n, copyValue(value), valueEncoding));
+        }
+        return proposals;
+    }
+
+    /**
+     * Decode each message of a batch, in order, into the handler.
+     */
+    private static void decodeBatch(
+            final ByteBuffer buffer,
+            final SocketAddress addr,
+            final Protocol protocol,
+            final MessageHandler handler
+    ) throws IOException {
+        if (buffer.limit() < BATCH_HEADER_SIZE) {
+            throw new IOException("Packet was too small to be a batch.");
+        }
+
+        buffer.position(1);
+        final int count = buffer.getInt();
+        LOG.debug("Decoding batch of {}.", count);
+
+        for (int i = 0; i < count; ++i) {
+            if (buffer.remaining() < 4) {
+                throw new IOException("Batch ended before message " + i + " of " + count + ".");
+            }
+
+            final int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IOException("Batched message length does not fit in the batch.");
+            }
+
+            final ByteBuffer message = buffer.duplicate();
+            message.limit(buffer.position() + length);
+            buffer.position(buffer.position() + length);
+
+            final ByteBuffer slice = message.slice();
+            if (length > 0 && slice.get(0) == BATCH_MSG) {
+                throw new IOException("Batches may not be nested.");
+            }
+
+            decode(slice, addr, protocol, handler);
+        }
+    }
+
+    /**
+     * Copy a value out of the buffer being decoded.
+     *
+     * Handlers keep the values they receive, so they must not share the buffer the message was received into.
+     *
+     * @param buffer The buffer positioned at the start of the value, which extends to its limit.
+     * @return A new buffer holding only the value.
+     */
+    private static ByteBuffer copyValue(final ByteBuffer buffer) {
+        final ByteBuffer value = ByteBuffer.allocate(buffer.remaining());
+        value.put(buffer);
+        value.flip();
+        return value;
+    }
+
+    /**
+     * Give a message to a handler as if it had been received, without encoding it.
+     *
+     * The handler is given a new message from the address and protocol, sharing the values of the given message.
+     *
+     * @param msg The message.
+     * @param addr The address the message appears to come from.
+     * @param protocol The protocol the message appears to be received on.
+     * @param handler A handler to react to the message.
+     */
+    public static void deliver(
+            final BaseMessage msg,
+            final SocketAddress addr,
+            final Protocol protocol,
+            final MessageHandler handler
+    ) {
+        switch (msg.type) {
+            case PREPARE_MSG:
+                handler.handlePrepare(new PrepareMessage(msg.instance, ((PrepareMessage) msg).proposalN, addr, protocol));
+                break;
+            case PROMISE_MSG:
+                handler.handlePromise(new PromiseMessage(msg.instance, ((PromiseMessage) msg).promise, addr, protocol));
+                break;
+            case PROPOSE_MSG:
+                handler.handlePropose(new ProposeMessage(msg.instance, ((ProposeMessage) msg).proposal, addr, protocol));
+                break;
+            case ACCEPT_MSG: {
+                final AcceptMessage accept = (AcceptMessage) msg;
+                handler.handleAccept(new AcceptMessage(msg.instance, accept.proposal, accept.acceptor, addr, protocol));
+                break;
+            }
+            case LEAD_MSG: {
+                final LeadMessage lead = (LeadMessage) msg;
+                handler.handleLead(new LeadMessage(lead.n, lead.lease, lead.stamp, addr, protocol));
+                break;
+            }
+            case LEAD_PROMISE_MSG: {
+                final LeadPromiseMessage promise = (LeadPromiseMessage) msg;
+                handler.handleLeadPromise(new LeadPromiseMessage(promise.n, promise.promised, promise.stamp, promise.acceptor, promise.proposals, addr, protocol));
+                break;
+            }
+            case FORWARD_MSG:
+                handler.handleForward(new ForwardMessage(msg.instance, ((ForwardMessage) msg).proposal, addr, protocol));
+                break;
+            case PROPOSE_BATCH_MSG: {
+                final ProposeBatchMessage batch = (ProposeBatchMessage) msg;
+                handler.handleProposeBatch(new ProposeBatchMessage(batch.n, batch.proposals, addr, protocol));
+                break;
+            }
+            case ACCEPT_BATCH_MSG: {
+                final AcceptBatchMessage batch = (AcceptBatchMessage) msg;
+                handler.handleAcceptBatch(new AcceptBatchMessage(batch.n, batch.proposals, batch.acceptor, addr, protocol));
+                break;
+            }
+            default:
+                LOG.error("Cannot deliver message type {}.", msg.type);
+                break;
+        }
+    }
+
     public static BaseMessage decode(
             final ByteBuffer buffer,
             final SocketAddress addr,
@@ -162,6 +549,11 @@ public abstract class BaseMessage {
             @Override public void handlePromise(final PromiseMessage m) { msg[0] = m; }
             @Override public void handlePropose(final ProposeMessage m) { msg[0] = m; }
             @Override public void handleAccept(final AcceptMessage m) { msg[0] = m; }
+            @Override public void handleLead(final LeadMessage m) { msg[0] = m; }
+            @Override public void handleLeadPromise(final LeadPromiseMessage m) { msg[0] = m; }
+            @Override public void handleForward(final ForwardMessage m) { msg[0] = m; }
+            @Override public void handleProposeBatch(final ProposeBatchMessage m) { msg[0] = m; }
+            @Override public void handleAcceptBatch(final AcceptBatchMessage m) { msg[0] = m; }
         });
 
         return msg[0];
@@ -0,0 +1,29 @@
+package com.github.basking2.jaxos.net;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+import com.github.basking2.jaxos.paxos.Proposal;
+
+/**
+ * A value sent to the leader of multi paxos to propose. The proposal's number is not used.
+ */
+public class ForwardMessage extends BaseMessage {
+    public final Proposal<ByteBuffer> proposal;
+    public ForwardMessage(final String instance, final Proposal<ByteBuffer> proposal, final SocketAddress addr, final Protocol protocol) {
+        super(FORWARD_MSG, instance, addr, protocol);
+        this.proposal = proposal;
+    }
+
+    @Override
+    public int encodedSize() {
+        return headerSize() + 4 + proposal.getValue().limit();
+    }
+
+    @Override
+    public void encode(final ByteBuffer buffer) throws IOException {
+        putHeader(buffer, proposal.getN(), proposal.getEncoding());
+        putValue(buffer, proposal.getValue());
+    }
+}
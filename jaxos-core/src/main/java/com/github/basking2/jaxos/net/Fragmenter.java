@@ -0,0 +1,225 @@
+package com.github.basking2.jaxos.net;
+
+import com.github.basking2.jaxos.util.BufferPool;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits encoded messages too large for one datagram into {@link BaseMessage#FRAGMENT_MSG}s and
+ * reassembles them as they are received.
+ *
+ * Each fragment is encrypted and sent as its own datagram, so fragments may arrive in any order.
+ * Partly received messages are held for a limited time and within a limited number of bytes. When
+ * either is exceeded the oldest are dropped, as if their fragments were lost.
+ */
+class Fragmenter {
+    private final BufferPool bufferPool;
+
+    /**
+     * The most plain text bytes in one fragment, including its header.
+     */
+    private final int fragmentSize;
+
+    /**
+     * The largest message that will be reassembled.
+     */
+    private final int maxMessageSize;
+
+    /**
+     * Message identifiers start at a random point so that a restarted peer does not reuse
+     * identifiers of messages still being reassembled by others.
+     */
+    private final long idPrefix = (long)ThreadLocalRandom.current().nextInt() << 32;
+    private final AtomicInteger ids = new AtomicInteger();
+
+    private final Cache<Key, Reassembly> reassemblies;
+
+    /**
+     * @param bufferPool Where fragments are encoded into.
+     * @param fragmentSize The most plain text bytes in one fragment, including its header.
+     * @param maxBytes The most bytes held by partly received messages.
+     * @param timeout How long a message waits for its fragments, in milliseconds.
+     */
+    Fragmenter(final BufferPool bufferPool, final int fragmentSize, final long maxBytes, final long timeout) {
+        if (fragmentSize <= BaseMessage.FRAGMENT_HEADER_SIZE) {
+            throw new IllegalArgumentException("Fragments of " + fragmentSize + " bytes cannot hold their header.");
+        }
+
+        this.bufferPool = bufferPool;
+        this.fragmentSize = fragmentSize;
+        this.maxMessageSize = (int)Math.min(Integer.MAX_VALUE, maxBytes);
+        this.reassemblies = CacheBuilder.newBuilder().
+                maximumWeight(maxBytes).
+                weigher((Key key, Reassembly reassembly) -> reassembly.data.length).
+                expireAfterWrite(timeout, TimeUnit.MILLISECONDS).
+                build();
+    }
+
+    /**
+     * Something that sends one fragment.
+     */
+    @FunctionalInterface
+    interface Sink {
+        /**
+         * @param fragment The plain text fragment from its position to its limit. It is reused once this returns.
+         * @throws IOException If the fragment cannot be sent.
+         */
+        void write(ByteBuffer fragment) throws IOException;
+    }
+
+    /**
+     * Split an encoded message into fragments.
+     *
+     * @param encoded The message from its position to its limit. Its position is not changed.
+     * @param sink Sends each fragment in turn.
+     * @throws IOException If the message is too large or the sink fails.
+     */
+    void split(final ByteBuffer encoded, final Sink sink) throws IOException {
+        final int total = encoded.remaining();
+        if (total > maxMessageSize) {
+            throw new IOException("Message of " + total + " bytes is larger than the " + maxMessageSize + " that may be reassembled.");
+        }
+
+        final long id = idPrefix | (ids.incrementAndGet() & 0xffffffffL);
+        final int chunkSize = fragmentSize - BaseMessage.FRAGMENT_HEADER_SIZE;
+        final ByteBuffer fragment = bufferPool.acquire(fragmentSize);
+        try {
+            for (int offset = 0; offset < total; offset += chunkSize) {
+                final ByteBuffer chunk = encoded.duplicate();
+                chunk.position(encoded.position() + offset);
+                chunk.limit(chunk.position() + Math.min(chunkSize, total - offset));
+
+                fragment.clear();
+                fragment.put(BaseMessage.FRAGMENT_MSG).putLong(id).putInt(total).putInt(offset).put(chunk);
+                fragment.flip();
+                sink.write(fragment);
+            }
+        } finally {
+            bufferPool.release(fragment);
+        }
+    }
+
+    /**
+     * Add a received fragment to its message.
+     *
+     * @param addr Who sent the fragment.
+     * @param fragment The plain text fragment from 0 to its limit. It is copied, so it may be reused once this returns.
+     * @return The whole message from 0 to its limit once its last fragment is received, or null.
+     * @throws IOException If the fragment is malformed.
+     */
+    ByteBuffer reassemble(final SocketAddress addr, final ByteBuffer fragment) throws IOException {
+        if (fragment.limit() < BaseMessage.FRAGMENT_HEADER_SIZE || fragment.get(0) != BaseMessage.FRAGMENT_MSG) {
+            throw new IOException("Packet was not a fragment.");
+        }
+
+        final long id = fragment.getLong(1);
+        final int total = fragment.getInt(9);
+        final int offset = fragment.getInt(13);
+        final int length = fragment.limit() - BaseMessage.FRAGMENT_HEADER_SIZE;
+
+        if (total <= 0 || total > maxMessageSize) {
+            throw new IOException("Fragmented message of " + total + " bytes from " + addr + " is too large to reassemble.");
+        }
+
+        if (offset < 0 || offset > total - length) {
+            throw new IOException("Fragment does not fit in its message.");
+        }
+
+        final Key key = new Key(addr, id);
+        final Reassembly reassembly;
+        try {
+            reassembly = reassemblies.get(key, () -> new Reassembly(total));
+        } catch (final ExecutionException e) {
+            throw new IOException("Reassembling message from " + addr, e.getCause());
+        }
+
+        if (reassembly.data.length != total) {
+            throw new IOException("Fragments of message " + id + " from " + addr + " disagree on its length.");
+        }
+
+        final ByteBuffer chunk = fragment.duplicate();
+        chunk.position(BaseMessage.FRAGMENT_HEADER_SIZE);
+        if (!reassembly.add(offset, chunk)) {
+            return null;
+        }
+
+        reassemblies.invalidate(key);
+        return ByteBuffer.wrap(reassembly.data);
+    }
+
+    /**
+     * @return The number of messages waiting for fragments.
+     */
+    long pending() {
+        return reassemblies.size();
+    }
+
+    /**
+     * A message identifier is only unique to its sender.
+     */
+    private static final class Key {
+        final SocketAddress addr;
+        final long id;
+
+        Key(final SocketAddress addr, final long id) {
+            this.addr = addr;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            final Key that = (Key) o;
+            return id == that.id && addr.equals(that.addr);
+        }
+
+        @Override
+        public int hashCode() {
+            return addr.hashCode() * 31 + Long.hashCode(id);
+        }
+    }
+
+    /**
+     * The fragments of one message received so far.
+     */
+    private static final class Reassembly {
+        final byte[] data;
+
+        /**
+         * Offsets received, so a duplicated datagram is not counted twice.
+         */
+        final Set<Integer> offsets = new HashSet<Integer>();
+
+        int received;
+
+        Reassembly(final int total) {
+            this.data = new byte[total];
+        }
+
+        /**
+         * @return True if this completes the message.
+         */
+        synchronized boolean add(final int offset, final ByteBuffer chunk) {
+            if (received == data.length || !offsets.add(offset)) {
+                return false;
+            }
+
+            received += chunk.remaining();
+            chunk.get(data, offset, chunk.remaining());
+            return received == data.length;
+        }
+    }
+}
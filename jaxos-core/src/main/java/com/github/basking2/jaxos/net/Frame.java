@@ -0,0 +1,130 @@
+package com.github.basking2.jaxos.net;
+
+import com.github.basking2.jaxos.util.BufferPool;
+import com.github.basking2.jaxos.util.CipherUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A message as it is put on the network.
+ *
+ * The message is encoded at most once and encrypted at most once per key, no matter how
+ * many peers or {@link Protocol}s it is sent to. The buffers returned share content with
+ * this frame and must not be modified.
+ *
+ * A frame built with a {@link BufferPool} encodes into a pooled buffer that is returned by {@link #release()}.
+ */
+public class Frame {
+    private final BaseMessage message;
+
+    /**
+     * Where the encoded buffer comes from, or null to allocate it.
+     */
+    private final BufferPool bufferPool;
+
+    /**
+     * The encoded message, from position 0 to its limit.
+     */
+    private ByteBuffer encoded;
+
+    /**
+     * The {@link CipherUtil} that produced {@link #encrypted}.
+     */
+    private CipherUtil cipherUtil;
+
+    /**
+     * The last encryption of {@link #encoded}.
+     */
+    private ByteBuffer encrypted;
+
+    public Frame(final BaseMessage message) {
+        this(message, null);
+    }
+
+    public Frame(final BaseMessage message, final BufferPool bufferPool) {
+        this.message = message;
+        this.bufferPool = bufferPool;
+    }
+
+    public BaseMessage getMessage() {
+        return message;
+    }
+
+    /**
+     * @return The encoded message, from position 0 to its limit.
+     * @throws IOException If encoding fails.
+     */
+    public synchronized ByteBuffer encoded() throws IOException {
+        if (encoded == null) {
+            final int size = message.encodedSize();
+            final ByteBuffer buffer = bufferPool == null? ByteBuffer.allocate(size) : bufferPool.acquire(size);
+            message.encode(buffer);
+            buffer.flip();
+            encoded = buffer;
+        }
+
+        return encoded.duplicate();
+    }
+
+    /**
+     * @return True if this holds its encoding or an encryption, so sending it need not encode the message again.
+     */
+    public synchronized boolean isEncoded() {
+        return encoded != null || encrypted != null;
+    }
+
+    /**
+     * Return the encoded buffer to the pool. Encrypted buffers are kept.
+     *
+     * The frame may still be used. It will be encoded again if needed.
+     */
+    public synchronized void release() {
+        if (bufferPool != null && encoded != null) {
+            bufferPool.release(encoded);
+        }
+
+        encoded = null;
+    }
+
+    /**
+     * Return the encrypted message, reusing the last encryption if it was done with the same key.
+     *
+     * @param cipherUtil How to encrypt the message.
+     * @return The encrypted message, from position 0 to its limit.
+     * @throws IOException If encoding or encrypting fails.
+     */
+    public synchronized ByteBuffer encrypted(final CipherUtil cipherUtil) throws IOException {
+        if (encrypted == null || !cipherUtil.sameKey(this.cipherUtil)) {
+            encrypted = encrypt(cipherUtil, encoded());
+            this.cipherUtil = cipherUtil;
+        }
+
+        return encrypted.duplicate();
+    }
+
+    /**
+     * Encrypt the bytes from the buffer's position to its limit.
+     *
+     * @param cipherUtil How to encrypt.
+     * @param plain The plain text. Its position is advanced to its limit.
+     * @return A new buffer holding the cipher text.
+     * @throws IOException If encrypting fails.
+     */
+    static ByteBuffer encrypt(final CipherUtil cipherUtil, final ByteBuffer plain) throws IOException {
+        try {
+            final byte[] data;
+            if (plain.hasArray()) {
+                data = cipherUtil.encrypt(plain.array(), plain.arrayOffset() + plain.position(), plain.remaining());
+                plain.position(plain.limit());
+            } else {
+                final byte[] bytes = new byte[plain.remaining()];
+                plain.get(bytes);
+                data = cipherUtil.encrypt(bytes);
+            }
+            return ByteBuffer.wrap(data);
+        } catch (final Exception e) {
+            throw new IOException("Encrypting message", e);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.basking2.jaxos.net;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A small cache of instance names and their encoded bytes.
+ *
+ * Paxos instances are named by strings that are sent with every message. The same few names are
+ * typically used many times while they are being decided, so this saves encoding a name for every
+ * message sent and allocating a new string for every message received.
+ *
+ * The cache is a fixed table of immutable entries. Colliding names replace each other.
+ */
+final class InstanceNames {
+    private static final int SIZE = 1024;
+
+    private static final Entry[] ENTRIES = new Entry[SIZE];
+
+    private InstanceNames() {
+    }
+
+    /**
+     * @param name The instance name.
+     * @return The UTF-8 bytes of the name. These must not be modified.
+     */
+    static byte[] bytes(final String name) {
+        final int index = name.hashCode() & (SIZE - 1);
+        final Entry entry = ENTRIES[index];
+        if (entry != null && entry.name.equals(name)) {
+            return entry.bytes;
+        }
+
+        final Entry newEntry = new Entry(name, name.getBytes(StandardCharsets.UTF_8));
+        ENTRIES[index] = newEntry;
+        return newEntry.bytes;
+    }
+
+    /**
+     * Read a name from the buffer's position, advancing the position past it.
+     *
+     * @param buffer The buffer to read.
+     * @param length The length of the encoded name.
+     * @return The instance name.
+     */
+    static String name(final ByteBuffer buffer, final int length) {
+        final int position = buffer.position();
+
+        // This matches String.hashCode() for ASCII names, so a name is found no matter how it was added.
+        int hash = 0;
+        for (int i = 0; i < length; ++i) {
+            hash = 31 * hash + (buffer.get(position + i) & 0xff);
+        }
+
+        final Entry entry = ENTRIES[hash & (SIZE - 1)];
+        if (entry != null && entry.matches(buffer, position, length)) {
+            buffer.position(position + length);
+            return entry.name;
+        }
+
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        final Entry newEntry = new Entry(new String(bytes, StandardCharsets.UTF_8), bytes);
+        ENTRIES[newEntry.name.hashCode() & (SIZE - 1)] = newEntry;
+        return newEntry.name;
+    }
+
+    private static final class Entry {
+        final String name;
+        final byte[] bytes;
+
+        Entry(final String name, final byte[] bytes) {
+            this.name = name;
+            this.bytes = bytes;
+        }
+
+        boolean matches(final ByteBuffer buffer, final int position, final int length) {
+            if (bytes.length != length) {
+                return false;
+            }
+
+            for (int i = 0; i < length; ++i) {
+                if (bytes[i] != buffer.get(position + i)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+}
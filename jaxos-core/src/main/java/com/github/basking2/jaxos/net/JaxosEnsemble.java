@@ -1,16 +1,40 @@
 package com.github.basking2.jaxos.net;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import com.github.basking2.jaxos.util.AdaptiveBatcher;
+import com.github.basking2.jaxos.util.Compression;
 import com.github.basking2.jaxos.util.FutureFailure;
+import com.github.basking2.jaxos.util.InFlightWindow;
+import com.github.basking2.jaxos.util.OrderedExecutor;
 import com.github.basking2.jaxos.paxos.Acceptor;
+import com.github.basking2.jaxos.paxos.Leader;
 import com.github.basking2.jaxos.paxos.Learner;
 import com.github.basking2.jaxos.paxos.PaxosAcceptorDao;
 import com.github.basking2.jaxos.paxos.PaxosProposerDao;
@@ -20,6 +44,7 @@ import com.github.basking2.jaxos.paxos.Proposer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
@@ -35,6 +60,16 @@ public class JaxosEnsemble implements AutoCloseable {
 
 	final Logger LOG = LoggerFactory.getLogger(JaxosEnsemble.class);
 
+	/**
+	 * The instances {@link #decide(String, ByteBuffer)} has in flight at once unless {@link #setWindow(int)} says otherwise.
+	 */
+	public static final int DEFAULT_WINDOW = 16;
+
+	/**
+	 * How long, in milliseconds, {@link #decide(String, ByteBuffer)} waits to learn a value before failing.
+	 */
+	public static final long DEFAULT_DECIDE_TIMEOUT = TimeUnit.MINUTES.toMillis(2);
+
 	/**
 	 * The wire protocol.
 	 */
@@ -42,6 +77,23 @@ public class JaxosEnsemble implements AutoCloseable {
 
 	private Majority majority = SIMPLE_MAJORITY;
 
+	/**
+	 * Identifies this node's acceptor to learners and leaders, which count each id once however its messages arrive.
+	 */
+	private volatile long id = new SecureRandom().nextLong();
+
+	/**
+	 * How a message reaches a peer that more than one protocol reaches.
+	 */
+	private Transport transport = BY_SIZE;
+
+	/**
+	 * The protocols that reach each acceptor and learner, in the order the protocols were added.
+	 * An address listed by several protocols is one peer.
+	 */
+	private volatile Map<SocketAddress, List<Protocol>> acceptorRoutes = Collections.emptyMap();
+	private volatile Map<SocketAddress, List<Protocol>> learnerRoutes = Collections.emptyMap();
+
 	private PaxosAcceptorDao<ByteBuffer> acceptorDao;
 	private PaxosProposerDao<ByteBuffer> proposerDao;
 	private Acceptor<ByteBuffer> acceptor;
@@ -54,6 +106,97 @@ public class JaxosEnsemble implements AutoCloseable {
 
 	private Learner<ByteBuffer> learner;
 
+	/**
+	 * If true, values given to {@link #multiPropose(String, ByteBuffer)} are proposed by one
+	 * {@link Leader} without preparing their instances.
+	 */
+	private volatile boolean multi;
+
+	/**
+	 * Milliseconds a value waits to be learned before this proposes it again, leading if need be.
+	 */
+	private volatile long multiTimeout;
+
+	private Leader<ByteBuffer> leader;
+
+	/**
+	 * The leader this node's acceptor last promised, or null.
+	 */
+	private volatile LeaderRoute leaderRoute;
+
+	/**
+	 * Values to decide by multi paxos that are not yet learned, by instance.
+	 */
+	private final Cache<String, Waiting> waiting = CacheBuilder.newBuilder().
+			expireAfterWrite(2, TimeUnit.MINUTES).
+			build();
+
+	/**
+	 * Retries waiting values, once multi paxos is enabled.
+	 */
+	private ScheduledExecutorService multiTimer;
+
+	/**
+	 * Milliseconds acceptors promise no other leader after granting a lease, or 0 for no leases.
+	 */
+	private volatile long lease;
+
+	/**
+	 * Milliseconds by which a leader shortens its lease for the drift of acceptors' clocks.
+	 */
+	private volatile long leaseDrift;
+
+	/**
+	 * Gathers the values the multi paxos leader proposes into batches, or null to propose each alone.
+	 */
+	private volatile AdaptiveBatcher<Map.Entry<String, Proposal<ByteBuffer>>> batcher;
+
+	/**
+	 * Instances in which the leader has proposed a value it has not learned, so a read must wait.
+	 */
+	private final Cache<String, CompletableFuture<Void>> inFlight = CacheBuilder.newBuilder().
+			expireAfterWrite(2, TimeUnit.MINUTES).
+			removalListener(new RemovalListener<String, CompletableFuture<Void>>() {
+				@Override
+				public void onRemoval(final RemovalNotification<String, CompletableFuture<Void>> removal) {
+					if (removal.wasEvicted()) {
+						removal.getValue().completeExceptionally(new TimeoutException());
+					}
+				}
+			}).
+			build();
+
+	/**
+	 * Where messages are handled, or null to handle them on the protocol's selector thread.
+	 */
+	private OrderedExecutor dispatcher;
+
+	/**
+	 * How proposed values of at least {@link #compressionThreshold} bytes are compressed.
+	 */
+	private Compression compression = Compression.NONE;
+	private int compressionThreshold;
+
+	/**
+	 * Limits the instances {@link #decide(String, ByteBuffer)} has in flight.
+	 */
+	private final InFlightWindow window = new InFlightWindow(DEFAULT_WINDOW);
+
+	/**
+	 * Values given to {@link #decide(String, ByteBuffer)} that are not yet learned, by instance.
+	 * Each is removed when it is learned or times out.
+	 */
+	private final ConcurrentMap<String, CompletableFuture<Proposal<ByteBuffer>>> decisions = new ConcurrentHashMap<>();
+
+	/**
+	 * Fails decisions that are not learned in time, so they leave the window.
+	 */
+	private final ScheduledThreadPoolExecutor decideTimer = new ScheduledThreadPoolExecutor(1, runnable -> {
+		final Thread thread = new Thread(runnable, "jaxos-decide");
+		thread.setDaemon(true);
+		return thread;
+	});
+
 	/**
 	 * @param learner A built learner gets this.
 	 */
@@ -69,6 +212,9 @@ public class JaxosEnsemble implements AutoCloseable {
 		this.acceptor = null;
 		this.learnerListener = learner;
 
+		// Learned decisions cancel their timeouts; do not keep those until they would have run.
+		decideTimer.setRemoveOnCancelPolicy(true);
+
 		setQuorum(0);
 	}
 
@@ -78,15 +224,57 @@ public class JaxosEnsemble implements AutoCloseable {
 
 	private void setQuorum(final int quorum){
 
-		this.learner = new Learner<ByteBuffer>(quorum, learnerListener);
+		this.learner = new Learner<ByteBuffer>(quorum, (instance, proposal) -> {
+			waiting.invalidate(instance);
+			if (learnerListener != null) {
+				learnerListener.learn(instance, proposal);
+			}
+			landed(instance);
+			final CompletableFuture<Proposal<ByteBuffer>> decision = decisions.remove(instance);
+			if (decision != null) {
+				decision.complete(proposal);
+			}
+		});
+		this.leader = new Leader<ByteBuffer>(
+				quorum,
+				(n, lease, stamp) -> sendAcceptors(new Frame(new LeadMessage(n, lease, stamp, null, null))),
+				new Leader.Sender<ByteBuffer>() {
+					@Override
+					public void propose(final String instance, final Proposal<ByteBuffer> proposal) {
+						inFlight(instance, proposal);
+						sendAcceptors(new Frame(new ProposeMessage(instance, proposal, null, null)));
+					}
+
+					@Override
+					public void proposeAll(final long n, final Map<String, Proposal<ByteBuffer>> proposals) {
+						// Each message fits in one datagram, unless one value alone does not.
+						final int empty = new ProposeBatchMessage(n, Collections.emptyMap(), null, null).encodedSize();
+						Map<String, Proposal<ByteBuffer>> batch = new LinkedHashMap<String, Proposal<ByteBuffer>>();
+						int bytes = empty;
+						for (final Map.Entry<String, Proposal<ByteBuffer>> proposal : proposals.entrySet()) {
+							inFlight(proposal.getKey(), proposal.getValue());
+
+							final int size = ProposalBatchMessage.entrySize(proposal.getKey(), proposal.getValue());
+							if (!batch.isEmpty() && bytes + size > BaseMessage.MAX_DATA_SIZE) {
+								sendAcceptors(new Frame(new ProposeBatchMessage(n, batch, null, null)));
+								batch = new LinkedHashMap<String, Proposal<ByteBuffer>>();
+								bytes = empty;
+							}
+							batch.put(proposal.getKey(), proposal.getValue());
+							bytes += size;
+						}
+
+						if (!batch.isEmpty()) {
+							sendAcceptors(new Frame(new ProposeBatchMessage(n, batch, null, null)));
+						}
+					}
+				});
+		this.leader.setLease(lease, leaseDrift, TimeUnit.MILLISECONDS);
 		try {
 		    // Build a new acceptor.
 			this.acceptor = new Acceptor<ByteBuffer>(
                     (instance, proposal) ->{
-                        allProtocols(protocol -> {
-                            final AcceptMessage msg = new AcceptMessage(instance, proposal, null, protocol);
-                            protocol.sendLearners(msg);
-                        });
+                        sendLearners(new Frame(new AcceptMessage(instance, proposal, id, null, null)));
                     },
 			        acceptorDao
             );
@@ -96,9 +284,7 @@ public class JaxosEnsemble implements AutoCloseable {
 					quorum,
                     // How do we send a prepare.
                     (instance, n) -> {
-                        allProtocols(p -> {
-                            p.sendPrepare(instance, n);
-                        });
+                        sendAcceptors(new Frame(new PrepareMessage(instance, n, null, null)));
                     },
                     // How do we handle a promise.
                     (instance, promise) -> {
@@ -113,14 +299,273 @@ public class JaxosEnsemble implements AutoCloseable {
 		}
 	}
 
+	/**
+	 * @param protocol The protocol.
+	 * @throws IllegalArgumentException If, with the protocol, one peer seems listed under different ports, as {@link #setTransport(Transport)} explains.
+	 */
 	public void addProtocol(final Protocol protocol) {
+		final List<Protocol> added = new ArrayList<Protocol>(protocols);
+		added.add(protocol);
+		checkRoutes(transport, added);
+
 		this.protocols.add(protocol);
-		protocol.setMessageHandler(new JaxosManagerMessageHandler());
+		if (dispatcher == null) {
+			protocol.setMessageHandler(new JaxosManagerMessageHandler());
+		} else {
+			protocol.setMessageHandler(new DispatchingMessageHandler(dispatcher, new JaxosManagerMessageHandler()));
+		}
+		this.acceptorRoutes = routes(protocols, Protocol::getAcceptors);
+		this.learnerRoutes = routes(protocols, Protocol::getLearners);
+		setQuorum();
+	}
+
+	/**
+	 * Choose how messages reach peers that more than one protocol reaches.
+	 *
+	 * This also decides if such a peer counts once or once per protocol toward the quorum.
+	 *
+	 * Peers are told apart by host and port, so unless each protocol counts its own, a node must have
+	 * one port on every protocol. Otherwise it would count as two acceptors, and be sent everything twice.
+	 *
+	 * @param transport {@link #BY_SIZE}, the default, {@link #ALL_PROTOCOLS} or another transport.
+	 * @throws IllegalArgumentException If a host is listed under one port on some protocols and another port on others.
+	 */
+	public void setTransport(final Transport transport) {
+		checkRoutes(transport, protocols);
+		this.transport = transport;
 		setQuorum();
 	}
 
+	/**
+	 * Handle messages from protocols added after this on the given executor rather than the selector thread.
+	 *
+	 * Messages for the same instance are handled in the order they are received.
+	 *
+	 * @param dispatcher The executor, or null to handle messages as they are received.
+	 */
+	public void setDispatcher(final OrderedExecutor dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+
+	/**
+	 * Compress values proposed by {@link #propose(String, Long, ByteBuffer)}.
+	 *
+	 * Values stay compressed when accepted and learned. Read them with {@link Compression#decompress(Proposal)}.
+	 *
+	 * @param compression How to compress values.
+	 * @param threshold Values smaller than this many bytes are not compressed.
+	 */
+	public void setCompression(final Compression compression, final int threshold) {
+		this.compression = compression;
+		this.compressionThreshold = threshold;
+	}
+
+	/**
+	 * Decide values given to {@link #multiPropose(String, ByteBuffer)} by multi paxos.
+	 *
+	 * @param multi True to enable multi paxos.
+	 * @param timeout Milliseconds a value waits to be learned before it is proposed again.
+	 *                If this does not lead, it then asks to.
+	 */
+	public synchronized void setMulti(final boolean multi, final long timeout) {
+		this.multi = multi;
+		this.multiTimeout = timeout;
+		leader.setElectionTimeout(timeout, TimeUnit.MILLISECONDS);
+		startMultiTimer();
+	}
+
+	/**
+	 * Let the multi paxos leader propose many values in one message to each acceptor, which answers each
+	 * learner with one message. Each value keeps its own instance.
+	 *
+	 * While no batch is in flight a value is proposed at once. While batches are in flight, values wait
+	 * for a batch to fill. The batch size doubles while full batches are learned within the target, or while
+	 * batches queue behind one another beyond it, and halves when a batch alone takes longer than the target.
+	 *
+	 * @param targetMicros Microseconds a batch should take to be learned, or 0 to propose each value alone.
+	 * @param max The most values in a batch.
+	 */
+	public synchronized void setBatching(final long targetMicros, final int max) {
+		if (batcher != null) {
+			batcher.close();
+			batcher = null;
+		}
+
+		if (targetMicros > 0) {
+			batcher = new AdaptiveBatcher<Map.Entry<String, Proposal<ByteBuffer>>>(
+					"jaxos-batch",
+					targetMicros,
+					max,
+					TimeUnit.MICROSECONDS,
+					this::proposeBatch);
+		}
+	}
+
+	/**
+	 * Let the multi paxos leader read what it has learned without a round of messages, while acceptors
+	 * grant it a lease. Acceptors measure the lease from when they grant it, and the leader from
+	 * when it asked, less the drift. It renews its lease every third of a lease.
+	 *
+	 * @param lease Milliseconds acceptors promise no other leader, or 0 for no leases.
+	 * @param drift Milliseconds the clocks of acceptors may run ahead of the leader's over a lease.
+	 * @see #leaseRead(String)
+	 */
+	public synchronized void setLease(final long lease, final long drift) {
+		this.lease = lease;
+		this.leaseDrift = drift;
+		leader.setLease(lease, drift, TimeUnit.MILLISECONDS);
+		startMultiTimer();
+	}
+
+	/**
+	 * Start the timer that retries waiting values and renews leases, if multi paxos is enabled.
+	 */
+	private void startMultiTimer() {
+		if (multiTimer != null) {
+			multiTimer.shutdownNow();
+			multiTimer = null;
+		}
+
+		if (multi) {
+			multiTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				final Thread thread = new Thread(runnable, "jaxos-multi");
+				thread.setDaemon(true);
+				return thread;
+			});
+			final long period = Math.max(1L, multiTimeout / 2);
+			multiTimer.scheduleWithFixedDelay(this::retryWaiting, period, period, TimeUnit.MILLISECONDS);
+
+			if (lease > 0) {
+				final long renewal = Math.max(1L, lease / 3);
+				multiTimer.scheduleWithFixedDelay(() -> leader.renew(), renewal, renewal, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * @return True if multi paxos is enabled.
+	 */
+	public boolean isMulti() {
+		return multi;
+	}
+
+	/**
+	 * @return True if this leads and holds a lease from a quorum of acceptors.
+	 */
+	public boolean hasLease() {
+		return leader.hasLease();
+	}
+
+	/**
+	 * Wait until what this node has learned in an instance may be read linearizably.
+	 *
+	 * While this holds the lease, only it decides values, so once the values it has proposed in the instance
+	 * are learned, no other value can be decided. It learns all values decided before it led by proposing
+	 * them again. The value is read from wherever the {@link Learner.Listener} put it.
+	 *
+	 * @param instance The instance.
+	 * @return A future that completes true when the instance may be read, or false if this does not hold the lease.
+	 */
+	public CompletableFuture<Boolean> leaseRead(final String instance) {
+		if (!leader.hasLease()) {
+			return CompletableFuture.completedFuture(false);
+		}
+
+		final CompletableFuture<Void> landed = inFlight.getIfPresent(instance);
+		if (landed == null) {
+			return CompletableFuture.completedFuture(true);
+		}
+
+		// The lease may have ended while the proposal was in flight.
+		return landed.thenApply(v -> leader.hasLease());
+	}
+
+	/**
+	 * Wait until what this node has learned in an instance may be read linearizably, as {@link #leaseRead(String)}.
+	 *
+	 * @param instance The instance.
+	 * @param timeout How long to wait for the values in flight in the instance to be learned.
+	 * @param timeunit The unit of timeout.
+	 * @return A future as {@link #leaseRead(String)} returns. It fails with a {@link TimeoutException} if the values
+	 *         in flight are not learned in time.
+	 */
+	public CompletableFuture<Boolean> leaseRead(final String instance, final long timeout, final TimeUnit timeunit) {
+		final CompletableFuture<Boolean> read = leaseRead(instance);
+		if (read.isDone()) {
+			return read;
+		}
+
+		final CompletableFuture<Boolean> timed = new CompletableFuture<Boolean>();
+		final Future<?> expiry = decideTimer.schedule(
+				() -> timed.completeExceptionally(new TimeoutException("Reading " + instance)),
+				timeout,
+				timeunit);
+
+		read.whenComplete((held, e) -> {
+			expiry.cancel(false);
+			if (e == null) {
+				timed.complete(held);
+			}
+			else {
+				timed.completeExceptionally(e);
+			}
+		});
+
+		return timed;
+	}
+
+	/**
+	 * The leader proposed a value in an instance. Reads of it wait until it is learned.
+	 */
+	private void inFlight(final String instance, final Proposal<ByteBuffer> proposal) {
+		inFlight.asMap().computeIfAbsent(instance, i -> new CompletableFuture<Void>());
+		if (learner.isLearned(instance, proposal.getN())) {
+			// Proposed again once learned. No accept will learn it a second time.
+			landed(instance);
+		}
+	}
+
+	/**
+	 * A value proposed by the leader in an instance was learned.
+	 */
+	private void landed(final String instance) {
+		final CompletableFuture<Void> landed = inFlight.asMap().remove(instance);
+		if (landed != null) {
+			landed.complete(null);
+		}
+	}
+
+	/**
+	 * What an acceptor's votes and promises are counted by. Its id counts once, however often and on whichever
+	 * connection its messages arrive, except that every protocol counts its own acceptors when the transport
+	 * sends on all of them.
+	 */
+	private Object voter(final Protocol protocol, final long acceptor) {
+		return transport == ALL_PROTOCOLS ? Arrays.asList(protocol, acceptor) : acceptor;
+	}
+
+	/**
+	 * @param id Identifies this node's acceptor. Each acceptor in an ensemble must have its own.
+	 *           An acceptor that keeps what it accepted across restarts must keep its id too.
+	 */
+	public void setId(final long id) {
+		this.id = id;
+	}
+
+	/**
+	 * @return The id of this node's acceptor. It is random unless set.
+	 */
+	public long getId() {
+		return id;
+	}
+
 	private int numAcceptors() {
-		return protocols.stream().map(p->p.numAcceptors()).reduce((x,y) -> x + y).orElse(0);
+		// Every protocol delivers its own copy of each message, so each counts its own acceptors.
+		if (transport == ALL_PROTOCOLS) {
+			return protocols.stream().map(p->p.numAcceptors()).reduce((x,y) -> x + y).orElse(0);
+		}
+
+		return acceptorRoutes.size();
 	}
 
 	/**
@@ -138,6 +583,7 @@ public class JaxosEnsemble implements AutoCloseable {
 		public void handlePrepare(final PrepareMessage msg) {
 			try {
 				final Promise<ByteBuffer> promise = acceptor.prepare(msg.instance, msg.proposalN);
+				leader.observe(msg.proposalN);
 				final PromiseMessage promiseMessage = new PromiseMessage(msg.instance, promise, msg.addr, msg.protocol);
 				msg.protocol.send(promiseMessage, msg.addr);
 			}
@@ -158,12 +604,188 @@ public class JaxosEnsemble implements AutoCloseable {
 			} catch (Exception e) {
 				LOG.error(e.getMessage(), e);
 			}
+
+			refuse(msg.proposal.getN(), acceptor.getPromise(msg.instance), msg);
+		}
+
+		@Override
+		public void handleProposeBatch(final ProposeBatchMessage msg) {
+			final Map<String, Proposal<ByteBuffer>> accepted = acceptor.acceptAll(msg.proposals);
+			if (!accepted.isEmpty()) {
+				sendLearners(new Frame(new AcceptBatchMessage(msg.n, accepted, id, null, null)));
+			}
+
+			long promised = 0L;
+			for (final String instance : msg.proposals.keySet()) {
+				if (!accepted.containsKey(instance)) {
+					promised = Math.max(promised, acceptor.getPromise(instance));
+				}
+			}
+			refuse(msg.n, promised, msg);
+		}
+
+		/**
+		 * Tell the proposer of a proposal refused for a higher number that number, as a refused lead. A leader that
+		 * proposed it then asks to lead past it, rather than proposing in vain in an instance prepared since.
+		 */
+		private void refuse(final long n, final long promised, final BaseMessage msg) {
+			if (promised <= n) {
+				return;
+			}
+
+			try {
+				msg.protocol.send(new LeadPromiseMessage(
+						n,
+						promised,
+						0L,
+						id,
+						Collections.<String, Proposal<ByteBuffer>>emptyMap(),
+						msg.addr,
+						msg.protocol), msg.addr);
+			}
+			catch (final IOException e) {
+				LOG.error("Refusing proposal.", e);
+			}
+		}
+
+		@Override
+		public void handleLead(final LeadMessage msg) {
+			final Map<String, Proposal<ByteBuffer>> proposals = acceptor.lead(msg.n, TimeUnit.MILLISECONDS.toNanos(msg.lease));
+			if (proposals != null) {
+				follow(new LeaderRoute(msg.n, msg.addr, msg.protocol));
+			}
+
+			final long promised = acceptor.getLeadPromise();
+			leader.observe(promised);
+
+			try {
+				// A refusal may still count as a promise, but never as a lease. A lapsed lease is refused under its own number.
+				msg.protocol.send(new LeadPromiseMessage(
+						msg.n,
+						promised,
+						proposals == null ? 0L : msg.stamp,
+						id,
+						proposals == null ? Collections.<String, Proposal<ByteBuffer>>emptyMap() : proposals,
+						msg.addr,
+						msg.protocol), msg.addr);
+			}
+			catch (final IOException e) {
+				LOG.error("Handling lead.", e);
+			}
+		}
+
+		@Override
+		public void handleLeadPromise(final LeadPromiseMessage msg) {
+			if (leader.promise(msg.n, msg.promised, voter(msg.protocol, msg.acceptor), msg.proposals, msg.stamp)) {
+				LOG.info("Leading with {}", msg.n);
+				if (lease > 0) {
+					// Reads must see what was decided before this led.
+					leader.recover();
+				}
+				final Map<String, Proposal<ByteBuffer>> values = new LinkedHashMap<String, Proposal<ByteBuffer>>();
+				for (final Map.Entry<String, Waiting> value : waiting.asMap().entrySet()) {
+					values.put(value.getKey(), value.getValue().proposal);
+				}
+				leader.proposeAll(values);
+			}
+		}
+
+		@Override
+		public void handleForward(final ForwardMessage msg) {
+			// Forwarded values are not forwarded again, so a stale leader takes over rather than passing them on.
+			waiting.asMap().putIfAbsent(msg.instance, new Waiting(msg.proposal));
+			submit(msg.instance, msg.proposal, false);
 		}
 
 		@Override
 		public void handleAccept(final AcceptMessage msg) {
 			LOG.info("Learned {}", msg);
-			learner.learn(msg.instance, msg.proposal);
+			learner.learn(msg.instance, msg.proposal, voter(msg.protocol, msg.acceptor));
+		}
+
+		@Override
+		public void handleAcceptBatch(final AcceptBatchMessage msg) {
+			final Object acceptor = voter(msg.protocol, msg.acceptor);
+			for (final Map.Entry<String, Proposal<ByteBuffer>> proposal : msg.proposals.entrySet()) {
+				learner.learn(proposal.getKey(), proposal.getValue(), acceptor);
+			}
+		}
+	}
+
+	/**
+	 * Hands each message to an {@link OrderedExecutor} keyed by its instance.
+	 */
+	static class DispatchingMessageHandler implements MessageHandler {
+		private final OrderedExecutor executor;
+		private final MessageHandler handler;
+
+		DispatchingMessageHandler(final OrderedExecutor executor, final MessageHandler handler) {
+			this.executor = executor;
+			this.handler = handler;
+		}
+
+		@Override
+		public void handlePrepare(final PrepareMessage msg) {
+			executor.execute(msg.instance, () -> handler.handlePrepare(msg));
+		}
+
+		@Override
+		public void handlePromise(final PromiseMessage msg) {
+			executor.execute(msg.instance, () -> handler.handlePromise(msg));
+		}
+
+		@Override
+		public void handlePropose(final ProposeMessage msg) {
+			executor.execute(msg.instance, () -> handler.handlePropose(msg));
+		}
+
+		@Override
+		public void handleAccept(final AcceptMessage msg) {
+			executor.execute(msg.instance, () -> handler.handleAccept(msg));
+		}
+
+		@Override
+		public void handleLead(final LeadMessage msg) {
+			executor.execute(msg.instance, () -> handler.handleLead(msg));
+		}
+
+		@Override
+		public void handleLeadPromise(final LeadPromiseMessage msg) {
+			executor.execute(msg.instance, () -> handler.handleLeadPromise(msg));
+		}
+
+		@Override
+		public void handleForward(final ForwardMessage msg) {
+			executor.execute(msg.instance, () -> handler.handleForward(msg));
+		}
+
+		/**
+		 * Each instance of a batch is handled in order with its other messages, so it is split.
+		 * The acceptor then answers learners instance by instance.
+		 */
+		@Override
+		public void handleProposeBatch(final ProposeBatchMessage msg) {
+			for (final Map.Entry<String, Proposal<ByteBuffer>> proposal : msg.proposals.entrySet()) {
+				final ProposeBatchMessage one = new ProposeBatchMessage(
+						msg.n,
+						Collections.singletonMap(proposal.getKey(), proposal.getValue()),
+						msg.addr,
+						msg.protocol);
+				executor.execute(proposal.getKey(), () -> handler.handleProposeBatch(one));
+			}
+		}
+
+		@Override
+		public void handleAcceptBatch(final AcceptBatchMessage msg) {
+			for (final Map.Entry<String, Proposal<ByteBuffer>> proposal : msg.proposals.entrySet()) {
+				final AcceptBatchMessage one = new AcceptBatchMessage(
+						msg.n,
+						Collections.singletonMap(proposal.getKey(), proposal.getValue()),
+						msg.acceptor,
+						msg.addr,
+						msg.protocol);
+				executor.execute(proposal.getKey(), () -> handler.handleAcceptBatch(one));
+			}
 		}
 	}
 
@@ -203,11 +825,317 @@ public class JaxosEnsemble implements AutoCloseable {
 		}
 	}
 	
+	/**
+	 * Propose a value with the number an instance was prepared with.
+	 *
+	 * @param instance The instance.
+	 * @param n The number promised by {@link #prepare(String, Long)}.
+	 * @param data The value.
+	 * @throws IllegalArgumentException If n is not positive. Acceptors accept nothing unprepared.
+	 */
 	public void propose(final String instance, final Long n, final ByteBuffer data) {
-		allProtocols(p -> {
-			final ProposeMessage msg = new ProposeMessage(instance, new Proposal<ByteBuffer>(n, data), null, p);
-			p.sendAcceptors(msg);
+		if (n <= 0) {
+			throw new IllegalArgumentException("Proposals must be numbered above 0, as prepared.");
+		}
+
+		propose(instance, encode(instance, n, data));
+	}
+
+	/**
+	 * The most instances {@link #decide(String, ByteBuffer)} has in flight at once.
+	 *
+	 * @param window At least 1. Further values wait, in order, for an instance in flight to be learned.
+	 */
+	public void setWindow(final int window) {
+		this.window.setSize(window);
+	}
+
+	/**
+	 * Decide a value by a round of paxos, without waiting for it.
+	 *
+	 * Up to the window's number of instances are prepared, proposed and learned at once, so one caller
+	 * may keep the network busy rather than waiting out a round trip per value. Each future completes
+	 * when its instance is learned, in whatever order that happens.
+	 *
+	 * A value for an instance already being decided here is not proposed, and the future for that
+	 * instance is returned. If the acceptors had accepted a value, that is proposed instead.
+	 *
+	 * @param instance The instance.
+	 * @param data The value.
+	 * @return The learned proposal. It fails if a higher number preempts the prepare, or
+	 *         after {@link #DEFAULT_DECIDE_TIMEOUT}.
+	 */
+	public CompletableFuture<Proposal<ByteBuffer>> decide(final String instance, final ByteBuffer data) {
+		return decide(instance, data, DEFAULT_DECIDE_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Decide a value by a round of paxos, without waiting for it, as {@link #decide(String, ByteBuffer)}.
+	 *
+	 * The time counts from this call, including any wait for room in the window. A round whose messages are
+	 * lost fails when it runs out, and its instance leaves the window.
+	 *
+	 * @param instance The instance.
+	 * @param data The value.
+	 * @param timeout How long to wait to learn the value.
+	 * @param timeunit The unit of timeout.
+	 * @return The learned proposal. It fails with a {@link TimeoutException} if it is not learned in time.
+	 */
+	public CompletableFuture<Proposal<ByteBuffer>> decide(
+			final String instance,
+			final ByteBuffer data,
+			final long timeout,
+			final TimeUnit timeunit)
+	{
+		final CompletableFuture<Proposal<ByteBuffer>> decision = new CompletableFuture<Proposal<ByteBuffer>>();
+		final CompletableFuture<Proposal<ByteBuffer>> existing = decisions.putIfAbsent(instance, decision);
+		if (existing != null) {
+			return existing;
+		}
+
+		final Future<?> expiry = decideTimer.schedule(
+				() -> decision.completeExceptionally(new TimeoutException("Deciding " + instance)),
+				timeout,
+				timeunit);
+
+		decision.whenComplete((proposal, e) -> {
+			expiry.cancel(false);
+			decisions.remove(instance, decision);
+		});
+
+		window.submit(() -> decision.isDone() ? decision : round(instance, data, decision)).whenComplete((proposal, e) -> {
+			if (e != null) {
+				decision.completeExceptionally(e);
+			}
 		});
+
+		return decision;
+	}
+
+	/**
+	 * Prepare an instance, then propose and wait to learn.
+	 *
+	 * @return The decision, which completes when learned, preempted or timed out, even if no promise comes.
+	 */
+	private CompletableFuture<Proposal<ByteBuffer>> round(
+			final String instance,
+			final ByteBuffer data,
+			final CompletableFuture<Proposal<ByteBuffer>> decision)
+	{
+		final CompletableFuture<Promise<ByteBuffer>> promised = new CompletableFuture<Promise<ByteBuffer>>();
+
+		// Replace any earlier prepare of the instance, so this does not see its promise.
+		prepares.put(instance, promised);
+		proposer.prepare(instance, leader.next());
+
+		// A prepare still waiting for promises when the decision times out is dropped.
+		decision.whenComplete((proposal, e) -> prepares.asMap().remove(instance, promised));
+
+		promised.thenAccept(promise -> {
+			if (promise.getN() <= 0) {
+				throw new CompletionException(new IOException("Preempted preparing " + instance));
+			}
+
+			final Proposal<ByteBuffer> accepted = promise.getProposal();
+			propose(instance, accepted == null
+					? encode(instance, promise.getN(), data)
+					: new Proposal<ByteBuffer>(promise.getN(), accepted.getValue(), accepted.getEncoding()));
+		}).whenComplete((v, e) -> {
+			if (e != null) {
+				decision.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+			}
+		});
+
+		return decision;
+	}
+
+	/**
+	 * Build a proposal, compressing its value if that is enabled.
+	 */
+	private Proposal<ByteBuffer> encode(final String instance, final Long n, final ByteBuffer data) {
+		Proposal<ByteBuffer> proposal = new Proposal<ByteBuffer>(n, data);
+
+		if (compression != Compression.NONE && data.limit() >= compressionThreshold) {
+			try {
+				final ByteBuffer compressed = compression.compress(data);
+
+				// Values that do not shrink are sent as they are.
+				if (compressed.limit() < data.limit()) {
+					proposal = new Proposal<ByteBuffer>(n, compressed, compression.id);
+				}
+			}
+			catch (final IOException e) {
+				LOG.error("Compressing value for "+instance, e);
+			}
+		}
+
+		return proposal;
+	}
+
+	/**
+	 * Propose a proposal as it is, such as a value already accepted and returned in a {@link Promise}.
+	 *
+	 * @param instance The instance.
+	 * @param proposal The proposal, whose value is already encoded.
+	 */
+	public void propose(final String instance, final Proposal<ByteBuffer> proposal) {
+		// Compress, encode and encrypt once for every protocol and acceptor.
+		sendAcceptors(new Frame(new ProposeMessage(instance, proposal, null, null)));
+	}
+
+	/**
+	 * Decide a value by multi paxos.
+	 *
+	 * If this leads, it proposes the value without preparing the instance. Otherwise it forwards the value to
+	 * the leader its acceptor last promised, or asks to lead if there is none and it has not just asked. A value not learned
+	 * within the multi timeout is proposed again, and this asks to lead if it does not.
+	 * The value is learned through the {@link Learner.Listener}, so this should be a learner.
+	 *
+	 * @param instance The instance.
+	 * @param data The value.
+	 * @throws IllegalStateException If multi paxos is not enabled by {@link #setMulti(boolean, long)}.
+	 */
+	public void multiPropose(final String instance, final ByteBuffer data) {
+		if (!multi) {
+			throw new IllegalStateException("Multi paxos is not enabled.");
+		}
+
+		final Proposal<ByteBuffer> proposal = encode(instance, 0L, data);
+		waiting.put(instance, new Waiting(proposal));
+		submit(instance, proposal, true);
+	}
+
+	/**
+	 * Propose a value if this leads, else forward it to the leader or ask to lead.
+	 *
+	 * @param forward If false, the value is not forwarded.
+	 */
+	private void submit(final String instance, final Proposal<ByteBuffer> proposal, final boolean forward) {
+		final AdaptiveBatcher<Map.Entry<String, Proposal<ByteBuffer>>> batcher = this.batcher;
+		if (batcher != null && leader.isLeading()) {
+			batcher.add(new AbstractMap.SimpleImmutableEntry<String, Proposal<ByteBuffer>>(instance, proposal));
+			return;
+		}
+
+		if (leader.propose(instance, proposal) != null) {
+			return;
+		}
+
+		if (leader.isElecting()) {
+			// This asked to lead and is waiting for promises. Waiting values are proposed once it leads,
+			// or asked for again by retryWaiting.
+			return;
+		}
+
+		final LeaderRoute route = leaderRoute;
+		if (forward && route != null && route.n != leader.getN()) {
+			try {
+				route.protocol.send(new ForwardMessage(instance, proposal, null, null), route.addr);
+				return;
+			}
+			catch (final IOException e) {
+				LOG.warn("Forwarding to leader {} failed. {}", route.addr, e.getMessage());
+			}
+		}
+
+		leader.lead();
+	}
+
+	/**
+	 * Propose a batch of values in one message to each acceptor.
+	 *
+	 * @return A future that completes when every value is learned.
+	 */
+	private CompletableFuture<Void> proposeBatch(final List<Map.Entry<String, Proposal<ByteBuffer>>> values) {
+		final Map<String, Proposal<ByteBuffer>> batch = new LinkedHashMap<String, Proposal<ByteBuffer>>();
+		for (final Map.Entry<String, Proposal<ByteBuffer>> value : values) {
+			batch.putIfAbsent(value.getKey(), value.getValue());
+		}
+
+		final Map<String, Proposal<ByteBuffer>> proposed = leader.proposeAll(batch);
+		if (proposed == null) {
+			// This stopped leading. The values wait to be proposed again.
+			return CompletableFuture.completedFuture(null);
+		}
+
+		final List<CompletableFuture<Void>> landed = new ArrayList<CompletableFuture<Void>>();
+		for (final String instance : proposed.keySet()) {
+			final CompletableFuture<Void> future = inFlight.getIfPresent(instance);
+			if (future != null) {
+				landed.add(future);
+			}
+		}
+
+		return CompletableFuture.allOf(landed.toArray(new CompletableFuture<?>[landed.size()]));
+	}
+
+	/**
+	 * Propose again the values waiting longer than the multi timeout, asking to lead if this does not.
+	 */
+	private void retryWaiting() {
+		try {
+			final long now = System.currentTimeMillis();
+			final List<Map.Entry<String, Waiting>> late = new ArrayList<Map.Entry<String, Waiting>>();
+			for (final Map.Entry<String, Waiting> value : waiting.asMap().entrySet()) {
+				if (now - value.getValue().since >= multiTimeout) {
+					value.getValue().since = now;
+					late.add(value);
+				}
+			}
+
+			if (late.isEmpty()) {
+				return;
+			}
+
+			if (!leader.isLeading()) {
+				LOG.info("{} values were not learned in time. Asking to lead.", late.size());
+				leader.lead();
+				return;
+			}
+
+			for (final Map.Entry<String, Waiting> value : late) {
+				leader.propose(value.getKey(), value.getValue().proposal);
+			}
+		}
+		catch (final RuntimeException e) {
+			LOG.error("Retrying multi paxos values.", e);
+		}
+	}
+
+	/**
+	 * Forward values to a leader this node's acceptor promised, unless it already promised a later one.
+	 */
+	private synchronized void follow(final LeaderRoute route) {
+		if (leaderRoute == null || leaderRoute.n < route.n) {
+			leaderRoute = route;
+		}
+	}
+
+	/**
+	 * A leader and how to reach it.
+	 */
+	private static class LeaderRoute {
+		final long n;
+		final SocketAddress addr;
+		final Protocol protocol;
+
+		LeaderRoute(final long n, final SocketAddress addr, final Protocol protocol) {
+			this.n = n;
+			this.addr = addr;
+			this.protocol = protocol;
+		}
+	}
+
+	/**
+	 * A value to decide by multi paxos and when it was last proposed or forwarded.
+	 */
+	private static class Waiting {
+		final Proposal<ByteBuffer> proposal;
+		volatile long since = System.currentTimeMillis();
+
+		Waiting(final Proposal<ByteBuffer> proposal) {
+			this.proposal = proposal;
+		}
 	}
 
 	public static interface Majority {
@@ -241,6 +1169,257 @@ public class JaxosEnsemble implements AutoCloseable {
 		}
 	};
 
+	/**
+	 * Chooses the protocols a message is sent to one peer on.
+	 */
+	public static interface Transport {
+		/**
+		 * @param frame The message.
+		 * @param addr The peer.
+		 * @param protocols The protocols that reach the peer, in the order they were added. There is at least one.
+		 * @throws IOException If the message could not be sent.
+		 */
+		void send(Frame frame, SocketAddress addr, List<Protocol> protocols) throws IOException;
+
+		/**
+		 * Decide if a protocol able to reach all its acceptors with one message, such as by multicast,
+		 * should send a frame that way. Acceptors reached so are not sent the frame again by {@link #send}.
+		 *
+		 * @param frame The message.
+		 * @param protocol The protocol.
+		 * @param protocols Every protocol of the ensemble.
+		 * @return True to send the frame to the protocol's acceptors at once.
+		 */
+		default boolean sendGroup(final Frame frame, final Protocol protocol, final List<Protocol> protocols) {
+			return true;
+		}
+	}
+
+	/**
+	 * Send each message once, choosing a protocol by the size of the message.
+	 *
+	 * Protocols connected to the peer are tried first, in order of preference by their scheme.
+	 * If sending fails, the next is tried. Protocols not named come after those that are.
+	 */
+	public static class SizeTransport implements Transport {
+		private static final Logger LOG = LoggerFactory.getLogger(SizeTransport.class);
+
+		final int threshold;
+		final List<String> small;
+		final List<String> large;
+
+		/**
+		 * @param threshold Messages of at least this many encoded bytes are large.
+		 * @param small Schemes, such as {@code udp}, to send small messages on, most preferred first.
+		 * @param large Schemes to send large messages on, most preferred first.
+		 */
+		public SizeTransport(final int threshold, final List<String> small, final List<String> large) {
+			this.threshold = threshold;
+			this.small = small;
+			this.large = large;
+		}
+
+		@Override
+		public void send(final Frame frame, final SocketAddress addr, final List<Protocol> protocols) throws IOException {
+			if (protocols.size() == 1) {
+				protocols.get(0).send(frame, addr);
+				return;
+			}
+
+			final List<Protocol> ranked = rank(frame, protocols);
+
+			// Read once, so each protocol is tried once even if it connects or disconnects meanwhile.
+			final boolean[] connected = new boolean[ranked.size()];
+			for (int i = 0; i < connected.length; ++i) {
+				connected[i] = ranked.get(i).isConnected(addr);
+			}
+
+			// A protocol not yet connected may still queue the message until it is.
+			IOException failure = null;
+			for (final boolean pass : new boolean[]{ true, false }) {
+				for (int i = 0; i < connected.length; ++i) {
+					if (connected[i] != pass) {
+						continue;
+					}
+
+					final Protocol protocol = ranked.get(i);
+					try {
+						protocol.send(frame, addr);
+						return;
+					} catch (final IOException e) {
+						LOG.debug("Sending to {} on {} failed. {}", addr, protocol.getScheme(), e.getMessage());
+						failure = e;
+					}
+				}
+			}
+
+			throw failure;
+		}
+
+		/**
+		 * Only a protocol preferred for the frame over every other sends to its group.
+		 */
+		@Override
+		public boolean sendGroup(final Frame frame, final Protocol protocol, final List<Protocol> protocols) {
+			return rank(frame, protocols).get(0).getScheme().equals(protocol.getScheme());
+		}
+
+		/**
+		 * @return The protocols, most preferred for the frame first.
+		 */
+		private List<Protocol> rank(final Frame frame, final List<Protocol> protocols) {
+			final List<String> preferred = frame.getMessage().encodedSize() < threshold ? small : large;
+			final List<Protocol> ranked = new ArrayList<Protocol>(protocols);
+			ranked.sort(Comparator.comparingInt(p -> {
+				final int i = preferred.indexOf(p.getScheme());
+				return i < 0 ? preferred.size() : i;
+			}));
+			return ranked;
+		}
+	}
+
+	/**
+	 * Send messages smaller than 1024 bytes on udp and larger ones on tcp, falling back to the other.
+	 */
+	public static final Transport BY_SIZE = new SizeTransport(1024, Arrays.asList("udp", "tcp"), Arrays.asList("tcp", "udp"));
+
+	/**
+	 * Send every message on every protocol that reaches the peer.
+	 */
+	public static final Transport ALL_PROTOCOLS = new Transport() {
+		@Override
+		public void send(final Frame frame, final SocketAddress addr, final List<Protocol> protocols) throws IOException {
+			IOException failure = null;
+			for (final Protocol protocol : protocols) {
+				try {
+					protocol.send(frame, addr);
+				} catch (final IOException e) {
+					failure = e;
+				}
+			}
+
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	};
+
+	/**
+	 * @return Each peer listed by a protocol and the protocols that list it.
+	 */
+	private static Map<SocketAddress, List<Protocol>> routes(
+			final List<Protocol> protocols,
+			final Function<Protocol, List<? extends SocketAddress>> peers
+			)
+	{
+		final Map<SocketAddress, List<Protocol>> routes = new LinkedHashMap<SocketAddress, List<Protocol>>();
+		for (final Protocol protocol : protocols) {
+			for (final SocketAddress addr : peers.apply(protocol)) {
+				routes.computeIfAbsent(addr, a -> new ArrayList<Protocol>()).add(protocol);
+			}
+		}
+
+		return routes;
+	}
+
+	/**
+	 * Refuse peers that look like one node listed on one host under a different port for each protocol,
+	 * such as udp/h:3000 and tcp/h:4000. Each port of such a pair lacks a scheme the other has.
+	 */
+	private static void checkRoutes(final Transport transport, final List<Protocol> protocols) {
+		if (transport == ALL_PROTOCOLS) {
+			return;
+		}
+
+		for (final Map<SocketAddress, List<Protocol>> routes : Arrays.asList(
+				routes(protocols, Protocol::getAcceptors),
+				routes(protocols, Protocol::getLearners)))
+		{
+			final Map<SocketAddress, Set<String>> schemes = new LinkedHashMap<SocketAddress, Set<String>>();
+			for (final Map.Entry<SocketAddress, List<Protocol>> route : routes.entrySet()) {
+				final Set<String> names = new HashSet<String>();
+				for (final Protocol protocol : route.getValue()) {
+					names.add(protocol.getScheme());
+				}
+				schemes.put(route.getKey(), names);
+			}
+
+			for (final Map.Entry<SocketAddress, Set<String>> a : schemes.entrySet()) {
+				for (final Map.Entry<SocketAddress, Set<String>> b : schemes.entrySet()) {
+					if (sameHost(a.getKey(), b.getKey())
+							&& !a.getValue().containsAll(b.getValue())
+							&& !b.getValue().containsAll(a.getValue()))
+					{
+						throw new IllegalArgumentException(
+								"Peers " + a.getKey() + " on " + a.getValue() + " and " + b.getKey() + " on " + b.getValue()
+								+ " share a host but not a port, so one node would count as two. List each node at one port"
+								+ " on every protocol, or send on all protocols with the transport all.");
+					}
+				}
+			}
+		}
+	}
+
+	private static boolean sameHost(final SocketAddress a, final SocketAddress b) {
+		return a instanceof InetSocketAddress
+				&& b instanceof InetSocketAddress
+				&& ((InetSocketAddress) a).getHostString().equals(((InetSocketAddress) b).getHostString());
+	}
+
+	/**
+	 * Send a frame to every acceptor, once to each group that protocols can send to and then to each acceptor not in one.
+	 */
+	private void sendAcceptors(final Frame frame) {
+		final Set<Protocol> grouped = new HashSet<Protocol>();
+		for (final Protocol protocol : protocols) {
+			try {
+				if (transport.sendGroup(frame, protocol, protocols) && protocol.sendAcceptorGroup(frame)) {
+					grouped.add(protocol);
+				}
+			}
+			catch (final IOException e) {
+				LOG.warn("Sending to acceptor group failed. {}", e.getMessage());
+			}
+		}
+
+		if (grouped.isEmpty()) {
+			send(frame, acceptorRoutes, "acceptor");
+			return;
+		}
+
+		final Map<SocketAddress, List<Protocol>> routes = new LinkedHashMap<SocketAddress, List<Protocol>>();
+		for (final Map.Entry<SocketAddress, List<Protocol>> route : acceptorRoutes.entrySet()) {
+			final List<Protocol> ungrouped = new ArrayList<Protocol>(route.getValue());
+			ungrouped.removeAll(grouped);
+
+			// One copy is enough, unless every protocol is to deliver its own.
+			if (ungrouped.size() == route.getValue().size() || (transport == ALL_PROTOCOLS && !ungrouped.isEmpty())) {
+				routes.put(route.getKey(), ungrouped);
+			}
+		}
+
+		send(frame, routes, "acceptor");
+	}
+
+	private void sendLearners(final Frame frame) {
+		send(frame, learnerRoutes, "learner");
+	}
+
+	/**
+	 * Send a frame to every peer, by the {@link #transport}.
+	 */
+	private void send(final Frame frame, final Map<SocketAddress, List<Protocol>> routes, final String role) {
+		for (final Map.Entry<SocketAddress, List<Protocol>> route : routes.entrySet()) {
+			try {
+				transport.send(frame, route.getKey(), route.getValue());
+			}
+			catch (final IOException e) {
+				// One unreachable peer must not keep the message from the others.
+				LOG.warn("Sending to {} {} failed. {}", role, route.getKey(), e.getMessage());
+			}
+		}
+	}
+
 	private void allProtocols(IOConsumer c) {
 		for (final Protocol protocol : protocols) {
 			try {
@@ -254,6 +1433,9 @@ public class JaxosEnsemble implements AutoCloseable {
 
 	@Override
 	public void close() throws Exception {
+		setMulti(false, multiTimeout);
+		setBatching(0L, 0);
+		decideTimer.shutdownNow();
 		allProtocols(p -> p.close());
 	}
 
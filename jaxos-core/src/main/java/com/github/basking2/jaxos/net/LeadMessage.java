@@ -0,0 +1,50 @@
+package com.github.basking2.jaxos.net;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+import com.github.basking2.jaxos.paxos.Acceptor;
+import com.github.basking2.jaxos.paxos.Leader;
+
+/**
+ * Asks an acceptor to promise every instance to a {@link Leader}, or to renew the lease of
+ * a leader it promised. Its instance is empty.
+ *
+ * The remote side will call {@link Acceptor#lead(Long, long)} on this.
+ *
+ * PDU = (type, n, lease milliseconds, stamp).
+ */
+public class LeadMessage extends BaseMessage {
+    public final long n;
+
+    /**
+     * Milliseconds the acceptor should promise no other leader, or 0 for no lease.
+     */
+    public final long lease;
+
+    /**
+     * When the leader sent this, by its own clock. The acceptor returns it in its {@link LeadPromiseMessage}.
+     */
+    public final long stamp;
+
+    public LeadMessage(final long n, final long lease, final long stamp, final SocketAddress addr, final Protocol protocol) {
+        super(LEAD_MSG, "", addr, protocol);
+        this.n = n;
+        this.lease = lease;
+        this.stamp = stamp;
+    }
+
+    @Override
+    public int encodedSize() {
+        return headerSize() + 16;
+    }
+
+    @Override
+    public void encode(final ByteBuffer buffer) throws IOException
+    {
+        putHeader(buffer, n);
+        buffer.putLong(lease);
+        buffer.putLong(stamp);
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.basking2.jaxos.net;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import com.github.basking2.jaxos.paxos.Proposal;
+
+/**
+ * An acceptor's answer to a {@link LeadMessage}. Its instance is empty.
+ *
+ * PDU = (type, n, promised number, stamp, acceptor, count, then count times (instance length, instance,
+ * proposal number, encoding, data length, data bytes...)).
+ */
+public class LeadPromiseMessage extends BaseMessage {
+    /**
+     * The number the acceptor was asked to promise, or that of a proposal it refused.
+     */
+    public final long n;
+
+    /**
+     * The highest number the acceptor has promised a leader. If this is not {@link #n}, the acceptor refused.
+     */
+    public final long promised;
+
+    /**
+     * The {@link LeadMessage#stamp} of the message this answers, or 0 if the acceptor refused, so it grants no lease.
+     */
+    public final long stamp;
+
+    /**
+     * The id of the acceptor's node, which a leader counts once however the message reaches it.
+     */
+    public final long acceptor;
+
+    /**
+     * The proposals the acceptor had accepted, by instance. Empty if it refused or renewed a lease.
+     */
+    public final Map<String, Proposal<ByteBuffer>> proposals;
+
+    public LeadPromiseMessage(
+            final long n,
+            final long promised,
+            final long stamp,
+            final long acceptor,
+            final Map<String, Proposal<ByteBuffer>> proposals,
+            final SocketAddress addr,
+            final Protocol protocol
+    ) {
+        super(LEAD_PROMISE_MSG, "", addr, protocol);
+        this.n = n;
+        this.promised = promised;
+        this.stamp = stamp;
+        this.acceptor = acceptor;
+        this.proposals = proposals;
+    }
+
+    @Override
+    public int encodedSize() {
+        int size = headerSize() + 28;
+        for (final Map.Entry<String, Proposal<ByteBuffer>> proposal : proposals.entrySet()) {
+            size += 4 + InstanceNames.bytes(proposal.getKey()).length + 13 + proposal.getValue().getValue().limit();
+        }
+        return size;
+    }
+
+    @Override
+    public void encode(final ByteBuffer buffer) throws IOException
+    {
+        putHeader(buffer, n);
+        buffer.putLong(promised);
+        buffer.putLong(stamp);
+        buffer.putLong(acceptor);
+        buffer.putInt(proposals.size());
+        for (final Map.Entry<String, Proposal<ByteBuffer>> proposal : proposals.entrySet()) {
+            final byte[] instance = InstanceNames.bytes(proposal.getKey());
+            buffer.putInt(instance.length);
+            buffer.put(instance);
+            buffer.putLong(proposal.getValue().getN());
+            buffer.put(proposal.getValue().getEncoding());
+            putValue(buffer, proposal.getValue().getValue());
+        }
+    }
+}
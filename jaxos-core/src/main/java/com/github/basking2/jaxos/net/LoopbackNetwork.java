@@ -0,0 +1,175 @@
+package com.github.basking2.jaxos.net;
+
+import org.apache.commons.configuration.Configuration;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connects the {@link ProtocolLoopback}s of one process, so that whole ensembles run in memory.
+ *
+ * Each pair of protocols is joined by a {@link Link} that delays, drops and limits the bandwidth of
+ * the messages between them, as a network would. Links are set per pair with {@link #setLink}
+ * or default to the {@link Link} of the sending protocol.
+ */
+public class LoopbackNetwork {
+
+    private static final LoopbackNetwork DEFAULT = new LoopbackNetwork(new Random());
+
+    private final ConcurrentMap<SocketAddress, ProtocolLoopback> protocols = new ConcurrentHashMap<SocketAddress, ProtocolLoopback>();
+
+    /**
+     * Links set for a sender and receiver, keyed by a list of the two.
+     */
+    private final ConcurrentMap<List<SocketAddress>, Link> links = new ConcurrentHashMap<List<SocketAddress>, Link>();
+
+    private final Random random;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong deliveredBytes = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Build a network whose loss and jitter follow the given seed, so that runs may be repeated.
+     *
+     * @param seed The seed.
+     */
+    public LoopbackNetwork(final long seed) {
+        this(new Random(seed));
+    }
+
+    private LoopbackNetwork(final Random random) {
+        this.random = random;
+    }
+
+    /**
+     * @return The network that protocols built from a configuration join.
+     */
+    public static LoopbackNetwork getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Set the link for messages from one address to another. Messages already sent keep the link they were sent on.
+     *
+     * @param from The sender.
+     * @param to The receiver.
+     * @param link The link, or null to use the sender's default.
+     */
+    public void setLink(final SocketAddress from, final SocketAddress to, final Link link) {
+        final List<SocketAddress> key = Arrays.asList(from, to);
+        if (link == null) {
+            links.remove(key);
+        } else {
+            links.put(key, link);
+        }
+    }
+
+    /**
+     * @return The link set for the sender and receiver, or null.
+     */
+    Link getLink(final SocketAddress from, final SocketAddress to) {
+        return links.get(Arrays.asList(from, to));
+    }
+
+    void bind(final SocketAddress addr, final ProtocolLoopback protocol) throws IOException {
+        if (protocols.putIfAbsent(addr, protocol) != null) {
+            throw new IOException("Address already in use: " + addr);
+        }
+    }
+
+    void unbind(final SocketAddress addr, final ProtocolLoopback protocol) {
+        protocols.remove(addr, protocol);
+    }
+
+    /**
+     * @return The protocol bound to the address, or null.
+     */
+    ProtocolLoopback get(final SocketAddress addr) {
+        return protocols.get(addr);
+    }
+
+    Random getRandom() {
+        return random;
+    }
+
+    void delivered(final int bytes) {
+        delivered.incrementAndGet();
+        deliveredBytes.addAndGet(bytes);
+    }
+
+    void dropped() {
+        dropped.incrementAndGet();
+    }
+
+    /**
+     * @return The messages delivered.
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * @return The bytes of the messages delivered.
+     */
+    public long getDeliveredBytes() {
+        return deliveredBytes.get();
+    }
+
+    /**
+     * @return The messages dropped, by loss or because nothing was bound to receive them.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * How messages from one protocol to another are delayed and dropped.
+     */
+    public static class Link {
+        /**
+         * A link that delivers at once and loses nothing.
+         */
+        public static final Link PERFECT = new Link(0L, 0L, 0.0, 0L);
+
+        final long latencyMicros;
+        final long jitterMicros;
+        final double loss;
+        final long bytesPerSecond;
+
+        /**
+         * @param latencyMicros Microseconds each message takes to arrive.
+         * @param jitterMicros Up to this many more microseconds are added at random to each message.
+         *                     Messages on a link still arrive in the order they were sent.
+         * @param loss The chance, from 0 to 1, that a message is dropped.
+         * @param bytesPerSecond The bandwidth of the link, or 0 for no limit. Messages wait for those before them to be sent.
+         */
+        public Link(final long latencyMicros, final long jitterMicros, final double loss, final long bytesPerSecond) {
+            this.latencyMicros = latencyMicros;
+            this.jitterMicros = jitterMicros;
+            this.loss = loss;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        /**
+         * Build a link from {@code jaxos.loopback.latency.micros}, {@code .jitter.micros},
+         * {@code .loss} and {@code .bandwidth}, which all default to 0.
+         *
+         * @param configuration The configuration.
+         * @return The link.
+         */
+        public static Link fromConfiguration(final Configuration configuration) {
+            return new Link(
+                    configuration.getLong("jaxos.loopback.latency.micros", 0L),
+                    configuration.getLong("jaxos.loopback.jitter.micros", 0L),
+                    configuration.getDouble("jaxos.loopback.loss", 0.0),
+                    configuration.getLong("jaxos.loopback.bandwidth", 0L));
+        }
+    }
+}
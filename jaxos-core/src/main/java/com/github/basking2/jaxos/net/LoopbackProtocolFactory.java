@@ -0,0 +1,32 @@
+package com.github.basking2.jaxos.net;
+
+import com.github.basking2.jaxos.util.BufferPool;
+import org.apache.commons.configuration.Configuration;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+
+/**
+ * Builds a {@link ProtocolLoopback} on the {@link LoopbackNetwork#getDefault() default network}
+ * for each {@code loopback/host:port} bind address.
+ */
+public class LoopbackProtocolFactory implements ProtocolFactory {
+    @Override
+    public String getScheme() {
+        return "loopback";
+    }
+
+    @Override
+    public Protocol build(
+            final InetSocketAddress bind,
+            final Configuration configuration,
+            final List<? extends SocketAddress> acceptors,
+            final List<? extends SocketAddress> learners,
+            final SelectorPool selectorPool,
+            final BufferPool bufferPool
+    ) throws IOException {
+        return new ProtocolLoopback(bind, configuration, acceptors, learners, LoopbackNetwork.getDefault(), selectorPool, bufferPool);
+    }
+}
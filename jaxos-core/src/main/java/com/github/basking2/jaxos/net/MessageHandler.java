@@ -8,4 +8,13 @@ public interface MessageHandler {
     void handlePromise(PromiseMessage msg);
     void handlePropose(ProposeMessage msg);
     void handleAccept(AcceptMessage msg);
+
+    /**
+     * Multi paxos messages. Handlers that do not take part in multi paxos ignore them.
+     */
+    default void handleLead(LeadMessage msg) { }
+    default void handleLeadPromise(LeadPromiseMessage msg) { }
+    default void handleForward(ForwardMessage msg) { }
+    default void handleProposeBatch(ProposeBatchMessage msg) { }
+    default void handleAcceptBatch(AcceptBatchMessage msg) { }
 }
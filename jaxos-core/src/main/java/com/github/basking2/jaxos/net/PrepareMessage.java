@@ -14,21 +14,19 @@ public class PrepareMessage extends BaseMessage {
         this.proposalN = proposalN;
     }
 
+    @Override
+    public int encodedSize() {
+        return headerSize();
+    }
+
     /**
      * The {@link Proposer} shall use this to send a prepare call to the remote server.
      *
      * The remote side will call {@link Acceptor#prepare(String, Long)} on this.
      */
     @Override
-    public ByteBuffer encode() throws IOException
+    public void encode(final ByteBuffer buffer) throws IOException
     {
-        final ByteBuffer buffer = ByteBuffer.allocate(17);
-
-        buffer.put(type); // Put 1 byte.
-        buffer.putInt(instance.length()); // Put 8 bytes.
-        buffer.putLong(proposalN); // Put 8 bytes.
-        buffer.put(instance.getBytes());
-
-        return buffer;
+        putHeader(buffer, proposalN);
     }
 }
@@ -16,38 +16,34 @@ public class PromiseMessage extends BaseMessage {
         this.promise = promise;
     }
 
+    @Override
+    public int encodedSize() {
+        final Proposal<ByteBuffer> acceptedProposal = promise.getProposal();
+
+        if (acceptedProposal == null) {
+            return headerSize() + 12;
+        } else {
+            return headerSize() + 12 + acceptedProposal.getValue().limit();
+        }
+    }
+
     /**
      * @throws IOException
      */
     @Override
-    public ByteBuffer encode() throws IOException
+    public void encode(final ByteBuffer buffer) throws IOException
     {
-
-        final ByteBuffer buffer;
         final Proposal<ByteBuffer> acceptedProposal = promise.getProposal();
 
         if (acceptedProposal == null) {
-            buffer = ByteBuffer.allocate(25+ instance.getBytes().length);
-            buffer.put(type);
-            buffer.putInt(instance.getBytes().length);
-            buffer.putLong(promise.getN());
-            buffer.put(instance.getBytes());
+            putHeader(buffer, promise.getN());
             buffer.putLong(0L);
             buffer.putInt(0);
         } else {
-            final ByteBuffer acceptedBuffer = acceptedProposal.getValue();
-            buffer = ByteBuffer.allocate(25 + instance.getBytes().length + acceptedBuffer.limit());
-            buffer.put(type);
-            buffer.putInt(instance.getBytes().length);
-            buffer.putLong(promise.getN());
-            buffer.put(instance.getBytes());
+            putHeader(buffer, promise.getN(), acceptedProposal.getEncoding());
             buffer.putLong(acceptedProposal.getN());
-            buffer.putInt(acceptedBuffer.limit());
-            acceptedBuffer.position(0);
-            buffer.put(acceptedBuffer);
+            putValue(buffer, acceptedProposal.getValue());
         }
-
-        return buffer;
     }
 
 }
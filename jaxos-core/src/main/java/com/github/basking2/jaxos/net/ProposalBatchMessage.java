@@ -0,0 +1,81 @@
+package com.github.basking2.jaxos.net;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import com.github.basking2.jaxos.paxos.Proposal;
+
+/**
+ * Proposals in many instances with one number, sent as one message. Its instance is empty.
+ *
+ * PDU = (type, n, fields of the subclass, count, then count times (instance length, instance, encoding, data length, data bytes...)).
+ */
+public abstract class ProposalBatchMessage extends BaseMessage {
+    /**
+     * The number of every proposal.
+     */
+    public final long n;
+
+    /**
+     * The proposals, by instance.
+     */
+    public final Map<String, Proposal<ByteBuffer>> proposals;
+
+    protected ProposalBatchMessage(
+            final byte type,
+            final long n,
+            final Map<String, Proposal<ByteBuffer>> proposals,
+            final SocketAddress addr,
+            final Protocol protocol
+    ) {
+        super(type, "", addr, protocol);
+        this.n = n;
+        this.proposals = proposals;
+    }
+
+    @Override
+    public int encodedSize() {
+        int size = headerSize() + fieldsSize() + 4;
+        for (final Map.Entry<String, Proposal<ByteBuffer>> proposal : proposals.entrySet()) {
+            size += entrySize(proposal.getKey(), proposal.getValue());
+        }
+        return size;
+    }
+
+    /**
+     * @return The length of the fields a subclass puts between the header and the proposals.
+     */
+    protected int fieldsSize() {
+        return 0;
+    }
+
+    /**
+     * Put the fields of a subclass, which come between the header and the proposals.
+     */
+    protected void putFields(final ByteBuffer buffer) {
+    }
+
+    /**
+     * @return The bytes one proposal adds to a batch.
+     */
+    static int entrySize(final String instance, final Proposal<ByteBuffer> proposal) {
+        return 4 + InstanceNames.bytes(instance).length + 5 + proposal.getValue().limit();
+    }
+
+    @Override
+    public void encode(final ByteBuffer buffer) throws IOException
+    {
+        putHeader(buffer, n);
+        putFields(buffer);
+        buffer.putInt(proposals.size());
+        for (final Map.Entry<String, Proposal<ByteBuffer>> proposal : proposals.entrySet()) {
+            final byte[] instance = InstanceNames.bytes(proposal.getKey());
+            buffer.putInt(instance.length);
+            buffer.put(instance);
+            buffer.put(proposal.getValue().getEncoding());
+            putValue(buffer, proposal.getValue().getValue());
+        }
+    }
+}
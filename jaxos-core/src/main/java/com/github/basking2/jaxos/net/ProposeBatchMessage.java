@@ -0,0 +1,20 @@
+package com.github.basking2.jaxos.net;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import com.github.basking2.jaxos.paxos.Acceptor;
+import com.github.basking2.jaxos.paxos.Leader;
+import com.github.basking2.jaxos.paxos.Proposal;
+
+/**
+ * A {@link Leader}'s proposals in many instances at once.
+ *
+ * The remote side will call {@link Acceptor#acceptAll(Map)} on this.
+ */
+public class ProposeBatchMessage extends ProposalBatchMessage {
+    public ProposeBatchMessage(final long n, final Map<String, Proposal<ByteBuffer>> proposals, final SocketAddress addr, final Protocol protocol) {
+        super(PROPOSE_BATCH_MSG, n, proposals, addr, protocol);
+    }
+}
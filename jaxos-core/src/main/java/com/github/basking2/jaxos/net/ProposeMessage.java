@@ -15,21 +15,18 @@ public class ProposeMessage extends BaseMessage {
         this.proposal = proposal;
     }
 
+    @Override
+    public int encodedSize() {
+        return headerSize() + 4 + proposal.getValue().limit();
+    }
+
     /**
      * @throws IOException
      */
     @Override
-    public ByteBuffer encode() throws IOException {
-        final ByteBuffer buffer = ByteBuffer.allocate(17 + instance.getBytes().length + proposal.getValue().limit());
-        buffer.put(type);
-        buffer.putInt(instance.getBytes().length);
-        buffer.putLong(proposal.getN());
-        buffer.put(instance.getBytes());
-        buffer.putInt(proposal.getValue().limit());
-        proposal.getValue().position(0);
-        buffer.put(proposal.getValue());
-
-        return buffer;
+    public void encode(final ByteBuffer buffer) throws IOException {
+        putHeader(buffer, proposal.getN(), proposal.getEncoding());
+        putValue(buffer, proposal.getValue());
     }
 
 }
@@ -6,6 +6,7 @@ import com.github.basking2.jaxos.paxos.Proposer;
 
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.util.List;
 
 /**
  * This is the network layer for Jaxos.
@@ -39,6 +40,16 @@ public interface Protocol extends AutoCloseable {
      * @throws IOException
      */
     void sendLearners(AcceptMessage msg) throws IOException;
+
+    /**
+     * Send an already framed {@link AcceptMessage} to all {@link Learner}s.
+     *
+     * The frame is encoded and encrypted once for all learners, and may be shared with other protocols.
+     *
+     * @param frame The frame of an {@link AcceptMessage}.
+     * @throws IOException
+     */
+    void sendLearners(Frame frame) throws IOException;
     
     /**
      * Send a message to all {@link Acceptor}s. 
@@ -48,7 +59,29 @@ public interface Protocol extends AutoCloseable {
      * @throws IOException
      */
     void sendAcceptors(BaseMessage msg) throws IOException;
+
+    /**
+     * Send an already framed message to all {@link Acceptor}s.
+     *
+     * The frame is encoded and encrypted once for all acceptors, and may be shared with other protocols.
+     *
+     * @param frame The frame of a {@link PrepareMessage} or {@link ProposeMessage}.
+     * @throws IOException
+     */
+    void sendAcceptors(Frame frame) throws IOException;
     
+    /**
+     * Send a frame once to a group that every {@link Acceptor} of this protocol receives, such as a multicast group.
+     *
+     * @param frame The frame of a {@link PrepareMessage} or {@link ProposeMessage}.
+     * @return True if the frame was sent to the group. False if this protocol has no group or the frame
+     *         cannot be sent to it, so it must be sent to each acceptor.
+     * @throws IOException If sending fails.
+     */
+    default boolean sendAcceptorGroup(final Frame frame) throws IOException {
+        return false;
+    }
+
     /**
      * Send a message to the address contained in the message object.
      * 
@@ -57,10 +90,45 @@ public interface Protocol extends AutoCloseable {
      */
     void send(BaseMessage msg, SocketAddress addr) throws IOException;
 
+    /**
+     * Send an already framed message to one peer.
+     *
+     * @param frame The frame, which may be shared with other peers and protocols.
+     * @param addr Where to send the frame.
+     * @throws IOException If the frame cannot be sent.
+     */
+    void send(Frame frame, SocketAddress addr) throws IOException;
+
     /**
      * Typically used for quorum calculations.
      *
      * @return
      */
     int numAcceptors();
+
+    /**
+     * @return The addresses of the {@link Acceptor}s this protocol sends to.
+     */
+    List<? extends SocketAddress> getAcceptors();
+
+    /**
+     * @return The addresses of the {@link Learner}s this protocol sends to.
+     */
+    List<? extends SocketAddress> getLearners();
+
+    /**
+     * @return The scheme that addresses of this protocol are written with, such as {@code udp} in {@code udp/host:port}.
+     */
+    String getScheme();
+
+    /**
+     * Report if a message sent to the address now is expected to be delivered without waiting,
+     * such as when a connection to it is established.
+     *
+     * @param addr An acceptor or learner.
+     * @return True if the peer is reachable. Connectionless protocols always return true.
+     */
+    default boolean isConnected(final SocketAddress addr) {
+        return true;
+    }
 }
@@ -0,0 +1,45 @@
+package com.github.basking2.jaxos.net;
+
+import com.github.basking2.jaxos.util.BufferPool;
+import org.apache.commons.configuration.Configuration;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+
+/**
+ * Builds the {@link Protocol} for addresses written with one scheme, such as {@code netty/host:port}.
+ *
+ * Factories are found with {@link java.util.ServiceLoader}, so a jar on the class path adds a scheme by listing
+ * its factory in {@code META-INF/services/com.github.basking2.jaxos.net.ProtocolFactory}.
+ * The {@code udp} and {@code tcp} schemes are built in.
+ */
+public interface ProtocolFactory {
+
+    /**
+     * @return The scheme, such as {@code netty}, that addresses of the protocol are written with.
+     */
+    String getScheme();
+
+    /**
+     * Build and bind a protocol.
+     *
+     * @param bind The address to bind.
+     * @param configuration The configuration.
+     * @param acceptors The acceptors written with this scheme.
+     * @param learners The learners written with this scheme.
+     * @param selectorPool The shared selector threads.
+     * @param bufferPool The shared buffers.
+     * @return The protocol.
+     * @throws IOException If binding fails.
+     */
+    Protocol build(
+            InetSocketAddress bind,
+            Configuration configuration,
+            List<? extends SocketAddress> acceptors,
+            List<? extends SocketAddress> learners,
+            SelectorPool selectorPool,
+            BufferPool bufferPool
+    ) throws IOException;
+}
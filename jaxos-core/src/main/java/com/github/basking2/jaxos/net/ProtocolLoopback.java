@@ -0,0 +1,287 @@
+package com.github.basking2.jaxos.net;
+
+import com.github.basking2.jaxos.util.BufferPool;
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A protocol between ensembles of one process, over a {@link LoopbackNetwork}.
+ *
+ * Messages are encoded, copied and decoded as they would be on a network, but are not encrypted
+ * unless {@code jaxos.loopback.encrypt} is true. Each is delivered on the receiver's selector thread
+ * once its {@link LoopbackNetwork.Link} has delayed it, unless the link drops it.
+ * This measures ensembles without the operating system's network in the way.
+ */
+public class ProtocolLoopback extends AbstractProtocol {
+    private static final Logger LOG = LoggerFactory.getLogger(ProtocolLoopback.class);
+
+    private final InetSocketAddress bind;
+
+    private final LoopbackNetwork network;
+
+    /**
+     * The link to peers that the network sets no link for.
+     */
+    private final LoopbackNetwork.Link link;
+
+    private final boolean encrypt;
+
+    /**
+     * The thread messages to this protocol are delivered on.
+     */
+    private final SelectorPool.SelectorThread thread;
+
+    /**
+     * Messages on their way to each peer.
+     */
+    private final ConcurrentMap<SocketAddress, Pipe> pipes = new ConcurrentHashMap<SocketAddress, Pipe>();
+
+    private volatile boolean closed;
+
+    /**
+     * Build a protocol on the {@link LoopbackNetwork#getDefault() default network}.
+     */
+    public ProtocolLoopback(
+            final InetSocketAddress bind,
+            final Configuration configuration,
+            final List<? extends SocketAddress> acceptors,
+            final List<? extends SocketAddress> learners
+    ) throws IOException {
+        this(bind, configuration, acceptors, learners, LoopbackNetwork.getDefault(), null, null);
+    }
+
+    /**
+     * @param network The network to join.
+     * @param selectorPool The shared pool or null to build one with a single thread for this protocol.
+     * @param bufferPool The shared pool or null to build one for this protocol.
+     * @throws IOException If another protocol is bound to the address on the network.
+     */
+    public ProtocolLoopback(
+            final InetSocketAddress bind,
+            final Configuration configuration,
+            final List<? extends SocketAddress> acceptors,
+            final List<? extends SocketAddress> learners,
+            final LoopbackNetwork network,
+            final SelectorPool selectorPool,
+            final BufferPool bufferPool
+    ) throws IOException {
+        super(bind, configuration, acceptors, learners, selectorPool, bufferPool);
+        this.bind = bind;
+        this.network = network;
+        this.link = LoopbackNetwork.Link.fromConfiguration(configuration);
+        this.encrypt = configuration.getBoolean("jaxos.loopback.encrypt", false);
+        this.thread = this.selectorPool.next();
+        network.bind(bind, this);
+    }
+
+    /**
+     * Copy a frame and send it to the protocol bound to the address.
+     *
+     * @throws IOException If no protocol is bound to the address.
+     */
+    private void transmit(final ByteBuffer data, final SocketAddress addr, final boolean encrypted) throws IOException {
+        final ProtocolLoopback to = network.get(addr);
+        if (to == null) {
+            throw new IOException("Nothing is bound to " + addr);
+        }
+
+        final ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate()).flip();
+        pipes.computeIfAbsent(addr, Pipe::new).send(new Packet(copy, encrypted), to);
+    }
+
+    /**
+     * Packets are copied before they cross their link.
+     */
+    @Override
+    protected boolean writeCopies() {
+        return true;
+    }
+
+    @Override
+    protected void write(final ByteBuffer encrypted, final SocketAddress addr) throws IOException {
+        transmit(encrypted, addr, true);
+    }
+
+    @Override
+    protected void writePlain(final ByteBuffer plain, final SocketAddress addr) throws IOException {
+        if (encrypt) {
+            super.writePlain(plain, addr);
+        } else {
+            transmit(plain, addr, false);
+        }
+    }
+
+    @Override
+    protected void writeFrame(final Frame frame, final SocketAddress addr) throws IOException {
+        if (encrypt) {
+            super.writeFrame(frame, addr);
+        } else {
+            transmit(frame.encoded(), addr, false);
+        }
+    }
+
+    /**
+     * Decode a message that has crossed its link.
+     */
+    private void receive(final Packet packet, final SocketAddress from) {
+        if (closed) {
+            network.dropped();
+            return;
+        }
+
+        try {
+            final ByteBuffer data = packet.data;
+            network.delivered(data.limit());
+            if (packet.encrypted) {
+                data.limit(cipherUtil.decryptInPlace(data, 0, data.limit()));
+            }
+            BaseMessage.decode(data, from, this, getMessageHandler());
+        } catch (final IOException e) {
+            LOG.error("Decoding message from " + from, e);
+        }
+    }
+
+    /**
+     * A peer is connected while a protocol is bound to its address.
+     */
+    @Override
+    public boolean isConnected(final SocketAddress addr) {
+        return network.get(addr) != null;
+    }
+
+    @Override
+    protected SocketAddress getBoundAddress() {
+        return bind;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getScheme() {
+        return "loopback";
+    }
+
+    @Override
+    public void close() throws Exception {
+        closed = true;
+        network.unbind(bind, this);
+        super.close();
+    }
+
+    private static class Packet {
+        final ByteBuffer data;
+        final boolean encrypted;
+
+        /**
+         * When, by {@link System#nanoTime()}, the packet arrives.
+         */
+        long arrival;
+
+        Packet(final ByteBuffer data, final boolean encrypted) {
+            this.data = data;
+            this.encrypted = encrypted;
+        }
+    }
+
+    /**
+     * The messages crossing the link to one peer, in the order they were sent.
+     */
+    private class Pipe {
+        final SocketAddress addr;
+
+        final Queue<Packet> packets = new ArrayDeque<Packet>();
+
+        /**
+         * When the link has sent every message given to it and the last message arrives.
+         */
+        long sent;
+        long arrived;
+
+        /**
+         * True while a delivery is scheduled on the receiver's thread.
+         */
+        boolean scheduled;
+
+        Pipe(final SocketAddress addr) {
+            this.addr = addr;
+        }
+
+        synchronized void send(final Packet packet, final ProtocolLoopback to) {
+            final LoopbackNetwork.Link link = linkTo();
+
+            if (link.loss > 0 && network.getRandom().nextDouble() < link.loss) {
+                network.dropped();
+                return;
+            }
+
+            final long now = System.nanoTime();
+            final long start = Math.max(now, sent);
+            sent = link.bytesPerSecond > 0
+                    ? start + TimeUnit.SECONDS.toNanos(packet.data.limit()) / link.bytesPerSecond
+                    : start;
+
+            long arrival = sent + TimeUnit.MICROSECONDS.toNanos(link.latencyMicros);
+            if (link.jitterMicros > 0) {
+                arrival += (long) (network.getRandom().nextDouble() * TimeUnit.MICROSECONDS.toNanos(link.jitterMicros));
+            }
+            packet.arrival = arrived = Math.max(arrival, arrived);
+
+            packets.add(packet);
+            if (!scheduled) {
+                scheduled = true;
+                schedule(to, packet.arrival - now);
+            }
+        }
+
+        private LoopbackNetwork.Link linkTo() {
+            final LoopbackNetwork.Link set = network.getLink(bind, addr);
+            return set == null ? link : set;
+        }
+
+        private void schedule(final ProtocolLoopback to, final long delay) {
+            if (delay > 0) {
+                to.thread.schedule(delay, TimeUnit.NANOSECONDS, () -> deliver(to));
+            } else {
+                to.thread.executeLater(() -> deliver(to));
+            }
+        }
+
+        /**
+         * Deliver the packets that have arrived, on the receiver's thread.
+         */
+        private void deliver(final ProtocolLoopback to) {
+            final List<Packet> arrived = new ArrayList<Packet>();
+            synchronized (this) {
+                final long now = System.nanoTime();
+                while (!packets.isEmpty() && packets.peek().arrival - now <= 0) {
+                    arrived.add(packets.poll());
+                }
+
+                if (packets.isEmpty()) {
+                    scheduled = false;
+                } else {
+                    schedule(to, packets.peek().arrival - now);
+                }
+            }
+
+            for (final Packet packet : arrived) {
+                to.receive(packet, bind);
+            }
+        }
+    }
+}
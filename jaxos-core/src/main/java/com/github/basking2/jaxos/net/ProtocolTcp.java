@@ -1,32 +1,71 @@
 package com.github.basking2.jaxos.net;
 
+import com.github.basking2.jaxos.util.BufferPool;
 import org.apache.commons.configuration.Configuration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.InvalidParameterSpecException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  */
 public class ProtocolTcp extends AbstractProtocol {
     private final Logger LOG = LoggerFactory.getLogger(ProtocolTcp.class);
     private final ServerSocketChannel socketChannel;
-    private MessageHandler messageHandler;
     private ConnectionsMap connections;
-    private final Thread receiver;
+
+    /**
+     * Second connections to configured peers that carry only large frames.
+     */
+    private ConnectionsMap bulkConnections;
+
+    /**
+     * Frames of at least this many bytes to a configured peer go on its bulk connection, or 0 to use one connection.
+     */
+    private final int bulkBytes;
+
+    /**
+     * The configured acceptors and learners.
+     */
+    private final Set<SocketAddress> peers;
+    private final SelectionKey acceptKey;
+
+    /**
+     * Set when the protocol is closing so connections do not try to reconnect.
+     */
+    private volatile boolean closing;
+
+    /**
+     * How many bytes may wait to be written to a single connection before sends to it fail.
+     */
+    private final long maxQueuedBytes;
+
+    /**
+     * The longest frame read, with its length and encryption. A peer sending a longer one is disconnected.
+     */
+    private final int maxFrameBytes;
+
+    /**
+     * How many bytes may wait for a connection to be established.
+     */
+    private final long maxConnectingBytes;
+
+    /**
+     * Milliseconds to wait for a connection to be established.
+     */
+    private final long connectTimeout;
+
+    /**
+     * The first and largest delays, in milliseconds, before reconnecting to a peer.
+     */
+    private final long reconnectMin;
+    private final long reconnectMax;
 
     public ProtocolTcp(
             final InetSocketAddress bind,
@@ -34,164 +73,593 @@ public class ProtocolTcp extends AbstractProtocol {
             final List<? extends SocketAddress> acceptors,
             final List<? extends SocketAddress> learners
     ) throws IOException {
-        super(bind, configuration, acceptors, learners);
+        this(bind, configuration, acceptors, learners, null, null);
+    }
+
+    /**
+     * @param selectorPool The threads to accept, read and write on, or null to start one for this protocol.
+     * @param bufferPool Where buffers are taken from, or null to build a pool for this protocol.
+     */
+    public ProtocolTcp(
+            final InetSocketAddress bind,
+            final Configuration configuration,
+            final List<? extends SocketAddress> acceptors,
+            final List<? extends SocketAddress> learners,
+            final SelectorPool selectorPool,
+            final BufferPool bufferPool
+    ) throws IOException {
+        super(bind, configuration, acceptors, learners, selectorPool, bufferPool);
 
+        this.maxQueuedBytes = configuration.getLong("jaxos.tcp.queue.bytes", 16L * 1024 * 1024);
+        this.maxConnectingBytes = configuration.getLong("jaxos.tcp.connect.queue.bytes", 1024L * 1024);
+        this.maxFrameBytes = 4 + cipherUtil.getOutputSize(configuration.getInt("jaxos.tcp.frame.bytes", 16 * 1024 * 1024));
+        this.connectTimeout = configuration.getLong("jaxos.tcp.connect.timeout", 5000L);
+        this.reconnectMin = Math.max(1L, configuration.getLong("jaxos.tcp.reconnect.min", 100L));
+        this.reconnectMax = Math.max(reconnectMin, configuration.getLong("jaxos.tcp.reconnect.max", 30000L));
+        this.bulkBytes = configuration.getInt("jaxos.tcp.bulk.bytes", 65536);
+        this.connections = new ConnectionsMap();
+        this.bulkConnections = new ConnectionsMap();
+        this.peers = new HashSet<SocketAddress>(acceptors);
+        this.peers.addAll(learners);
         this.socketChannel = ServerSocketChannel.open().bind(bind);
         this.socketChannel.configureBlocking(false);
-        this.socketChannel.register(this.selector, SelectionKey.OP_ACCEPT);
-        this.connections = new ConnectionsMap();
-        this.receiver = new Thread() {
-            @Override
-            public void run() {
-                while (selector.isOpen()) {
-                    try {
-                        final int ready = selector.select();
-                        if (ready > 0) {
-                            final Set<SelectionKey> keys = selector.selectedKeys();
-                            for (final SelectionKey key : keys) {
-                                if (key.isAcceptable()) {
-                                    try {
-                                        final ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
-                                        final SocketChannel channel = serverChannel.accept();
-                                        LOG.info("Accepted connection {}", channel.getRemoteAddress());
-                                        connections.put(channel.getRemoteAddress(), channel);
-                                    } catch (final IOException e) {
-                                        LOG.error("Accepting connection", e);
-                                    }
-                                }
-                                else if (key.isReadable()) {
-                                    final SocketChannel sc = (SocketChannel) key.channel();
-                                    final KeyAttachment msg = (KeyAttachment)key.attachment();
-                                    recv(sc, msg);
-                                }
-                            }
-
-                            keys.clear();
-                        }
-                    } catch (IOException e) {
-                        LOG.error(e.getMessage(), e);
-                    }
-                }
+        this.acceptKey = this.selectorPool.register(this.socketChannel, SelectionKey.OP_ACCEPT, key -> {
+            if (key.isAcceptable()) {
+                accept();
             }
-        };
-        this.receiver.setDaemon(true);
-        this.receiver.start();
-    }
+        });
 
-    private void populateMsg(final SocketChannel sc, final KeyAttachment msg) throws IOException {
-        // We need to get the message length.
-        if (msg.length <= 0) {
-            final int read = sc.read(msg.buffer);
-            if (read < 0) {
-                // Receive error.
-                LOG.error("Read negative length. Closing connection to {}.", sc.getRemoteAddress());
-                sc.close();
-            } else if (msg.buffer.position() >= 4){
-                msg.length = msg.buffer.getInt(0);
-
-                // If we don't nave enough room in the current buffer, resize it.
-                if (msg.length > msg.buffer.capacity()) {
-                    ByteBuffer old = msg.buffer;
-                    msg.buffer = ByteBuffer.allocate(msg.length);
-                    old.rewind();
-                    msg.buffer.put(old);
-                } else {
-                    msg.buffer.limit(msg.length);
-                }
-            }
-        }
-        // We have the length. Just read into the buffer until we have the data.
-        else if (msg.buffer.position() != msg.length){
-            final int read = sc.read(msg.buffer);
-            if (read < 0) {
-                sc.close();
+        // Connect to every peer now so the first messages do not wait for connections.
+        for (final SocketAddress addr : peers) {
+            connections.get(addr);
+            if (bulkBytes > 0) {
+                bulkConnections.get(addr);
             }
         }
     }
 
-    private void processMsg(final SocketChannel sc, final KeyAttachment msg) throws IOException, NoSuchPaddingException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, IllegalBlockSizeException, BadPaddingException, InvalidParameterSpecException, InvalidKeyException, InvalidKeySpecException {
-        if (msg.buffer.remaining() == 0) {
-            final SocketAddress addr = sc.getRemoteAddress();
-            final byte[] buffer = cipherUtil.decrypt(msg.buffer.array(), 4, msg.length-4);
-            final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
-            BaseMessage.decode(byteBuffer, addr, this, messageHandler);
-            msg.reset();
+    /**
+     * Accept a connection. It is registered with the next thread of the {@link SelectorPool}.
+     */
+    private void accept() {
+        try {
+            final SocketChannel channel = socketChannel.accept();
+            if (channel != null) {
+                LOG.info("Accepted connection {}", channel.getRemoteAddress());
+                connections.put(channel.getRemoteAddress(), channel);
+            }
+        } catch (final IOException e) {
+            LOG.error("Accepting connection", e);
         }
     }
 
-    private void recv(final SocketChannel sc, final KeyAttachment msg) {
-        try {
-            populateMsg(sc, msg);
-            processMsg(sc, msg);
-        } catch (final Throwable t) {
-            LOG.error(t.getMessage(), t);
-        }
+    /**
+     * Decrypt and decode a whole frame.
+     *
+     * @param addr The remote address the frame came from.
+     * @param buffer The buffer holding the frame.
+     * @param offset The offset of the frame, starting with its length.
+     * @param length The length of the frame, including its length.
+     * @throws IOException
+     */
+    private void processMsg(final SocketAddress addr, final ByteBuffer buffer, final int offset, final int length) throws IOException {
+        final int plainLength = cipherUtil.decryptInPlace(buffer, offset + 4, length - 4);
+        final ByteBuffer byteBuffer = buffer.duplicate();
+        byteBuffer.limit(offset + 4 + plainLength).position(offset + 4);
+        BaseMessage.decode(byteBuffer.slice(), addr, this, getMessageHandler());
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void setMessageHandler(MessageHandler messageHandler) {
-        this.messageHandler = messageHandler;
+    public String getScheme() {
+        return "tcp";
     }
 
+    /**
+     * A peer is connected once its connection is established, not while connecting or waiting to reconnect.
+     */
     @Override
-    public void send(final BaseMessage msg, final SocketAddress addr) throws IOException {
+    public boolean isConnected(final SocketAddress addr) {
+        return connections.isConnected(addr);
+    }
 
-        final byte[] encryptedData;
+    @Override
+    protected SocketAddress getBoundAddress() {
         try {
-            final ByteBuffer buffer = msg.encode();
-            encryptedData = cipherUtil.encrypt(buffer.array(), 0, buffer.position());
-        } catch (NoSuchPaddingException | NoSuchAlgorithmException | InvalidKeySpecException | InvalidKeyException| BadPaddingException| IllegalBlockSizeException| InvalidParameterSpecException| InvalidAlgorithmParameterException e) {
-            throw new IOException("Encrypting message", e);
+            return socketChannel.getLocalAddress();
+        } catch (final IOException e) {
+            return null;
         }
+    }
 
-        final SocketChannel chan = connections.get(addr);
+    /**
+     * Queue the frame behind any others to the same address.
+     *
+     * The frame is written immediately if the connection is up and nothing is queued. What cannot
+     * be written is left for its selector thread to write when the connection is writable.
+     *
+     * Large frames to a configured peer are queued on a second connection, so that small frames
+     * are not held up behind them. Frames on different connections may arrive in any order.
+     *
+     * @throws IOException If the connection is closed or its queue is full.
+     */
+    @Override
+    protected void write(final ByteBuffer encrypted, final SocketAddress addr) throws IOException {
+        final Connection connection = bulkBytes > 0 && encrypted.remaining() >= bulkBytes && peers.contains(addr)?
+                bulkConnections.get(addr) :
+                connections.get(addr);
 
-        final ByteBuffer marshalled = ByteBuffer.allocate(4 + encryptedData.length);
-        marshalled.putInt(4+encryptedData.length).put(encryptedData).flip();
-        chan.write(marshalled);
-    }
+        // The length prefix is written ahead of the shared encrypted frame.
+        final ByteBuffer length = ByteBuffer.allocate(4);
+        length.putInt(4 + encrypted.remaining()).flip();
 
+        connection.send(length, encrypted);
+    }
 
     /**
      * {@inheritDoc}
      */
     @Override
     public void close() throws Exception {
-        super.close();
+        closing = true;
+        acceptKey.cancel();
 
         if (socketChannel.isOpen()) {
             socketChannel.close();
         }
 
-        receiver.join();
+        connections.closeAll();
+        bulkConnections.closeAll();
+
+        super.close();
     }
 
-    static class KeyAttachment {
-        public ByteBuffer buffer;
+    /**
+     * A connection with the partial frame being read from it and the frames waiting to be written to it.
+     *
+     * Connections opened to a configured acceptor or learner are kept up. When connecting fails or the
+     * connection is lost, it is retried with exponential backoff until the protocol is closed.
+     * Frames queued when a connection fails are dropped. Other connections are closed when they fail.
+     *
+     * The channel is only opened, connected and replaced on this connection's selector thread.
+     */
+    private class Connection implements SelectorPool.Handler {
+        final SocketAddress addr;
+
+        /**
+         * The map this connection is in.
+         */
+        final ConnectionsMap map;
+
+        /**
+         * If true, reconnect when the connection fails.
+         */
+        final boolean reconnect;
+
+        /**
+         * The thread that every channel of this connection is registered with.
+         */
+        final SelectorPool.SelectorThread thread;
+
+        /**
+         * The current channel. This is replaced when reconnecting.
+         */
+        SocketChannel channel;
+
+        /**
+         * Set by the selector thread once {@link #channel} is registered.
+         */
+        SelectionKey key;
+
+        /**
+         * True until {@link #channel} is connected. Frames are queued but not written.
+         */
+        boolean connecting;
+
+        volatile boolean closed;
+
+        /**
+         * How long to wait before reconnecting after the next failure.
+         */
+        long backoff = reconnectMin;
+
+        /**
+         * The pending connect timeout or reconnect, if any.
+         */
+        SelectorPool.Timer timer;
+
+        /**
+         * Bytes read but not yet decoded, from position 0 to the buffer's position.
+         *
+         * This is taken from the {@link BufferPool} when there is something to read and returned
+         * when every frame in it is decoded, so idle connections hold no buffer.
+         * It is only used by {@link #thread}.
+         */
+        ByteBuffer in;
+
+        /**
+         * Buffers waiting to be written, in order.
+         */
+        final Deque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+
+        /**
+         * Used to gather queued buffers into one write.
+         */
+        final ByteBuffer[] gather = new ByteBuffer[64];
+
+        /**
+         * The sum of bytes remaining in {@link #out}.
+         */
+        long queuedBytes;
+
+        /**
+         * Wrap an accepted channel.
+         */
+        Connection(final ConnectionsMap map, final SocketAddress addr, final SocketChannel channel) throws IOException {
+            this.map = map;
+            this.addr = addr;
+            this.reconnect = false;
+            this.thread = selectorPool.next();
+            this.channel = channel;
+            this.channel.configureBlocking(false);
+
+            register(channel, SelectionKey.OP_READ);
+        }
+
+        /**
+         * Start connecting to an address without waiting for the connection.
+         *
+         * @param reconnect If true, keep reconnecting until closed.
+         */
+        Connection(final ConnectionsMap map, final SocketAddress addr, final boolean reconnect) {
+            this.map = map;
+            this.addr = addr;
+            this.reconnect = reconnect;
+            this.thread = selectorPool.next();
+            this.connecting = true;
+
+            thread.execute(this::connect);
+        }
+
+        /**
+         * Open a new channel and start connecting it. This runs on {@link #thread}.
+         */
+        private synchronized void connect() {
+            if (closed) {
+                return;
+            }
+
+            final SocketChannel channel;
+            try {
+                channel = SocketChannel.open();
+            } catch (final IOException e) {
+                failed(this.channel, e);
+                return;
+            }
+
+            this.channel = channel;
+            this.key = null;
+            this.connecting = true;
+            releaseIn();
+
+            try {
+                channel.configureBlocking(false);
+                if (channel.connect(addr)) {
+                    register(channel, SelectionKey.OP_READ);
+                    connected();
+                } else {
+                    register(channel, SelectionKey.OP_CONNECT);
+                    timer = thread.schedule(connectTimeout, TimeUnit.MILLISECONDS, () -> timedOut(channel));
+                }
+            } catch (final IOException e) {
+                failed(channel, e);
+            }
+        }
+
+        private synchronized void timedOut(final SocketChannel channel) {
+            if (connecting) {
+                failed(channel, new IOException("Timed out after " + connectTimeout + " ms."));
+            }
+        }
+
+        /**
+         * Register a channel. Connections are built under the connections lock, so do not wait for a selector thread.
+         */
+        private void register(final SocketChannel channel, final int ops) {
+            thread.registerAsync(channel, ops, this).whenComplete((key, t) -> {
+                if (t != null) {
+                    failed(channel, t);
+                } else {
+                    registered(channel, key);
+                }
+            });
+        }
+
+        private synchronized void registered(final SocketChannel channel, final SelectionKey key) {
+            if (channel != this.channel) {
+                key.cancel();
+                return;
+            }
+
+            this.key = key;
+            updateInterest();
+        }
+
+        private synchronized void connected() {
+            LOG.info("Connected to {}.", addr);
+
+            connecting = false;
+            backoff = reconnectMin;
+            if (timer != null) {
+                timer.cancel();
+                timer = null;
+            }
+
+            flush();
+        }
 
         /**
-         * The length of the whole message, including the 4 bytes to store this integer.
+         * Close the failed channel and, if this reconnects, schedule a new connection.
          *
-         * Thus the minimum value of a valid message is 4.
+         * @param failed The channel that failed. If this was already replaced nothing is done.
+         */
+        private synchronized void failed(final SocketChannel failed, final Throwable t) {
+            if (closed || failed != channel) {
+                return;
+            }
+
+            if (!reconnect || closing) {
+                if (!closing) {
+                    LOG.error("Connection to " + addr + " failed.", t);
+                }
+                close();
+                return;
+            }
+
+            // Only the first failure in a row is worth a warning.
+            if (backoff == reconnectMin) {
+                LOG.warn("Connection to {} failed. Reconnecting in {} ms. {}", addr, backoff, t.getMessage());
+            } else {
+                LOG.debug("Connection to {} failed. Reconnecting in {} ms. {}", addr, backoff, t.getMessage());
+            }
+
+            closeChannel();
+            if (timer != null) {
+                timer.cancel();
+            }
+            timer = thread.schedule(backoff, TimeUnit.MILLISECONDS, this::connect);
+            backoff = Math.min(backoff * 2, reconnectMax);
+        }
+
+        /**
+         * Set the interest set from the connection's state.
+         */
+        private synchronized void updateInterest() {
+            if (key == null || !key.isValid()) {
+                return;
+            }
+
+            final int ops;
+            if (connecting) {
+                ops = SelectionKey.OP_CONNECT;
+            } else if (out.isEmpty()) {
+                ops = SelectionKey.OP_READ;
+            } else {
+                ops = SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+            }
+
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+                if (Thread.currentThread() != thread) {
+                    key.selector().wakeup();
+                }
+            }
+        }
+
+        @Override
+        public void ready(final SelectionKey key) {
+            if (key.isConnectable()) {
+                finishConnect((SocketChannel)key.channel());
+            }
+
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+
+            if (key.isValid() && key.isReadable()) {
+                recv((SocketChannel)key.channel());
+            }
+        }
+
+        private synchronized void finishConnect(final SocketChannel channel) {
+            try {
+                if (channel.finishConnect()) {
+                    connected();
+                }
+            } catch (final IOException e) {
+                failed(channel, e);
+            }
+        }
+
+        /**
+         * Read what is available and process every whole frame received.
          */
-        public int length;
+        void recv(final SocketChannel channel) {
+            if (in == null) {
+                in = bufferPool.acquire(bufferPool.getMinBufferSize());
+            }
+
+            try {
+                final int read = channel.read(in);
+                if (read < 0) {
+                    LOG.info("Connection closed by {}.", addr);
+                    if (reconnect) {
+                        failed(channel, new IOException("Connection closed by peer."));
+                    } else {
+                        close();
+                    }
+                    return;
+                }
+
+                in.flip();
 
-        KeyAttachment() {
-            reset();
+                while (in.remaining() >= 4) {
+                    final int length = in.getInt(in.position());
+                    if (length < 4 || length > maxFrameBytes) {
+                        // Past the limit, a corrupt or hostile length would have a buffer of any size allocated.
+                        throw new IOException("Invalid frame length " + length + " from " + addr);
+                    }
+
+                    if (in.remaining() < length) {
+                        // Make room for the rest of a large frame.
+                        if (length > in.capacity()) {
+                            final ByteBuffer larger = bufferPool.acquire(length);
+                            larger.put(in).flip();
+                            bufferPool.release(in);
+                            in = larger;
+                        }
+                        break;
+                    }
+
+                    final int offset = in.position();
+                    in.position(offset + length);
+                    processMsg(addr, in, offset, length);
+                }
+
+                in.compact();
+
+                if (in.position() == 0) {
+                    releaseIn();
+                }
+            } catch (final ClosedChannelException e) {
+                LOG.debug("Connection to {} was closed while reading.", addr);
+            } catch (final Throwable t) {
+                failed(channel, t);
+            }
         }
 
-        public void reset() {
-            buffer = ByteBuffer.allocate(1024);
-            length = -1;
+        private void releaseIn() {
+            if (in != null) {
+                bufferPool.release(in);
+                in = null;
+            }
+        }
+
+        /**
+         * Queue and try to write the buffers.
+         *
+         * While connecting at most {@code jaxos.tcp.connect.queue.bytes} are queued.
+         */
+        synchronized void send(final ByteBuffer ... buffers) throws IOException {
+            if (closed) {
+                throw new IOException("Connection to " + addr + " is closed.");
+            }
+
+            long size = 0;
+            for (final ByteBuffer buffer : buffers) {
+                size += buffer.remaining();
+            }
+
+            if (size > maxFrameBytes) {
+                throw new IOException("Frame of " + size + " bytes to " + addr + " is longer than peers read.");
+            }
+
+            // Always allow one frame, no matter how large, on an empty queue.
+            final long max = connecting ? maxConnectingBytes : maxQueuedBytes;
+            if (queuedBytes > 0 && queuedBytes + size > max) {
+                throw new IOException("Outbound queue to " + addr + " is full with " + queuedBytes + " bytes.");
+            }
+
+            final boolean wasEmpty = out.isEmpty();
+
+            for (final ByteBuffer buffer : buffers) {
+                out.add(buffer);
+            }
+            queuedBytes += size;
+
+            // If others are queued, the selector thread is already waiting to write or to connect.
+            if (wasEmpty) {
+                flush();
+            }
+        }
+
+        /**
+         * Write as much as the channel will take, gathering many queued buffers into each write.
+         */
+        synchronized void flush() {
+            if (connecting || closed) {
+                return;
+            }
+
+            try {
+                while (!out.isEmpty()) {
+                    int count = 0;
+                    for (final ByteBuffer buffer : out) {
+                        gather[count++] = buffer;
+                        if (count == gather.length) {
+                            break;
+                        }
+                    }
+
+                    final long written = channel.write(gather, 0, count);
+                    queuedBytes -= written;
+                    Arrays.fill(gather, 0, count, null);
+
+                    while (!out.isEmpty() && !out.peek().hasRemaining()) {
+                        out.poll();
+                    }
+
+                    if (written == 0) {
+                        break;
+                    }
+                }
+
+                updateInterest();
+            } catch (final IOException e) {
+                failed(channel, e);
+            }
+        }
+
+        /**
+         * Close the channel and drop what is queued. A partly written frame cannot be resumed on a new channel.
+         */
+        private synchronized void closeChannel() {
+            if (!out.isEmpty()) {
+                LOG.debug("Dropping {} bytes queued for {}.", queuedBytes, addr);
+            }
+
+            out.clear();
+            queuedBytes = 0;
+            connecting = true;
+            key = null;
+
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (final IOException e) {
+                    // Nop.
+                }
+            }
+        }
+
+        void close() {
+            map.remove(addr, this);
+
+            synchronized (this) {
+                closed = true;
+                if (timer != null) {
+                    timer.cancel();
+                }
+                closeChannel();
+            }
         }
     }
 
 
     private class ConnectionsMap {
-        private Map<SocketAddress, SocketChannel> connections = new HashMap<SocketAddress, SocketChannel>();
+        private Map<SocketAddress, Connection> connections = new HashMap<SocketAddress, Connection>();
 
         public boolean containsKey(final SocketAddress addr) {
             synchronized (connections) {
@@ -200,38 +668,68 @@ public class ProtocolTcp extends AbstractProtocol {
         }
 
         public void put(final SocketAddress addr, final SocketChannel chan) throws IOException {
+            final Connection other;
             synchronized(connections) {
-                chan.configureBlocking(false);
-                chan.register(selector, SelectionKey.OP_READ, new KeyAttachment());
-                final SocketChannel other = connections.put(addr, chan);
-                if (other != null) {
-                    other.close();
+                other = connections.put(addr, new Connection(this, addr, chan));
+            }
+
+            // Close outside the lock, as closing a connection removes it from this map.
+            if (other != null) {
+                other.close();
+            }
+        }
+
+        public void remove(final SocketAddress addr, final Connection connection) {
+            synchronized (connections) {
+                if (connections.get(addr) == connection) {
+                    connections.remove(addr);
                 }
             }
         }
 
-        public SocketChannel get(final SocketAddress addr) throws IOException {
+        /**
+         * @return True if there is an established connection to the address.
+         */
+        public boolean isConnected(final SocketAddress addr) {
+            final Connection connection;
             synchronized (connections) {
-                final SocketChannel chan;
-                if (connections.containsKey(addr)) {
-                    chan = connections.get(addr);
-                } else {
-                    chan = SocketChannel.open(addr);
-                    chan.configureBlocking(false);
-                    chan.register(selector, SelectionKey.OP_READ, new KeyAttachment());
-                    final SocketChannel other = connections.put(addr, chan);
-
-                    try {
-                        if (other != null) {
-                            other.close();
-                        }
-                    } catch (IOException e) {
-                        // Nop.
-                    }
+                connection = connections.get(addr);
+            }
+
+            if (connection == null) {
+                return false;
+            }
 
+            synchronized (connection) {
+                return !connection.closed && !connection.connecting;
+            }
+        }
+
+        /**
+         * Return the connection to an address, starting one if there is none.
+         *
+         * This never waits for a connection to be established. Connections to configured
+         * acceptors and learners reconnect when they fail; others are replaced on the next call.
+         */
+        public Connection get(final SocketAddress addr) {
+            synchronized (connections) {
+                Connection connection = connections.get(addr);
+                if (connection == null || connection.closed) {
+                    connection = new Connection(this, addr, peers.contains(addr));
+                    connections.put(addr, connection);
                 }
+                return connection;
+            }
+        }
+
+        public void closeAll() {
+            final List<Connection> all;
+            synchronized (connections) {
+                all = new ArrayList<Connection>(connections.values());
+            }
 
-                return chan;
+            for (final Connection connection : all) {
+                connection.close();
             }
         }
     }
@@ -3,12 +3,14 @@ package com.github.basking2.jaxos.net;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.util.List;
-import java.util.Set;
 
+import com.github.basking2.jaxos.util.BufferPool;
 import org.apache.commons.configuration.Configuration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,10 +31,41 @@ import org.slf4j.LoggerFactory;
 public class ProtocolUdp extends AbstractProtocol {
 
 	private final Logger LOG = LoggerFactory.getLogger(ProtocolUdp.class);
-	private final DatagramChannel datagramChannel;
-	private MessageHandler messageHandler;
 
-	private final Thread receiver;
+	/**
+	 * Channels bound to the same address. There is more than one only if {@code jaxos.udp.sockets}
+	 * is greater than one and the platform supports {@code SO_REUSEPORT}.
+	 */
+	protected final DatagramChannel[] datagramChannels;
+
+	private final SelectionKey[] keys;
+
+	/**
+	 * The most plain text bytes of messages sent in one datagram. Larger messages are fragmented.
+	 */
+	private final int frameBytes;
+
+	private final Fragmenter fragmenter;
+
+	/**
+	 * Acknowledges reliable datagrams received, and resends those sent if {@link #reliable}.
+	 */
+	private final ReliableDelivery reliableDelivery;
+
+	/**
+	 * If true, datagrams are numbered and resent until acknowledged.
+	 */
+	private final boolean reliable;
+
+	/**
+	 * The largest datagram received.
+	 */
+	private static final int MAX_DATAGRAM_SIZE = 29 + BaseMessage.MAX_DATA_SIZE;
+
+	/**
+	 * The most datagrams read from one channel before its selector thread serves its other channels.
+	 */
+	private static final int MAX_DRAIN = 1024;
 
 	/**
      * @param bind The address to bind.
@@ -47,75 +80,243 @@ public class ProtocolUdp extends AbstractProtocol {
 			final List<? extends SocketAddress> acceptors,
 			final List<? extends SocketAddress> learners
 			) throws IOException {
-        super(bind, configuration, acceptors, learners);
-		this.datagramChannel = DatagramChannel.open().bind(bind);
-		this.datagramChannel.configureBlocking(false);
-		this.datagramChannel.register(this.selector, SelectionKey.OP_READ);
-		this.receiver = new Thread() {
-			@Override
-			public void run() {
-				while (selector.isOpen()) {
-					try {
-						final int ready = selector.select();
-						if (ready > 0) {
-							final Set<SelectionKey> keys = selector.selectedKeys();
-							for (final SelectionKey key : keys) {
-								if (key.isReadable()) {
-									if (key.channel() instanceof DatagramChannel) {
-									    recv((DatagramChannel)key.channel());
-									}
-								}
-							}
-							
-							keys.clear();
+		this(bind, configuration, acceptors, learners, null, null);
+	}
+
+	/**
+     * @param bind The address to bind.
+	 * @param configuration This configuration is used to build description bits.
+	 * @param acceptors The list of acceptors to consult.
+	 * @param learners The list of the learners to consult.
+	 * @param selectorPool The threads to receive on, or null to start one for this protocol.
+	 * @param bufferPool Where buffers are taken from, or null to build a pool for this protocol.
+	 * @throws IOException If binding the server socket fails.
+	 */
+	public ProtocolUdp(
+			final InetSocketAddress bind,
+			final Configuration configuration,
+			final List<? extends SocketAddress> acceptors,
+			final List<? extends SocketAddress> learners,
+			final SelectorPool selectorPool,
+			final BufferPool bufferPool
+			) throws IOException {
+        super(bind, configuration, acceptors, learners, selectorPool, bufferPool);
+
+		this.reliable = configuration.getBoolean("jaxos.udp.reliable", false);
+		this.reliableDelivery = new ReliableDelivery(configuration, cipherUtil, this.selectorPool, this.bufferPool, this::write);
+
+		// Smaller datagrams avoid IP fragmentation, where losing any packet loses the datagram.
+		final int datagramBytes = Math.min(
+				BaseMessage.MAX_DATA_SIZE,
+				configuration.getInt("jaxos.udp.datagram.bytes", BaseMessage.MAX_DATA_SIZE));
+		this.frameBytes = Math.max(
+				BaseMessage.FRAGMENT_HEADER_SIZE + 1,
+				datagramBytes - (reliable ? BaseMessage.RELIABLE_HEADER_SIZE : 0));
+		this.fragmenter = new Fragmenter(
+				this.bufferPool,
+				frameBytes,
+				configuration.getLong("jaxos.udp.reassembly.bytes", 64L << 20),
+				configuration.getLong("jaxos.udp.reassembly.timeout", 5000L));
+
+		final SocketOption<Boolean> reusePort = reusePortOption();
+		int sockets = Math.max(1, configuration.getInt("jaxos.udp.sockets", 1));
+		if (sockets > 1 && reusePort == null) {
+			LOG.warn("SO_REUSEPORT is not supported. Using one socket for {}.", bind);
+			sockets = 1;
+		}
+
+		// A fragmented message arrives as a burst of datagrams. The kernel drops what its buffers cannot hold.
+		final int socketBuffer = configuration.getInt("jaxos.udp.buffer.bytes", 4 << 20);
+
+		this.datagramChannels = new DatagramChannel[sockets];
+		this.keys = new SelectionKey[sockets];
+
+		// Bind the first so that an ephemeral port is chosen once and shared by the rest.
+		SocketAddress bound = bind;
+		for (int i = 0; i < sockets; ++i) {
+			final DatagramChannel channel = DatagramChannel.open();
+			if (sockets > 1) {
+				channel.setOption(reusePort, true);
+			}
+			if (socketBuffer > 0) {
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, socketBuffer);
+				channel.setOption(StandardSocketOptions.SO_SNDBUF, socketBuffer);
+			}
+			channel.bind(bound);
+			channel.configureBlocking(false);
+			bound = channel.getLocalAddress();
+
+			datagramChannels[i] = channel;
+
+			// Each channel goes to the next thread of the pool, so the kernel spreads datagrams across threads.
+			keys[i] = this.selectorPool.register(channel, SelectionKey.OP_READ, key -> {
+				if (key.isReadable()) {
+					recv(channel);
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return {@code StandardSocketOptions.SO_REUSEPORT}, which is only in Java 9 and later, or null.
+	 */
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> reusePortOption() {
+		try {
+			final SocketOption<Boolean> option = (SocketOption<Boolean>)StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+			try (DatagramChannel channel = DatagramChannel.open()) {
+				if (channel.supportedOptions().contains(option)) {
+					return option;
+				}
+			}
+		}
+		catch (final ReflectiveOperationException | IOException e) {
+			// Not available.
+		}
+
+		return null;
+	}
+
+	/**
+	 * Read and handle datagrams until none are waiting.
+	 *
+	 * @param dgc A channel registered for reading.
+	 */
+	protected void recv(final DatagramChannel dgc) {
+		// Decoded messages copy what they keep, so one buffer serves every datagram read here.
+		final ByteBuffer cipherBuffer = bufferPool.acquire(MAX_DATAGRAM_SIZE);
+		try {
+			for (int i = 0; i < MAX_DRAIN; ++i) {
+				cipherBuffer.clear();
+
+				final SocketAddress addr;
+				try {
+					addr = dgc.receive(cipherBuffer);
+				} catch (final IOException e) {
+					LOG.error(e.getMessage(), e);
+					return;
+				}
+
+				if (addr == null) {
+					return;
+				}
+
+				try {
+					final int length = cipherUtil.decryptInPlace(cipherBuffer, 0, cipherBuffer.position());
+					cipherBuffer.limit(length).position(0);
+
+					ByteBuffer message = reliableDelivery.receive(cipherBuffer, addr);
+					if (message == null) {
+						continue;
+					}
+
+					if (message.limit() > 0 && message.get(0) == BaseMessage.FRAGMENT_MSG) {
+						message = fragmenter.reassemble(addr, message);
+						if (message == null) {
+							continue;
 						}
-					} catch (IOException e) {
-						LOG.error(e.getMessage(), e);
 					}
+
+					LOG.debug("Decoding msg from {} into handler.", addr);
+					BaseMessage.decode(message, addr, this, getMessageHandler());
+				} catch (final IOException e) {
+					LOG.error(e.getMessage(), e);
 				}
 			}
-		};
-		this.receiver.setDaemon(true);
-		this.receiver.start();
+		} finally {
+			bufferPool.release(cipherBuffer);
+		}
 	}
 
-	private void recv(final DatagramChannel dgc) {
-	    try {
-            final ByteBuffer cipherBuffer = ByteBuffer.allocate(29 + BaseMessage.MAX_DATA_SIZE);
-            final SocketAddress addr = dgc.receive(cipherBuffer);
-            final ByteBuffer buffer = cipherUtil.decrypt(cipherBuffer);
-            LOG.info("Decoding msg from {} into handler.", addr);
-            BaseMessage.decode(buffer, addr, this, messageHandler);
-        } catch (final IOException e) {
-            LOG.error(e.getMessage(), e);
-        }
-    }
-
 	@Override
 	public void close() throws Exception {
+		reliableDelivery.close();
+
+		for (final SelectionKey key : keys) {
+			key.cancel();
+		}
+
+		for (final DatagramChannel datagramChannel : datagramChannels) {
+			if (datagramChannel.isOpen()) {
+				datagramChannel.close();
+			}
+		}
+
 		super.close();
+	}
 
-		if (datagramChannel.isOpen()) {
-			datagramChannel.close();
+	/**
+	 * Batches must fit in one datagram. Larger messages are fragmented.
+	 */
+	@Override
+	protected int maxFrameSize() {
+		return frameBytes;
+	}
+
+	/**
+	 * Send each fragment of the message in its own datagram.
+	 */
+	@Override
+	protected void writeOversized(final ByteBuffer encoded, final SocketAddress addr) throws IOException {
+		fragmenter.split(encoded, fragment -> writePlain(fragment, addr));
+	}
+
+	/**
+	 * Frames sent reliably are numbered for each peer, so their encryption cannot be shared.
+	 */
+	@Override
+	protected void writeFrame(final Frame frame, final SocketAddress addr) throws IOException {
+		if (reliable) {
+			writePlain(frame.encoded(), addr);
+		} else {
+			super.writeFrame(frame, addr);
 		}
+	}
 
-		receiver.join();
+	@Override
+	protected void writePlain(final ByteBuffer plain, final SocketAddress addr) throws IOException {
+		if (reliable) {
+			reliableDelivery.send(plain, addr);
+		} else {
+			super.writePlain(plain, addr);
+		}
+	}
+
+	/**
+	 * A datagram is copied out when it is sent.
+	 */
+	@Override
+	protected boolean writeCopies() {
+		return true;
+	}
+
+	@Override
+	protected SocketAddress getBoundAddress() {
+		try {
+			return datagramChannels[0].getLocalAddress();
+		} catch (final IOException e) {
+			return null;
+		}
 	}
 
 	@Override
-	public void send(final BaseMessage msg, final SocketAddress addr) throws IOException {
-		final ByteBuffer buffer = msg.encode();
-		final ByteBuffer encryptedBuffer = cipherUtil.encrypt(buffer);
+	protected void write(final ByteBuffer encrypted, final SocketAddress addr) throws IOException {
+		// Any of the channels may send. Spread senders across them so they do not contend on one.
+		final DatagramChannel datagramChannel = datagramChannels.length == 1?
+				datagramChannels[0] :
+				datagramChannels[(int)(Thread.currentThread().getId() % datagramChannels.length)];
 
-		datagramChannel.send(encryptedBuffer, addr);
+		if (datagramChannel.send(encrypted, addr) == 0) {
+			LOG.debug("Send buffer is full. Dropped a datagram to {}.", addr);
+		}
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void setMessageHandler(final MessageHandler messageHandler) {
-		this.messageHandler = messageHandler;
+	public String getScheme() {
+		return "udp";
 	}
 
 }
@@ -0,0 +1,196 @@
+package com.github.basking2.jaxos.net;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.util.Collections;
+import java.util.List;
+
+import com.github.basking2.jaxos.util.BufferPool;
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link ProtocolUdp} whose acceptors all receive datagrams sent to one multicast group.
+ *
+ * Prepares and proposals that fit in one datagram are sent once to the group rather than to each
+ * acceptor. Everything else, including promises and accepts, is sent to each peer as by {@link ProtocolUdp}.
+ * Datagrams to the group are sent from the bound address, so replies come back to it directly.
+ *
+ * Datagrams sent to the group are not resent, even if {@code jaxos.udp.reliable} is set.
+ */
+public class ProtocolUdpMulticast extends ProtocolUdp {
+
+	private final Logger LOG = LoggerFactory.getLogger(ProtocolUdpMulticast.class);
+
+	/**
+	 * The group every acceptor joins.
+	 */
+	private final InetSocketAddress group;
+
+	/**
+	 * Bound to the group's port to receive what is sent to the group.
+	 */
+	private final DatagramChannel groupChannel;
+
+	private final MembershipKey membership;
+
+	private final SelectionKey groupKey;
+
+	/**
+	 * @param bind The address to bind. Its port must differ from the group's.
+	 * @param configuration This configuration is used to build description bits.
+	 * @param acceptors The list of acceptors to consult. Each must join the group.
+	 * @param learners The list of the learners to consult.
+	 * @param group The multicast group and port that acceptors receive prepares and proposals on.
+	 * @param selectorPool The threads to receive on, or null to start one for this protocol.
+	 * @param bufferPool Where buffers are taken from, or null to build a pool for this protocol.
+	 * @throws IOException If binding a socket or joining the group fails.
+	 */
+	public ProtocolUdpMulticast(
+			final InetSocketAddress bind,
+			final Configuration configuration,
+			final List<? extends SocketAddress> acceptors,
+			final List<? extends SocketAddress> learners,
+			final InetSocketAddress group,
+			final SelectorPool selectorPool,
+			final BufferPool bufferPool
+			) throws IOException {
+		super(bind, configuration, acceptors, learners, selectorPool, bufferPool);
+
+		if (group.getAddress() == null || !group.getAddress().isMulticastAddress()) {
+			closeUnicast();
+			throw new IOException(group + " is not a multicast address.");
+		}
+
+		this.group = group;
+
+		DatagramChannel channel = null;
+		try {
+			final NetworkInterface networkInterface = networkInterface(bind, configuration.getString("jaxos.udp.multicast.interface", null));
+			final int ttl = configuration.getInt("jaxos.udp.multicast.ttl", 1);
+
+			// A node is usually one of its own acceptors, so it must hear what it sends.
+			for (final DatagramChannel datagramChannel : datagramChannels) {
+				datagramChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+				datagramChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+				datagramChannel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+			}
+
+			// Other nodes on this host join the same group and port.
+			channel = DatagramChannel.open(group.getAddress() instanceof Inet4Address ? StandardProtocolFamily.INET : StandardProtocolFamily.INET6);
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			channel.bind(new InetSocketAddress(group.getPort()));
+			channel.configureBlocking(false);
+
+			this.membership = channel.join(group.getAddress(), networkInterface);
+			this.groupChannel = channel;
+
+			LOG.info("Joined {} on {}.", group, networkInterface.getName());
+		} catch (final IOException e) {
+			if (channel != null) {
+				channel.close();
+			}
+			closeUnicast();
+			throw e;
+		}
+
+		this.groupKey = this.selectorPool.register(groupChannel, SelectionKey.OP_READ, key -> {
+			if (key.isReadable()) {
+				recv(groupChannel);
+			}
+		});
+	}
+
+	/**
+	 * Close what {@link ProtocolUdp} opened when this cannot be built.
+	 */
+	private void closeUnicast() {
+		try {
+			super.close();
+		} catch (final Exception e) {
+			LOG.warn("Closing {}. {}", getBoundAddress(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Choose the interface to join the group on and to send to it from.
+	 *
+	 * @param bind The address this protocol is bound to.
+	 * @param name The interface named by {@code jaxos.udp.multicast.interface} or null.
+	 * @return The named interface, else the interface of the bound address, else the first that is up and
+	 *         supports multicast, else the loopback interface.
+	 */
+	private static NetworkInterface networkInterface(final InetSocketAddress bind, final String name) throws IOException {
+		if (name != null) {
+			final NetworkInterface networkInterface = NetworkInterface.getByName(name);
+			if (networkInterface == null) {
+				throw new IOException("No network interface named " + name);
+			}
+			return networkInterface;
+		}
+
+		if (bind.getAddress() != null && !bind.getAddress().isAnyLocalAddress()) {
+			final NetworkInterface networkInterface = NetworkInterface.getByInetAddress(bind.getAddress());
+			if (networkInterface != null) {
+				return networkInterface;
+			}
+		}
+
+		for (final NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+			if (networkInterface.isUp() && networkInterface.supportsMulticast() && !networkInterface.isLoopback()) {
+				return networkInterface;
+			}
+		}
+
+		final NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+		if (loopback == null) {
+			throw new IOException("No network interface supports multicast.");
+		}
+
+		return loopback;
+	}
+
+	/**
+	 * Send the frame to the group if it fits in one datagram.
+	 */
+	@Override
+	public boolean sendAcceptorGroup(final Frame frame) throws IOException {
+		if (frame.getMessage().encodedSize() > maxFrameSize()) {
+			return false;
+		}
+
+		write(frame.encrypted(cipherUtil), group);
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void sendAcceptors(final Frame frame) throws IOException {
+		if (!sendAcceptorGroup(frame)) {
+			super.sendAcceptors(frame);
+		}
+	}
+
+	@Override
+	public void close() throws Exception {
+		groupKey.cancel();
+		membership.drop();
+		if (groupChannel.isOpen()) {
+			groupChannel.close();
+		}
+
+		super.close();
+	}
+}
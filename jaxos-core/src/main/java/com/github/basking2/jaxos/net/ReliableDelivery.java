@@ -0,0 +1,696 @@
+package com.github.basking2.jaxos.net;
+
+import com.github.basking2.jaxos.util.BufferPool;
+import com.github.basking2.jaxos.util.CipherUtil;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retransmits datagrams until their peer acknowledges them.
+ *
+ * Each datagram sent to a peer is numbered and kept until it is acknowledged. A receiver
+ * acknowledges the number below which it has received everything and lists what it holds
+ * above that, so only lost datagrams are sent again. A datagram is resent after a timeout
+ * estimated from measured round trips, or at once when datagrams sent after it are
+ * acknowledged first. Receivers drop duplicates.
+ *
+ * Numbers and acknowledgements are encrypted with the datagram, so they cannot be forged.
+ * Datagrams that are not {@link BaseMessage#RELIABLE_MSG}s are passed through, so peers
+ * that do not send reliably are still understood.
+ */
+class ReliableDelivery implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ReliableDelivery.class);
+
+    /**
+     * The most datagrams a receiver holds above its acknowledged number. Beyond this, the
+     * earliest missing datagram is given up as lost.
+     */
+    private static final int MAX_OUT_OF_ORDER = 4096;
+
+    /**
+     * The most received numbers listed in one acknowledgement.
+     */
+    private static final int MAX_SACKS = 64;
+
+    /**
+     * Peers not heard from or sent to for this many minutes are forgotten.
+     */
+    private static final long IDLE_MINUTES = 10;
+
+    /**
+     * Writes an encrypted datagram.
+     */
+    @FunctionalInterface
+    interface Writer {
+        void write(ByteBuffer encrypted, SocketAddress addr) throws IOException;
+    }
+
+    private final CipherUtil cipherUtil;
+    private final SelectorPool selectorPool;
+    private final BufferPool bufferPool;
+    private final Writer writer;
+
+    /**
+     * Identifies this sender's numbering, so a receiver starts over when a peer restarts.
+     */
+    private final long session = ThreadLocalRandom.current().nextLong();
+
+    /**
+     * Retransmission timeouts, in nanoseconds.
+     */
+    private final long initialRto;
+    private final long minRto;
+    private final long maxRto;
+
+    private final int maxRetries;
+    private final long maxQueuedBytes;
+
+    /**
+     * The most bytes sent to one peer and not yet acknowledged, including retransmissions.
+     */
+    private final long windowBytes;
+
+    private volatile boolean closed;
+
+    private final Cache<SocketAddress, Sender> senders = CacheBuilder.newBuilder().
+            expireAfterAccess(IDLE_MINUTES, TimeUnit.MINUTES).
+            build();
+
+    private final Cache<SocketAddress, Receiver> receivers = CacheBuilder.newBuilder().
+            expireAfterAccess(IDLE_MINUTES, TimeUnit.MINUTES).
+            build();
+
+    /**
+     * @param configuration Read for {@code jaxos.udp.reliable.*}.
+     * @param cipherUtil How datagrams are encrypted.
+     * @param selectorPool Where retransmissions and acknowledgements are timed.
+     * @param bufferPool Where datagrams are built before they are encrypted.
+     * @param writer Sends encrypted datagrams.
+     */
+    ReliableDelivery(
+        final Configuration configuration,
+        final CipherUtil cipherUtil,
+        final SelectorPool selectorPool,
+        final BufferPool bufferPool,
+        final Writer writer
+    ) {
+        this.cipherUtil = cipherUtil;
+        this.selectorPool = selectorPool;
+        this.bufferPool = bufferPool;
+        this.writer = writer;
+        this.minRto = TimeUnit.MILLISECONDS.toNanos(Math.max(1L, configuration.getLong("jaxos.udp.reliable.rto.min", 5L)));
+        this.maxRto = Math.max(minRto, TimeUnit.MILLISECONDS.toNanos(configuration.getLong("jaxos.udp.reliable.rto.max", 5000L)));
+        this.initialRto = Math.min(maxRto, Math.max(minRto,
+            TimeUnit.MILLISECONDS.toNanos(configuration.getLong("jaxos.udp.reliable.rto.initial", 200L))));
+        this.maxRetries = configuration.getInt("jaxos.udp.reliable.retries", 10);
+        this.maxQueuedBytes = configuration.getLong("jaxos.udp.reliable.queue.bytes", 16L * 1024 * 1024);
+        this.windowBytes = configuration.getLong("jaxos.udp.reliable.window.bytes", 1024L * 1024);
+    }
+
+    /**
+     * Number, encrypt and send a datagram, and keep it until it is acknowledged.
+     *
+     * @param plain The plain text from its position to its limit. Its position is advanced to its limit.
+     * @param addr The peer.
+     * @throws IOException If the datagram cannot be encrypted or sent.
+     */
+    void send(final ByteBuffer plain, final SocketAddress addr) throws IOException {
+        final Pending pending = sender(addr).add(plain);
+        if (pending != null) {
+            writer.write(pending.encrypted.duplicate(), addr);
+        }
+    }
+
+    /**
+     * Handle a decrypted datagram.
+     *
+     * @param plain The plain text from 0 to its limit.
+     * @param addr Who sent it.
+     * @return What to decode, from 0 to its limit, or null if there is nothing new.
+     * @throws IOException If the datagram is malformed.
+     */
+    ByteBuffer receive(final ByteBuffer plain, final SocketAddress addr) throws IOException {
+        if (plain.limit() == 0) {
+            return plain;
+        }
+
+        switch (plain.get(0)) {
+            case BaseMessage.RELIABLE_MSG: {
+                if (plain.limit() < BaseMessage.RELIABLE_HEADER_SIZE) {
+                    throw new IOException("Packet was too small to be a reliable datagram.");
+                }
+
+                if (!receiver(addr).received(plain.getLong(1), plain.getLong(9), plain.getLong(17))) {
+                    return null;
+                }
+
+                final ByteBuffer payload = plain.duplicate();
+                payload.position(BaseMessage.RELIABLE_HEADER_SIZE);
+                return payload.slice();
+            }
+            case BaseMessage.ACK_MSG: {
+                if (plain.limit() < BaseMessage.ACK_HEADER_SIZE) {
+                    throw new IOException("Packet was too small to be an acknowledgement.");
+                }
+
+                final int count = plain.getInt(25);
+                if (count < 0 || count > (plain.limit() - BaseMessage.ACK_HEADER_SIZE) / 8) {
+                    throw new IOException("Acknowledgement count does not fit in the packet.");
+                }
+
+                // Acknowledgements of an earlier run of this process are ignored.
+                if (plain.getLong(1) != session) {
+                    return null;
+                }
+
+                final Sender sender = senders.getIfPresent(addr);
+                if (sender != null) {
+                    final long[] sacks = new long[count];
+                    for (int i = 0; i < count; ++i) {
+                        sacks[i] = plain.getLong(BaseMessage.ACK_HEADER_SIZE + 8 * i);
+                    }
+                    sender.acknowledged(plain.getLong(9), plain.getLong(17), sacks);
+                }
+
+                return null;
+            }
+            default:
+                return plain;
+        }
+    }
+
+    /**
+     * Stop retransmitting.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        for (final Sender sender : senders.asMap().values()) {
+            sender.cancel();
+        }
+    }
+
+    private Sender sender(final SocketAddress addr) throws IOException {
+        try {
+            return senders.get(addr, () -> new Sender(addr));
+        } catch (final ExecutionException e) {
+            throw new IOException("Tracking datagrams to " + addr, e.getCause());
+        }
+    }
+
+    private Receiver receiver(final SocketAddress addr) throws IOException {
+        try {
+            return receivers.get(addr, () -> new Receiver(addr));
+        } catch (final ExecutionException e) {
+            throw new IOException("Tracking datagrams from " + addr, e.getCause());
+        }
+    }
+
+    /**
+     * Encrypt a plain text datagram that was built in a pooled buffer, and release the buffer.
+     */
+    private ByteBuffer encryptAndRelease(final ByteBuffer datagram) throws IOException {
+        try {
+            datagram.flip();
+            return Frame.encrypt(cipherUtil, datagram);
+        } finally {
+            bufferPool.release(datagram);
+        }
+    }
+
+    /**
+     * A datagram waiting to be acknowledged.
+     */
+    private static final class Pending {
+        final long seq;
+        final ByteBuffer encrypted;
+
+        /**
+         * When this was last sent, in nanoseconds.
+         */
+        long sentAt;
+
+        /**
+         * When this is next sent, in nanoseconds.
+         */
+        long deadline;
+
+        int transmissions;
+
+        Pending(final long seq, final ByteBuffer encrypted) {
+            this.seq = seq;
+            this.encrypted = encrypted;
+        }
+    }
+
+    /**
+     * What has been sent to one peer.
+     *
+     * At most {@link #windowBytes} are unacknowledged at once, so neither new datagrams nor
+     * retransmissions flood the peer's socket buffer. Later datagrams wait their turn. Loss does
+     * not shrink the window, as on lossy links it is rarely a sign of congestion.
+     */
+    private final class Sender {
+        final SocketAddress addr;
+
+        /**
+         * The thread retransmissions are timed on.
+         */
+        final SelectorPool.SelectorThread thread = selectorPool.next();
+
+        /**
+         * Every datagram not yet acknowledged, sent or waiting, by number.
+         */
+        final TreeMap<Long, Pending> unacknowledged = new TreeMap<Long, Pending>();
+
+        /**
+         * Datagrams waiting for room in the window, in order.
+         */
+        final ArrayDeque<Pending> waiting = new ArrayDeque<Pending>();
+
+        long nextSeq = 1;
+
+        /**
+         * Bytes of all unacknowledged datagrams, and of those sent.
+         */
+        long queuedBytes;
+        long inFlightBytes;
+
+        /**
+         * Round trip estimates, in nanoseconds. The smoothed round trip is 0 until it is first measured.
+         */
+        long srtt;
+        long rttvar;
+        long rto = initialRto;
+
+        /**
+         * The most recently sent of the datagrams known to be delivered, or null.
+         */
+        Pending delivered;
+
+        /**
+         * The pending retransmission timer, or null.
+         */
+        SelectorPool.Timer timer;
+
+        /**
+         * True once a datagram has been given up, until the peer acknowledges one. Only the first is logged as a warning.
+         */
+        boolean failing;
+
+        Sender(final SocketAddress addr) {
+            this.addr = addr;
+        }
+
+        /**
+         * Number and encrypt a datagram, and send it if the window allows.
+         *
+         * Numbering and tracking happen together so that the lowest unacknowledged number sent
+         * with each datagram never passes one not yet tracked.
+         *
+         * @return The datagram if it is to be written now, or null if it waits.
+         */
+        synchronized Pending add(final ByteBuffer plain) throws IOException {
+            final long seq = nextSeq++;
+            final long base = unacknowledged.isEmpty() ? seq : unacknowledged.firstKey();
+
+            final ByteBuffer datagram = bufferPool.acquire(BaseMessage.RELIABLE_HEADER_SIZE + plain.remaining());
+            datagram.put(BaseMessage.RELIABLE_MSG).putLong(session).putLong(seq).putLong(base).put(plain);
+
+            final Pending pending = new Pending(seq, encryptAndRelease(datagram));
+            unacknowledged.put(seq, pending);
+            queuedBytes += pending.encrypted.limit();
+
+            // A peer that never answers must not hold unbounded memory. Give up on the oldest.
+            while (queuedBytes > maxQueuedBytes && unacknowledged.size() > 1) {
+                final Pending dropped = unacknowledged.pollFirstEntry().getValue();
+                forget(dropped);
+                LOG.debug("Too much unacknowledged to {}. Dropped datagram {}.", addr, dropped.seq);
+            }
+
+            if (waiting.isEmpty() && fits(pending)) {
+                transmit(pending, System.nanoTime());
+                arm();
+                return pending;
+            }
+
+            waiting.add(pending);
+            return null;
+        }
+
+        /**
+         * @param cumulative Everything up to this number was received.
+         * @param latest The number whose arrival prompted the acknowledgement.
+         * @param sacks Numbers received above the cumulative number.
+         */
+        void acknowledged(final long cumulative, final long latest, final long[] sacks) {
+            final List<Pending> resend = new ArrayList<Pending>();
+
+            synchronized (this) {
+                final long now = System.nanoTime();
+                final List<Pending> acked = new ArrayList<Pending>();
+
+                final Iterator<Pending> cumulated = unacknowledged.headMap(cumulative, true).values().iterator();
+                while (cumulated.hasNext()) {
+                    acked.add(cumulated.next());
+                    cumulated.remove();
+                }
+
+                for (final long seq : sacks) {
+                    final Pending pending = unacknowledged.remove(seq);
+                    if (pending != null) {
+                        acked.add(pending);
+                    }
+                }
+
+                for (final Pending pending : acked) {
+                    forget(pending);
+
+                    // Karn: only datagrams sent once tell which transmission arrived.
+                    if (pending.transmissions != 1) {
+                        continue;
+                    }
+
+                    // Only the datagram that prompted the acknowledgement measures the round trip.
+                    // Others may have waited for an acknowledgement that was lost.
+                    if (pending.seq == latest) {
+                        measured(now - pending.sentAt);
+                    }
+
+                    if (delivered == null || pending.sentAt - delivered.sentAt > 0) {
+                        delivered = pending;
+                    }
+                }
+
+                if (!acked.isEmpty()) {
+                    failing = false;
+                }
+
+                // A datagram is lost, rather than reordered, once one sent a quarter of a round trip
+                // after it was delivered. Resent datagrams are judged the same way, so a lost
+                // retransmission does not wait for a timeout either.
+                final long reordering = srtt / 4;
+                for (final Pending pending : sent().values()) {
+                    if (delivered != null && delivered.sentAt - pending.sentAt > reordering) {
+                        transmit(pending, now);
+                        resend.add(pending);
+                    }
+                }
+
+                fill(resend, now);
+                arm();
+            }
+
+            write(resend);
+        }
+
+        /**
+         * Update the round trip estimate and timeout as in RFC 6298.
+         */
+        private void measured(final long rtt) {
+            if (srtt == 0) {
+                srtt = Math.max(1, rtt);
+                rttvar = rtt / 2;
+            } else {
+                rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+                srtt = (7 * srtt + rtt) / 8;
+            }
+
+            rto = Math.min(maxRto, Math.max(minRto, srtt + 4 * rttvar));
+        }
+
+        /**
+         * Mark a datagram sent, and time its retransmission.
+         */
+        private void transmit(final Pending pending, final long now) {
+            if (pending.transmissions++ == 0) {
+                inFlightBytes += pending.encrypted.limit();
+            }
+            pending.sentAt = now;
+
+            // Each retransmission of a datagram doubles its timeout.
+            final int doublings = Math.min(30, pending.transmissions - 1);
+            pending.deadline = now + Math.min(maxRto, rto << doublings);
+        }
+
+        /**
+         * Time retransmissions if they are not already timed. A timer that fires early finds nothing due and is set again.
+         */
+        private void arm() {
+            if (timer == null && inFlightBytes > 0) {
+                timer = thread.schedule(rto, TimeUnit.NANOSECONDS, this::expired);
+            }
+        }
+
+        /**
+         * Account for a datagram that is no longer tracked.
+         */
+        private void forget(final Pending pending) {
+            queuedBytes -= pending.encrypted.limit();
+            if (pending.transmissions > 0) {
+                inFlightBytes -= pending.encrypted.limit();
+            } else {
+                waiting.remove(pending);
+            }
+        }
+
+        /**
+         * @return The datagrams sent and not yet acknowledged. Those waiting are always numbered after them.
+         */
+        private SortedMap<Long, Pending> sent() {
+            return waiting.isEmpty() ? unacknowledged : unacknowledged.headMap(waiting.peek().seq);
+        }
+
+        /**
+         * @return True if the window has room to send the datagram. A datagram larger than the window is sent alone.
+         */
+        private boolean fits(final Pending pending) {
+            return inFlightBytes == 0 || inFlightBytes + pending.encrypted.limit() <= windowBytes;
+        }
+
+        /**
+         * Send waiting datagrams while the window has room.
+         */
+        private void fill(final List<Pending> send, final long now) {
+            while (!waiting.isEmpty() && fits(waiting.peek())) {
+                final Pending pending = waiting.poll();
+                transmit(pending, now);
+                send.add(pending);
+            }
+        }
+
+        /**
+         * Resend what has timed out and time the next retransmission.
+         */
+        private void expired() {
+            if (closed) {
+                return;
+            }
+
+            final List<Pending> resend = new ArrayList<Pending>();
+
+            synchronized (this) {
+                timer = null;
+
+                final long now = System.nanoTime();
+                long next = Long.MAX_VALUE;
+
+                final Iterator<Pending> entries = sent().values().iterator();
+                while (entries.hasNext()) {
+                    final Pending pending = entries.next();
+
+                    if (pending.deadline - now <= 0) {
+                        if (pending.transmissions > maxRetries) {
+                            entries.remove();
+                            forget(pending);
+                            gaveUp(pending);
+                            continue;
+                        }
+
+                        transmit(pending, now);
+                        resend.add(pending);
+                    }
+
+                    next = Math.min(next, pending.deadline - now);
+                }
+
+                fill(resend, now);
+
+                if (next != Long.MAX_VALUE) {
+                    timer = thread.schedule(next, TimeUnit.NANOSECONDS, this::expired);
+                }
+                arm();
+            }
+
+            write(resend);
+        }
+
+        private void gaveUp(final Pending pending) {
+            if (failing) {
+                LOG.debug("{} did not acknowledge datagram {}. Dropped it.", addr, pending.seq);
+            } else {
+                failing = true;
+                LOG.warn("{} did not acknowledge datagram {} after {} retransmissions. Dropped it.", addr, pending.seq, maxRetries);
+            }
+        }
+
+        private void write(final List<Pending> send) {
+            for (final Pending pending : send) {
+                try {
+                    writer.write(pending.encrypted.duplicate(), addr);
+                } catch (final IOException e) {
+                    LOG.debug("Sending datagram {} to {} failed. {}", pending.seq, addr, e.getMessage());
+                }
+            }
+        }
+
+        synchronized void cancel() {
+            if (timer != null) {
+                timer.cancel();
+                timer = null;
+            }
+        }
+    }
+
+    /**
+     * What has been received from one peer.
+     */
+    private final class Receiver {
+        final SocketAddress addr;
+
+        /**
+         * The thread acknowledgements are sent from.
+         */
+        final SelectorPool.SelectorThread thread = selectorPool.next();
+
+        /**
+         * The sender's session. Numbering restarts when it changes.
+         */
+        long session;
+        boolean started;
+
+        /**
+         * Everything up to and including this number has been received.
+         */
+        long cumulative;
+
+        /**
+         * The number most recently received, echoed so the sender can time its round trip.
+         */
+        long latest;
+
+        /**
+         * Numbers received above {@link #cumulative}.
+         */
+        final TreeSet<Long> above = new TreeSet<Long>();
+
+        /**
+         * True while an acknowledgement is waiting to be sent.
+         */
+        boolean ackScheduled;
+
+        Receiver(final SocketAddress addr) {
+            this.addr = addr;
+        }
+
+        /**
+         * Record a datagram and schedule its acknowledgement.
+         *
+         * @param session The sender's session.
+         * @param seq The datagram's number.
+         * @param base The sender's lowest unacknowledged number. Anything lower will not be resent.
+         * @return True if the datagram was not received before.
+         */
+        synchronized boolean received(final long session, final long seq, final long base) {
+            if (!started || session != this.session) {
+                this.session = session;
+                this.started = true;
+                cumulative = base - 1;
+                above.clear();
+            }
+
+            if (base - 1 > cumulative) {
+                cumulative = base - 1;
+                above.headSet(cumulative, true).clear();
+                advance();
+            }
+
+            latest = seq;
+
+            final boolean fresh = seq > cumulative && above.add(seq);
+            if (fresh) {
+                advance();
+
+                while (above.size() > MAX_OUT_OF_ORDER) {
+                    cumulative = above.pollFirst();
+                    advance();
+                }
+            }
+
+            // Duplicates are acknowledged too, as the sender may have missed the last acknowledgement.
+            if (!ackScheduled) {
+                ackScheduled = true;
+                thread.executeLater(this::acknowledge);
+            }
+
+            return fresh;
+        }
+
+        private void advance() {
+            while (above.remove(cumulative + 1)) {
+                ++cumulative;
+            }
+        }
+
+        /**
+         * Send one acknowledgement for everything received since the last.
+         */
+        private void acknowledge() {
+            final ByteBuffer encrypted;
+
+            synchronized (this) {
+                ackScheduled = false;
+
+                final int count = Math.min(MAX_SACKS, above.size());
+                final ByteBuffer ack = bufferPool.acquire(BaseMessage.ACK_HEADER_SIZE + 8 * count);
+                ack.put(BaseMessage.ACK_MSG).putLong(session).putLong(cumulative).putLong(latest).putInt(count);
+
+                final Iterator<Long> seqs = above.iterator();
+                for (int i = 0; i < count; ++i) {
+                    ack.putLong(seqs.next());
+                }
+
+                try {
+                    encrypted = encryptAndRelease(ack);
+                } catch (final IOException e) {
+                    LOG.warn("Encrypting acknowledgement to {} failed. {}", addr, e.getMessage());
+                    return;
+                }
+            }
+
+            try {
+                writer.write(encrypted, addr);
+            } catch (final IOException e) {
+                LOG.debug("Acknowledging {} failed. {}", addr, e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package com.github.basking2.jaxos.net;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A fixed set of threads, each running its own {@link Selector}, shared by any number of {@link Protocol}s.
+ *
+ * Channels are spread across the threads as they are registered, so network IO scales with
+ * the number of threads rather than the number of protocols or connections.
+ */
+public class SelectorPool implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(SelectorPool.class);
+
+    private static final AtomicInteger POOL_IDS = new AtomicInteger();
+
+    private final SelectorThread[] threads;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param threads The number of selector threads to start.
+     * @throws IOException If a selector cannot be opened.
+     */
+    public SelectorPool(final int threads) throws IOException {
+        final int poolId = POOL_IDS.incrementAndGet();
+
+        this.threads = new SelectorThread[Math.max(1, threads)];
+        for (int i = 0; i < this.threads.length; ++i) {
+            this.threads[i] = new SelectorThread("jaxos-io-" + poolId + "-" + i);
+            this.threads[i].start();
+        }
+    }
+
+    /**
+     * @return The next thread to register a channel with, in turn.
+     */
+    public SelectorThread next() {
+        return threads[Math.floorMod(next.getAndIncrement(), threads.length)];
+    }
+
+    /**
+     * Register a channel with the next thread.
+     *
+     * @see SelectorThread#register(SelectableChannel, int, Handler)
+     */
+    public SelectionKey register(final SelectableChannel channel, final int ops, final Handler handler) throws IOException {
+        return next().register(channel, ops, handler);
+    }
+
+    public int size() {
+        return threads.length;
+    }
+
+    /**
+     * Close every selector and wait for the threads to stop, unless interrupted.
+     */
+    @Override
+    public void close() throws IOException {
+        for (final SelectorThread thread : threads) {
+            thread.selector.close();
+        }
+
+        try {
+            for (final SelectorThread thread : threads) {
+                if (thread != Thread.currentThread()) {
+                    thread.join();
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Called on a selector thread when a registered channel is ready.
+     *
+     * This must not block as it delays every other channel on the same thread.
+     */
+    @FunctionalInterface
+    public static interface Handler {
+        /**
+         * @param key The ready key. Its attachment is this handler.
+         */
+        void ready(SelectionKey key);
+    }
+
+    /**
+     * A task to run on a {@link SelectorThread} after a delay.
+     */
+    public static class Timer implements Comparable<Timer> {
+        private final long deadline;
+        private final Runnable task;
+        private final SelectorThread thread;
+        private volatile boolean cancelled;
+
+        /**
+         * True once the thread has taken this from its timers.
+         */
+        private volatile boolean done;
+
+        private Timer(final long deadline, final Runnable task, final SelectorThread thread) {
+            this.deadline = deadline;
+            this.task = task;
+            this.thread = thread;
+        }
+
+        /**
+         * Do not run the task if it has not yet run. The thread drops it from its timers once enough are cancelled.
+         */
+        public synchronized void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                if (!done) {
+                    thread.cancelledTimers.incrementAndGet();
+                }
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public int compareTo(final Timer that) {
+            return Long.compare(deadline - that.deadline, 0);
+        }
+    }
+
+    /**
+     * A thread selecting over the channels registered with it.
+     */
+    public static class SelectorThread extends Thread {
+        private final Selector selector;
+
+        /**
+         * Work that must be done on this thread, such as registering channels.
+         */
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        /**
+         * Scheduled tasks, soonest first. This is only used by this thread.
+         */
+        private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+
+        /**
+         * About how many of {@link #timers} are cancelled.
+         */
+        private final AtomicInteger cancelledTimers = new AtomicInteger();
+
+        SelectorThread(final String name) throws IOException {
+            super(name);
+            this.selector = Selector.open();
+            setDaemon(true);
+        }
+
+        /**
+         * Run a task on this thread. It runs immediately if called from this thread.
+         *
+         * @param task The task to run.
+         */
+        public void execute(final Runnable task) {
+            if (Thread.currentThread() == this) {
+                task.run();
+            } else {
+                tasks.add(task);
+                wakeup();
+            }
+        }
+
+        /**
+         * Run a task on this thread once the channels it is serving now have been handled.
+         *
+         * Unlike {@link #execute(Runnable)} this never runs the task immediately, which lets work
+         * done while handling a burst of ready channels be collected and finished once.
+         *
+         * @param task The task to run.
+         */
+        public void executeLater(final Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != this) {
+                wakeup();
+            }
+        }
+
+        /**
+         * Register a non-blocking channel on this thread's selector.
+         *
+         * Registration is done by this thread, as registering while another thread selects may block.
+         *
+         * @param channel The channel, which must already be non-blocking.
+         * @param ops The initial interest set.
+         * @param handler Called when the channel is ready. This is the key's attachment.
+         * @return A future completed on this thread once the channel is registered.
+         */
+        public CompletableFuture<SelectionKey> registerAsync(final SelectableChannel channel, final int ops, final Handler handler) {
+            final CompletableFuture<SelectionKey> future = new CompletableFuture<SelectionKey>();
+
+            execute(() -> {
+                try {
+                    future.complete(channel.register(selector, ops, handler));
+                }
+                catch (final Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+
+            return future;
+        }
+
+        /**
+         * Register a channel and wait until it is registered.
+         *
+         * The caller must not hold a lock this thread may wait for.
+         *
+         * @see #registerAsync(SelectableChannel, int, Handler)
+         * @return The key.
+         * @throws IOException If the channel cannot be registered.
+         */
+        public SelectionKey register(final SelectableChannel channel, final int ops, final Handler handler) throws IOException {
+            try {
+                return registerAsync(channel, ops, handler).get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted registering channel.", e);
+            } catch (final ExecutionException e) {
+                throw new IOException("Registering channel.", e.getCause());
+            }
+        }
+
+        /**
+         * Run a task on this thread after a delay.
+         *
+         * @param delay How long to wait.
+         * @param unit The unit of the delay.
+         * @param task The task. It must not block.
+         * @return The timer, which may be cancelled.
+         */
+        public Timer schedule(final long delay, final TimeUnit unit, final Runnable task) {
+            final Timer timer = new Timer(System.nanoTime() + unit.toNanos(delay), task, this);
+            execute(() -> timers.add(timer));
+            return timer;
+        }
+
+        /**
+         * Wake this thread's selector so changed interest sets take effect.
+         */
+        public void wakeup() {
+            selector.wakeup();
+            // It may be parked waiting for a timer instead.
+            LockSupport.unpark(this);
+        }
+
+        @Override
+        public void run() {
+            while (selector.isOpen()) {
+                try {
+                    final Timer next = nextTimer();
+                    if (!tasks.isEmpty()) {
+                        selector.selectNow();
+                    } else if (next == null) {
+                        selector.select();
+                    } else {
+                        // A selector waits in milliseconds, so timers less than one away are parked for,
+                        // and may be scheduled in microseconds. Ready channels wait until then.
+                        final long nanos = next.deadline - System.nanoTime();
+                        final long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+                        if (millis > 0) {
+                            selector.select(millis);
+                        } else {
+                            if (nanos > 0 && tasks.isEmpty()) {
+                                LockSupport.parkNanos(this, nanos);
+                            }
+                            selector.selectNow();
+                        }
+                    }
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    // One failing handler must not leave the keys selected, to be handled again, nor hold up the others.
+                    final Set<SelectionKey> keys = selector.selectedKeys();
+                    for (final SelectionKey key : keys) {
+                        try {
+                            if (key.isValid()) {
+                                ((Handler)key.attachment()).ready(key);
+                            }
+                        } catch (final RuntimeException e) {
+                            LOG.error(e.getMessage(), e);
+                        }
+                    }
+                    keys.clear();
+
+                    runTimers();
+                } catch (final Throwable t) {
+                    if (selector.isOpen()) {
+                        LOG.error(t.getMessage(), t);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return The soonest timer that is not cancelled, or null. Cancelled timers are dropped once they are
+         * half of all timers, so timers that are set and then cancelled, such as retransmissions, do not pile up.
+         */
+        private Timer nextTimer() {
+            if (cancelledTimers.get() > timers.size() / 2) {
+                cancelledTimers.set(0);
+                timers.removeIf(Timer::isCancelled);
+            }
+
+            Timer timer;
+            while ((timer = timers.peek()) != null && timer.cancelled) {
+                take();
+            }
+            return timer;
+        }
+
+        private Timer take() {
+            final Timer timer = timers.poll();
+            synchronized (timer) {
+                if (timer.cancelled) {
+                    cancelledTimers.decrementAndGet();
+                }
+                timer.done = true;
+            }
+            return timer;
+        }
+
+        private void runTimers() {
+            final long now = System.nanoTime();
+
+            Timer timer;
+            while ((timer = timers.peek()) != null && timer.deadline - now <= 0) {
+                take();
+                if (!timer.cancelled) {
+                    timer.task.run();
+                }
+            }
+        }
+    }
+}
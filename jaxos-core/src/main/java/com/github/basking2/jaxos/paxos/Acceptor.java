@@ -2,16 +2,46 @@ package com.github.basking2.jaxos.paxos;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * An acceptor. For normal paxos the value of N should be &gt; 1.
- * For multi paxos, which skips the prepare step, the value of N should be 0.
+ *
+ * For multi paxos a {@link Leader} is promised every instance at once by {@link #lead(Long)}, and
+ * then proposes with that number without preparing each instance. A proposal is only accepted with
+ * a number some proposer or leader was promised, so nothing numbered 0 is accepted.
+ *
+ * Once a value is accepted with a number, no other value is accepted with that number in the instance,
+ * so a quorum that accepted one number always accepted one value.
+ *
+ * A leader may also be granted a lease by {@link #lead(Long, long)}. Until it ends, by this acceptor's clock,
+ * no other leader is promised and no other proposer may prepare or have a proposal accepted, so
+ * only the leader decides values and it may read what it has learned without asking anyone.
  */
 public class Acceptor<V> {
     private AcceptHandler<V> acceptHandler;
     private PaxosAcceptorDao<V> dao;
 
+    /**
+     * A lead promise is made while no instance is promised or accepted, so that the
+     * proposals it returns are all those accepted before it.
+     */
+    private final ReadWriteLock leadLock = new ReentrantReadWriteLock();
+
+    /**
+     * The leader holding a lease and when, by {@link System#nanoTime()}, the lease ends.
+     * Only changed under the write lock.
+     */
+    private volatile long leaseN;
+    private volatile long leaseEnd;
+    private volatile boolean leased;
+
     /**
      * @param dao How the acceptor persists data.
      * @throws IOException If loading the previous state fails.
@@ -23,6 +53,16 @@ public class Acceptor<V> {
 
 	@SuppressWarnings("unchecked")
 	public Promise<V> prepare(final String instance, final Long n) {
+	    leadLock.readLock().lock();
+	    try {
+	        return prepareImpl(instance, n);
+	    } finally {
+	        leadLock.readLock().unlock();
+	    }
+	}
+
+	@SuppressWarnings("unchecked")
+	private Promise<V> prepareImpl(final String instance, final Long n) {
 
 	    final Proposal<V> previouslyAccepted = dao.loadProposal(instance);
 
@@ -32,8 +72,8 @@ public class Acceptor<V> {
         }
 
         // Send back that we haven't accepted anything, but we've promised to another proposer.
-        Long promiseNumber = dao.loadPromise(instance);
-        if ( n <= promiseNumber) {
+        Long promiseNumber = Math.max(dao.loadPromise(instance), dao.loadLeadPromise());
+        if ( n <= promiseNumber || leaseHeld()) {
             return Promise.ALREADY_PROMISED_NOT_YET_ACCEPTED;
         }
 
@@ -45,15 +85,144 @@ public class Acceptor<V> {
     public void accept(final String instance, final Proposal<V> proposal) throws Exception {
     	assert(proposal != null);
     	
-    	final Long myN = dao.loadPromise(instance);
-    	
-    	if (myN != null && myN.equals(proposal.getN())) {
-    		if (acceptImpl(proposal)) {
-        		doAccept(instance, proposal);
+    	leadLock.readLock().lock();
+    	try {
+    		if (acceptable(instance, proposal)) {
+    			doAccept(instance, proposal);
     		}
+    	} finally {
+    		leadLock.readLock().unlock();
     	}
     }
 
+    /**
+     * Accept proposals in many instances, as {@link #accept(String, Proposal)} does each, but without
+     * telling the {@link AcceptHandler}, so the caller may tell learners of them all at once.
+     *
+     * @param proposals The proposals, by instance.
+     * @return The proposals accepted, by instance, in the order given.
+     */
+    public Map<String, Proposal<V>> acceptAll(final Map<String, Proposal<V>> proposals) {
+        final Map<String, Proposal<V>> accepted = new LinkedHashMap<String, Proposal<V>>();
+
+        leadLock.readLock().lock();
+        try {
+            for (final Map.Entry<String, Proposal<V>> proposal : proposals.entrySet()) {
+                if (acceptable(proposal.getKey(), proposal.getValue())) {
+                    dao.storeProposal(proposal.getKey(), proposal.getValue());
+                    accepted.put(proposal.getKey(), proposal.getValue());
+                }
+            }
+        } finally {
+            leadLock.readLock().unlock();
+        }
+
+        return accepted;
+    }
+
+    /**
+     * A proposal is acceptable if it has the higher of the instance's promise and the leader's,
+     * no other leader holds a lease, and no other value was accepted with its number.
+     */
+    private boolean acceptable(final String instance, final Proposal<V> proposal) {
+        final Long myN = Math.max(dao.loadPromise(instance), dao.loadLeadPromise());
+
+        if (proposal.getN() <= 0 || !myN.equals(proposal.getN())) {
+            return false;
+        }
+
+        if (leaseHeld() && leaseN != proposal.getN()) {
+            return false;
+        }
+
+        final Proposal<V> previous = dao.loadProposal(instance);
+        if (previous != null && previous.getN().equals(proposal.getN()) && !sameValue(previous, proposal)) {
+            return false;
+        }
+
+        return acceptImpl(proposal);
+    }
+
+    private static boolean sameValue(final Proposal<?> a, final Proposal<?> b) {
+        return a.getEncoding() == b.getEncoding() && Objects.equals(a.getValue(), b.getValue());
+    }
+
+    /**
+     * Promise a leader every instance, including those not yet started.
+     *
+     * @param n The leader's number.
+     * @return Every proposal accepted so far, by instance, or null if a number as high was already promised to a leader.
+     */
+    public Map<String, Proposal<V>> lead(final Long n) {
+        return lead(n, 0L);
+    }
+
+    /**
+     * Promise a leader every instance and grant it a lease, or renew the lease of the leader last promised.
+     *
+     * A lease is only renewed while it is held. Once it lapses, other proposers may have had values accepted,
+     * so the leader must ask again with a higher number and learn them.
+     *
+     * @param n The leader's number.
+     * @param leaseNanos How long to promise no other leader, or 0 for no lease.
+     * @return Every proposal accepted so far, by instance, an empty map if a lease was renewed,
+     *         or null if another leader holds a lease, the lease lapsed, or a number as high was already
+     *         promised to a leader.
+     */
+    public Map<String, Proposal<V>> lead(final Long n, final long leaseNanos) {
+        leadLock.writeLock().lock();
+        try {
+            final long now = System.nanoTime();
+            final boolean held = leaseHeld(now);
+            if (held && leaseN != n) {
+                return null;
+            }
+
+            final long promised = dao.loadLeadPromise();
+            if (n < promised || (n == promised && (leaseNanos <= 0 || !held))) {
+                return null;
+            }
+
+            if (leaseNanos > 0) {
+                leaseN = n;
+                leaseEnd = now + leaseNanos;
+                leased = true;
+            }
+
+            if (n == promised) {
+                return Collections.emptyMap();
+            }
+
+            dao.storeLeadPromise(n);
+            return dao.loadProposals();
+        } finally {
+            leadLock.writeLock().unlock();
+        }
+    }
+
+    private boolean leaseHeld() {
+        return leaseHeld(System.nanoTime());
+    }
+
+    private boolean leaseHeld(final long now) {
+        return leased && leaseEnd - now > 0;
+    }
+
+    /**
+     * @param instance The instance.
+     * @return The number a proposal in the instance must have: the higher of its promise and the leader's.
+     */
+    public Long getPromise(final String instance) {
+        return Math.max(dao.loadPromise(instance), dao.loadLeadPromise());
+    }
+
+    /**
+     * @return The highest number promised to a leader, or 0.
+     */
+    public Long getLeadPromise() {
+        return dao.loadLeadPromise();
+    }
+
     /**
      * When we accept a value, we store it.
      * @param instance
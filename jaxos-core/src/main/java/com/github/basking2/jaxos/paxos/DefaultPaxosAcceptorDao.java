@@ -5,6 +5,8 @@ import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
@@ -15,6 +17,11 @@ public class DefaultPaxosAcceptorDao<V> implements PaxosAcceptorDao<V> {
     private Cache<String, Proposal<V>> proposals;
     private LoadingCache<String, Long> promises;
 
+    /**
+     * The lead promise covers instances not yet started, so it does not expire.
+     */
+    private volatile Long leadPromise = 0L;
+
     public DefaultPaxosAcceptorDao(final long timeout, final TimeUnit timeunit) {
         proposals = CacheBuilder.newBuilder().
                 expireAfterWrite(timeout, timeunit).
@@ -61,4 +68,19 @@ public class DefaultPaxosAcceptorDao<V> implements PaxosAcceptorDao<V> {
     public void storePromise(String instance, Long promise) {
     	promises.put(instance, promise);
     }
+
+    @Override
+    public Map<String, Proposal<V>> loadProposals() {
+        return new HashMap<String, Proposal<V>>(proposals.asMap());
+    }
+
+    @Override
+    public Long loadLeadPromise() {
+        return leadPromise;
+    }
+
+    @Override
+    public void storeLeadPromise(Long promise) {
+        leadPromise = promise;
+    }
 }
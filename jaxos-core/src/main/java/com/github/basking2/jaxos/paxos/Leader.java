@@ -0,0 +1,448 @@
+package com.github.basking2.jaxos.paxos;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The distinguished proposer of multi paxos.
+ *
+ * A leader prepares every instance at once with {@link #lead()}. Once a quorum of {@link Acceptor}s
+ * promise it by {@link Acceptor#lead(Long)}, it proposes values in any instance without preparing it,
+ * halving the messages and the time taken to decide an instance.
+ *
+ * Acceptors return every proposal they have accepted when they promise a leader. A leader proposes
+ * the highest numbered of these in its instance in place of any new value, as a {@link Proposer}
+ * does after preparing one instance.
+ *
+ * Numbers are a round in the high 32 bits and a random number in the low 32 bits, so two leaders
+ * do not use the same number. Proposers preparing one instance draw theirs by {@link #next()}.
+ *
+ * If {@link #setLease(long, long)} gives a lease, acceptors promise no other leader for that long after they
+ * answer. A leader holds its lease from when it asked, less the clock drift, once a quorum grant it, and
+ * must {@link #renew()} it before it ends.
+ */
+public class Leader<V> {
+    private final int quorum;
+
+    private final Preparer preparer;
+
+    private final Sender<V> sender;
+
+    private final long token = new SecureRandom().nextInt() & 0x7fffffffL;
+
+    /**
+     * The highest round seen.
+     */
+    private long round;
+
+    /**
+     * The number this last led with, or 0.
+     */
+    private volatile long n;
+
+    private volatile boolean leading;
+
+    /**
+     * When, by {@link System#nanoTime()}, this last asked to lead.
+     */
+    private volatile long asked;
+
+    /**
+     * How long to wait for promises before an election is no longer pending.
+     */
+    private volatile long electionNanos;
+
+    /**
+     * True once {@link #recover()} has proposed again what was accepted before this led.
+     * Until then, reads could miss values decided earlier, so there is no lease.
+     */
+    private volatile boolean recovered;
+
+    /**
+     * The acceptors that promised {@link #n}.
+     */
+    private final Set<Object> promised = new HashSet<Object>();
+
+    /**
+     * The highest numbered proposal each acceptor reported, by instance, to be proposed again.
+     */
+    private final Map<String, Proposal<V>> accepted = new HashMap<String, Proposal<V>>();
+
+    /**
+     * Requests for the lease, by stamp, not yet too old to be granted.
+     */
+    private final Map<Long, Grant> grants = new HashMap<Long, Grant>();
+
+    private volatile long leaseNanos;
+
+    private volatile long driftNanos;
+
+    /**
+     * When, by {@link System#nanoTime()}, the lease ends. Only meaningful while {@link #leading}.
+     */
+    private volatile long leaseEnd = System.nanoTime();
+
+    /**
+     * What this proposed in each instance since it last asked to lead. It is kept for the whole
+     * leadership, so that no instance is given a second value under one number.
+     */
+    private final Map<String, Proposal<V>> proposed = new HashMap<String, Proposal<V>>();
+
+    /**
+     * @param quorum How many Acceptors must promise before this leads.
+     * @param preparer How to ask every acceptor to promise every instance.
+     * @param sender How to send a proposal to every acceptor.
+     */
+    public Leader(final int quorum, final Preparer preparer, final Sender<V> sender) {
+        this.quorum = quorum;
+        this.preparer = preparer;
+        this.sender = sender;
+    }
+
+    /**
+     * Ask to lead with a number higher than any seen.
+     *
+     * @return The number.
+     */
+    public long lead() {
+        final long n;
+        final long stamp;
+        final long lease;
+        synchronized (this) {
+            ++round;
+            n = this.n = round << 32 | token;
+            leading = false;
+            recovered = false;
+            promised.clear();
+            accepted.clear();
+            proposed.clear();
+            grants.clear();
+            stamp = ask();
+            asked = stamp;
+            leaseEnd = stamp;
+            lease = leaseNanos;
+        }
+
+        preparer.lead(n, TimeUnit.NANOSECONDS.toMillis(lease), stamp);
+        return n;
+    }
+
+    /**
+     * Ask the acceptors to extend this leader's lease, if it leads and has one.
+     *
+     * Acceptors do not renew a lease that lapsed, as others may have had values accepted since. If this
+     * leader's lease ended, it asks to lead again instead, and recovers those values before it holds a lease.
+     *
+     * @return True if the acceptors were asked.
+     */
+    public boolean renew() {
+        final long n;
+        final long stamp;
+        final long lease;
+        synchronized (this) {
+            if (!leading || leaseNanos <= 0) {
+                return false;
+            }
+
+            if (leaseEnd - System.nanoTime() > 0) {
+                n = this.n;
+                stamp = ask();
+                lease = leaseNanos;
+            } else {
+                n = 0L;
+                stamp = 0L;
+                lease = 0L;
+            }
+        }
+
+        if (n == 0L) {
+            lead();
+            return true;
+        }
+
+        preparer.lead(n, TimeUnit.NANOSECONDS.toMillis(lease), stamp);
+        return true;
+    }
+
+    /**
+     * Record a request for the lease, forgetting those too old to matter.
+     *
+     * @return Its stamp.
+     */
+    private long ask() {
+        final long stamp = System.nanoTime();
+        grants.keySet().removeIf(s -> stamp - s > leaseNanos);
+        if (leaseNanos > 0) {
+            grants.put(stamp, new Grant(leaseNanos));
+        }
+        return stamp;
+    }
+
+    /**
+     * Count an acceptor's grant of a lease.
+     */
+    private void grant(final long stamp, final Object acceptor) {
+        final Grant grant = grants.get(stamp);
+        if (grant != null && grant.acceptors.add(acceptor) && grant.acceptors.size() == quorum) {
+            final long end = stamp + grant.leaseNanos - driftNanos;
+            if (end - leaseEnd > 0) {
+                leaseEnd = end;
+            }
+        }
+    }
+
+    /**
+     * Count an acceptor's answer to {@link #lead()}.
+     *
+     * @param n The number the acceptor was asked to promise.
+     * @param promise The highest number the acceptor has promised a leader. It refused if this is not n.
+     * @param acceptor Identifies the acceptor, so that it counts once.
+     * @param proposals The proposals the acceptor has accepted, by instance.
+     * @param stamp The stamp of the request answered, identifying the lease it grants.
+     * @return True if this now leads.
+     */
+    public synchronized boolean promise(final long n, final long promise, final Object acceptor, final Map<String, Proposal<V>> proposals, final long stamp) {
+        observe(promise);
+
+        if (n != this.n || promise != n) {
+            return false;
+        }
+
+        grant(stamp, acceptor);
+
+        if (leading) {
+            return false;
+        }
+
+        for (final Map.Entry<String, Proposal<V>> proposal : proposals.entrySet()) {
+            final Proposal<V> previous = accepted.get(proposal.getKey());
+            if (previous == null || previous.getN() < proposal.getValue().getN()) {
+                accepted.put(proposal.getKey(), proposal.getValue());
+            }
+        }
+
+        if (promised.add(acceptor) && promised.size() == quorum) {
+            leading = true;
+        }
+
+        return leading;
+    }
+
+    /**
+     * Note a number promised to a leader, or in one instance. If it is higher than this leader's, this no longer
+     * leads, as acceptors would refuse its proposals, and the next number it leads with is higher.
+     *
+     * @param n The number.
+     */
+    public synchronized void observe(final long n) {
+        round = Math.max(round, n >>> 32);
+        if (n > this.n) {
+            leading = false;
+        }
+    }
+
+    /**
+     * A number for preparing one instance, higher than any seen. It is made as lead numbers are, so a leader
+     * that sees it asks to lead with a higher one rather than being refused in that instance for good.
+     *
+     * @return The number.
+     */
+    public synchronized long next() {
+        ++round;
+        return round << 32 | token;
+    }
+
+    /**
+     * Propose a value in an instance, if this leads.
+     *
+     * If a value was accepted in the instance before this led, or this already proposed one,
+     * that is proposed again instead.
+     *
+     * @param instance The instance.
+     * @param value The value, with any number.
+     * @return The proposal sent, or null if this does not lead.
+     */
+    public Proposal<V> propose(final String instance, final Proposal<V> value) {
+        final Proposal<V> proposal;
+        synchronized (this) {
+            if (!leading) {
+                return null;
+            }
+
+            proposal = choose(instance, value);
+        }
+
+        sender.propose(instance, proposal);
+        return proposal;
+    }
+
+    /**
+     * Propose values in many instances at once, as {@link #propose(String, Proposal)} does each.
+     *
+     * @param values The values, with any numbers, by instance.
+     * @return The proposals sent, by instance, or null if this does not lead.
+     */
+    public Map<String, Proposal<V>> proposeAll(final Map<String, Proposal<V>> values) {
+        final Map<String, Proposal<V>> proposals = new LinkedHashMap<String, Proposal<V>>();
+        final long n;
+        synchronized (this) {
+            if (!leading) {
+                return null;
+            }
+
+            // What this already proposed was proposed since it last asked to lead, so every proposal has its number.
+            n = this.n;
+            for (final Map.Entry<String, Proposal<V>> value : values.entrySet()) {
+                proposals.put(value.getKey(), choose(value.getKey(), value.getValue()));
+            }
+        }
+
+        sender.proposeAll(n, proposals);
+        return proposals;
+    }
+
+    /**
+     * @return The proposal for an instance: what this already proposed, else what was accepted before this led, else the value.
+     */
+    private Proposal<V> choose(final String instance, final Proposal<V> value) {
+        final Proposal<V> previous = proposed.get(instance);
+        if (previous != null) {
+            return previous;
+        }
+
+        final Proposal<V> adopted = accepted.remove(instance);
+        final Proposal<V> chosen = adopted == null ? value : adopted;
+        final Proposal<V> proposal = new Proposal<V>(n, chosen.getValue(), chosen.getEncoding());
+        proposed.put(instance, proposal);
+        return proposal;
+    }
+
+    /**
+     * Propose again every value acceptors had accepted before this led, so that this learns
+     * every value decided before it. Only after this does {@link #hasLease()} hold.
+     */
+    public void recover() {
+        final Map<String, Proposal<V>> proposals = new HashMap<String, Proposal<V>>();
+        final long n;
+        synchronized (this) {
+            if (!leading) {
+                return;
+            }
+
+            n = this.n;
+            for (final Map.Entry<String, Proposal<V>> adopted : accepted.entrySet()) {
+                final Proposal<V> proposal = new Proposal<V>(n, adopted.getValue().getValue(), adopted.getValue().getEncoding());
+                proposed.put(adopted.getKey(), proposal);
+                proposals.put(adopted.getKey(), proposal);
+            }
+            accepted.clear();
+        }
+
+        for (final Map.Entry<String, Proposal<V>> proposal : proposals.entrySet()) {
+            sender.propose(proposal.getKey(), proposal.getValue());
+        }
+
+        // The sender has seen every recovered proposal, so reads wait for them.
+        synchronized (this) {
+            if (n == this.n) {
+                recovered = true;
+            }
+        }
+    }
+
+    /**
+     * @param lease How long acceptors should promise no other leader, or 0 for no lease. It is sent in milliseconds.
+     * @param drift How far acceptors' clocks may run ahead of this one's over a lease.
+     * @param unit The unit of lease and drift.
+     */
+    public void setLease(final long lease, final long drift, final TimeUnit unit) {
+        this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(unit.toMillis(lease));
+        this.driftNanos = unit.toNanos(drift);
+    }
+
+    /**
+     * @param timeout How long after asking to lead this waits for promises before {@link #isElecting()} no longer holds.
+     * @param unit The unit of timeout.
+     */
+    public void setElectionTimeout(final long timeout, final TimeUnit unit) {
+        this.electionNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * Asking to lead again clears what this has proposed and the promises it has, so while an election
+     * is pending, callers should wait for it rather than ask again.
+     *
+     * @return True if this asked to lead within the election timeout and does not lead yet.
+     */
+    public boolean isElecting() {
+        return !leading && n != 0 && System.nanoTime() - asked < electionNanos;
+    }
+
+    /**
+     * @return True if this leads, has {@link #recover() recovered}, and a quorum of acceptors have granted it a lease that has not ended.
+     */
+    public boolean hasLease() {
+        return leading && recovered && leaseNanos > 0 && leaseEnd - System.nanoTime() > 0;
+    }
+
+    /**
+     * @return True if a quorum promised this, and no higher number has been seen since.
+     */
+    public boolean isLeading() {
+        return leading;
+    }
+
+    /**
+     * @return The number this last led with, or 0.
+     */
+    public long getN() {
+        return n;
+    }
+
+    /**
+     * Asks every acceptor to promise every instance to a leader.
+     */
+    @FunctionalInterface
+    public static interface Preparer {
+        /**
+         * @param n The leader's number.
+         * @param lease Milliseconds acceptors should promise no other leader, or 0.
+         * @param stamp Identifies the request. Acceptors return it.
+         */
+        void lead(long n, long lease, long stamp);
+    }
+
+    /**
+     * Acceptors that granted a lease requested at one time.
+     */
+    private static class Grant {
+        final long leaseNanos;
+        final Set<Object> acceptors = new HashSet<Object>();
+
+        Grant(final long leaseNanos) {
+            this.leaseNanos = leaseNanos;
+        }
+    }
+
+    /**
+     * Sends a leader's proposal to every acceptor.
+     */
+    @FunctionalInterface
+    public static interface Sender<V> {
+        void propose(String instance, Proposal<V> proposal);
+
+        /**
+         * Send proposals in many instances, all numbered n. By default each is sent alone.
+         */
+        default void proposeAll(final long n, final Map<String, Proposal<V>> proposals) {
+            for (final Map.Entry<String, Proposal<V>> proposal : proposals.entrySet()) {
+                propose(proposal.getKey(), proposal.getValue());
+            }
+        }
+    }
+}
@@ -1,20 +1,32 @@
 package com.github.basking2.jaxos.paxos;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  */
 public class Learner<V> {
     private final int quorum;
 
-    private final Map<Proposal<V>, Long> values = new HashMap<Proposal<V>, Long>();
+    /**
+     * For each instance, the acceptors that accepted each proposal number.
+     */
+    private final Cache<String, Map<Long, Set<Object>>> votes = CacheBuilder.newBuilder().
+            expireAfterAccess(2, TimeUnit.MINUTES).
+            build();
 
     // The eventual winner.
-    Proposal<V> winner = null;
+    volatile Proposal<V> winner = null;
 
     // Listener to call when a winner is decided.
-    Listener<V> listener = null;
+    volatile Listener<V> listener = null;
 
     public Learner(final int quorum, final Listener<V> listener) {
         this.quorum = quorum;
@@ -26,35 +38,73 @@ public class Learner<V> {
     }
 
     /**
+     * Count a vote from an acceptor that is not identified. Every call is another vote.
+     *
      * @param p
      * @return True when a value is set.
      */
     public boolean learn(final String instance, final Proposal<V> p) {
-        // Get the votes count.
-        Long votes = values.get(p.getValue());
-        if (votes == null) {
-            votes = 0L;
-        }
-        
-        votes = votes + 1;
-
-        // Increment it.
-        values.put(p, votes);
+        return learn(instance, p, new Object());
+    }
 
-        // Check if we have a winner. Use == because we only want to signal once.
-        if (votes == quorum) {
+    /**
+     * Count a vote for a proposal. A proposal is learned once a quorum of acceptors accept its number.
+     *
+     * @param instance The instance.
+     * @param p The accepted proposal.
+     * @param acceptor Identifies the acceptor, so that its vote counts once however often it is received.
+     * @return True when a value is set.
+     */
+    public boolean learn(final String instance, final Proposal<V> p, final Object acceptor) {
+        // Votes may arrive on many threads. Count under the instance's lock, so instances are counted in
+        // parallel, but notify the listener outside it.
+        final Map<Long, Set<Object>> instanceVotes = instanceVotes(instance);
+        synchronized (instanceVotes) {
+            final Set<Object> acceptors = instanceVotes.computeIfAbsent(p.getN(), n -> new HashSet<Object>());
+
+            // Check if we have a winner. Use == because we only want to signal once.
+            if (!acceptors.add(acceptor) || acceptors.size() != quorum) {
+                return false;
+            }
 
             winner = p;
+        }
 
-            final Listener<V> listener = this.listener;
-            if (listener != null) {
-                listener.learn(instance, p);
-            }
+        final Listener<V> listener = this.listener;
+        if (listener != null) {
+            listener.learn(instance, p);
+        }
+
+        return true;
+    }
+
+    /**
+     * @param instance The instance.
+     * @param n A proposal number.
+     * @return True if a quorum of acceptors are known to have accepted the number in the instance.
+     */
+    public boolean isLearned(final String instance, final Long n) {
+        final Map<Long, Set<Object>> instanceVotes = votes.getIfPresent(instance);
+        if (instanceVotes == null) {
+            return false;
+        }
 
-            return true;
+        synchronized (instanceVotes) {
+            final Set<Object> acceptors = instanceVotes.get(n);
+            return acceptors != null && acceptors.size() >= quorum;
         }
+    }
 
-        return false;
+    /**
+     * @return The votes in an instance, which are counted while holding their lock.
+     */
+    private Map<Long, Set<Object>> instanceVotes(final String instance) {
+        // Guava loads the map for a key once. Its asMap().compute is not atomic in this version.
+        try {
+            return votes.get(instance, () -> new HashMap<Long, Set<Object>>());
+        } catch (final ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     /**
@@ -70,7 +120,7 @@ public class Learner<V> {
     public V getValue() {
         return winner == null? null : winner.getValue();
     }
-    
+
     /**
      * When a {@link Learner} learns a value this may be triggered.
      */
@@ -1,5 +1,7 @@
 package com.github.basking2.jaxos.paxos;
 
+import java.util.Map;
+
 /**
  * {@link Acceptor} instances must remember what they promise and what they accept.
  */
@@ -23,4 +25,18 @@ public interface PaxosAcceptorDao<V> {
 
     void storePromise(String instance, Long promise);
 
+    /**
+     * Load every proposal held, for a leader taking over all instances.
+     * @return The proposals by instance.
+     */
+    Map<String, Proposal<V>> loadProposals();
+
+    /**
+     * Load the number promised to a leader for every instance.
+     * @return The number, or 0 if none was promised.
+     */
+    Long loadLeadPromise();
+
+    void storeLeadPromise(Long promise);
+
 }
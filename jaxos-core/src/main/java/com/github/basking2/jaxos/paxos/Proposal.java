@@ -12,9 +12,19 @@ public class Proposal<V> implements Serializable {
 	final private Long n;
     final private V value;
 
+    /**
+     * How the value is encoded, such as a {@link com.github.basking2.jaxos.util.Compression} id. 0 is plain.
+     */
+    final private byte encoding;
+
     public Proposal(final Long n, final V value) {
+        this(n, value, (byte)0);
+    }
+
+    public Proposal(final Long n, final V value, final byte encoding) {
         this.n = n;
         this.value = value;
+        this.encoding = encoding;
     }
 
     public V getValue() {
@@ -24,4 +34,8 @@ public class Proposal<V> implements Serializable {
     public Long getN() {
         return n;
     }
+
+    public byte getEncoding() {
+        return encoding;
+    }
 }
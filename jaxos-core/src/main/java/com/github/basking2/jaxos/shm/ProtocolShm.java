@@ -0,0 +1,396 @@
+package com.github.basking2.jaxos.shm;
+
+import com.github.basking2.jaxos.net.AbstractProtocol;
+import com.github.basking2.jaxos.net.BaseMessage;
+import com.github.basking2.jaxos.net.Frame;
+import com.github.basking2.jaxos.net.SelectorPool;
+import com.github.basking2.jaxos.util.BufferPool;
+import com.google.common.collect.Iterables;
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A protocol between processes on one host, over {@link Ring}s in memory mapped files.
+ *
+ * Each address {@code shm/host:port} names a process by its port. A message from port A to port B
+ * is written to the file {@code B-A.ring} in {@code jaxos.shm.dir}, which only A writes and only B reads,
+ * so sending and receiving a message takes no lock and no system call.
+ *
+ * A thread polls every ring this protocol reads, spinning briefly and then parking for
+ * {@code jaxos.shm.idle.micros} when there is nothing to read. Rings from configured acceptors and learners
+ * are read from the start. Rings from other peers are found by looking in {@code jaxos.shm.dir} every second.
+ *
+ * Messages are not encrypted unless {@code jaxos.shm.encrypt} is true, as the processes share a host
+ * and the files are only readable by their owner. Each record says if it is encrypted. A protocol that
+ * encrypts drops records that are not, so its peers must encrypt too.
+ *
+ * Closing the protocol unmaps its rings and deletes their files. A peer that finds a ring's file deleted
+ * or replaced in its next look at the directory drops its mapping, and any messages still in it.
+ */
+public class ProtocolShm extends AbstractProtocol {
+    private static final Logger LOG = LoggerFactory.getLogger(ProtocolShm.class);
+
+    /**
+     * Record flag set when the record is encrypted.
+     */
+    private static final int ENCRYPTED = 1;
+
+    private static final String SUFFIX = ".ring";
+
+    private static final long SCAN_MILLIS = 1000L;
+
+    /**
+     * A reader that has not recorded it is alive for this long is not connected.
+     */
+    private static final long HEARTBEAT_TIMEOUT_MILLIS = 3 * SCAN_MILLIS;
+
+    private static final int SPINS = 100;
+
+    private final InetSocketAddress bind;
+
+    private final Path dir;
+
+    private final int ringBytes;
+
+    private final boolean encrypt;
+
+    private final long idleNanos;
+
+    /**
+     * Rings this protocol writes, by the port of the peer that reads them.
+     */
+    private final Map<Integer, Ring> outbound = new ConcurrentHashMap<Integer, Ring>();
+
+    /**
+     * Rings this protocol reads. Only the constructor and then the polling thread change this.
+     */
+    private final List<Inbound> inbound = new CopyOnWriteArrayList<Inbound>();
+
+    /**
+     * Ports of configured peers, whose rings are always read.
+     */
+    private final Set<Integer> configured = new HashSet<Integer>();
+
+    private final Thread poller;
+
+    private volatile boolean closed;
+
+    public ProtocolShm(
+            final InetSocketAddress bind,
+            final Configuration configuration,
+            final List<? extends SocketAddress> acceptors,
+            final List<? extends SocketAddress> learners
+    ) throws IOException {
+        this(bind, configuration, acceptors, learners, null, null);
+    }
+
+    public ProtocolShm(
+            final InetSocketAddress bind,
+            final Configuration configuration,
+            final List<? extends SocketAddress> acceptors,
+            final List<? extends SocketAddress> learners,
+            final SelectorPool selectorPool,
+            final BufferPool bufferPool
+    ) throws IOException {
+        super(bind, configuration, acceptors, learners, selectorPool, bufferPool);
+        this.bind = bind;
+        this.dir = Paths.get(configuration.getString("jaxos.shm.dir", defaultDir()));
+        this.ringBytes = configuration.getInt("jaxos.shm.ring.bytes", 4 << 20);
+        this.encrypt = configuration.getBoolean("jaxos.shm.encrypt", false);
+        this.idleNanos = TimeUnit.MICROSECONDS.toNanos(configuration.getLong("jaxos.shm.idle.micros", 100L));
+
+        Files.createDirectories(dir);
+
+        // Rings from configured peers are read from the start, rather than once a scan finds them.
+        for (final SocketAddress peer : Iterables.concat(acceptors, learners)) {
+            if (peer instanceof InetSocketAddress && ((InetSocketAddress) peer).getPort() != bind.getPort()) {
+                configured.add(((InetSocketAddress) peer).getPort());
+            }
+        }
+        for (final int port : configured) {
+            read(port);
+        }
+        scan();
+
+        this.poller = new Thread(this::poll, "jaxos-shm-" + bind.getPort());
+        this.poller.setDaemon(true);
+        this.poller.start();
+    }
+
+    private static String defaultDir() {
+        if (Files.isDirectory(Paths.get("/dev/shm"))) {
+            return "/dev/shm/jaxos";
+        }
+
+        return Paths.get(System.getProperty("java.io.tmpdir"), "jaxos-shm").toString();
+    }
+
+    /**
+     * Open the rings that peers have created to write to this protocol, and record that it is alive.
+     *
+     * Rings whose files a closing peer deleted are dropped, and those of configured peers are created again.
+     */
+    private void scan() throws IOException {
+        final long now = System.currentTimeMillis();
+        final String prefix = bind.getPort() + "-";
+
+        for (final Inbound in : inbound) {
+            if (in.ring.isStale()) {
+                LOG.debug("Dropping ring {}", in.ring.getPath());
+                inbound.remove(in);
+                in.ring.close();
+                if (configured.contains(in.addr.getPort())) {
+                    read(in.addr.getPort());
+                }
+            }
+        }
+
+        for (final Map.Entry<Integer, Ring> out : outbound.entrySet()) {
+            if (out.getValue().isStale() && outbound.remove(out.getKey(), out.getValue())) {
+                // The next message to the peer creates the ring again.
+                LOG.debug("Dropping ring {}", out.getValue().getPath());
+                out.getValue().close();
+            }
+        }
+
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(dir, prefix + "*" + SUFFIX)) {
+            for (final Path path : paths) {
+                final String name = path.getFileName().toString();
+                final int port;
+                try {
+                    port = Integer.parseInt(name.substring(prefix.length(), name.length() - SUFFIX.length()));
+                } catch (final NumberFormatException e) {
+                    continue;
+                }
+
+                read(port);
+            }
+        }
+
+        for (final Inbound in : inbound) {
+            in.ring.heartbeat(now);
+        }
+    }
+
+    /**
+     * Read the ring from a peer, creating it if needed.
+     */
+    private void read(final int port) throws IOException {
+        if (inbound.stream().noneMatch(in -> in.addr.getPort() == port)) {
+            final Path path = dir.resolve(bind.getPort() + "-" + port + SUFFIX);
+            LOG.debug("Reading ring {}", path);
+            inbound.add(new Inbound(new InetSocketAddress(bind.getAddress(), port), new Ring(path, ringBytes)));
+        }
+    }
+
+    private void poll() {
+        long nextScan = System.currentTimeMillis() + SCAN_MILLIS;
+        int idle = 0;
+
+        while (!closed) {
+            int count = 0;
+            for (final Inbound in : inbound) {
+                try {
+                    count += in.ring.read(in::read);
+                } catch (final IOException e) {
+                    LOG.error("Reading " + in.ring.getPath(), e);
+                }
+            }
+
+            if (count > 0) {
+                idle = 0;
+            } else if (++idle < SPINS) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(idleNanos);
+            }
+
+            if (System.currentTimeMillis() >= nextScan) {
+                nextScan = System.currentTimeMillis() + SCAN_MILLIS;
+                try {
+                    scan();
+                } catch (final IOException e) {
+                    LOG.error("Scanning " + dir, e);
+                }
+            }
+        }
+
+        for (final Inbound in : inbound) {
+            in.ring.heartbeat(0L);
+        }
+    }
+
+    /**
+     * @return The ring to the peer, created if this is the first message to it.
+     */
+    private Ring ring(final SocketAddress addr) throws IOException {
+        if (!(addr instanceof InetSocketAddress)) {
+            throw new IOException("Not a shm address: " + addr);
+        }
+
+        if (closed) {
+            throw new IOException("Protocol is closed.");
+        }
+
+        final int port = ((InetSocketAddress) addr).getPort();
+        final Ring ring = outbound.get(port);
+        if (ring != null) {
+            return ring;
+        }
+
+        synchronized (outbound) {
+            // Close releases the rings under this lock, so none is created after.
+            if (closed) {
+                throw new IOException("Protocol is closed.");
+            }
+
+            Ring created = outbound.get(port);
+            if (created == null) {
+                created = new Ring(dir.resolve(port + "-" + bind.getPort() + SUFFIX), ringBytes);
+                outbound.put(port, created);
+            }
+            return created;
+        }
+    }
+
+    /**
+     * Records are copied into the ring.
+     */
+    @Override
+    protected boolean writeCopies() {
+        return true;
+    }
+
+    @Override
+    protected void write(final ByteBuffer encrypted, final SocketAddress addr) throws IOException {
+        ring(addr).write(encrypted, ENCRYPTED);
+    }
+
+    @Override
+    protected void writePlain(final ByteBuffer plain, final SocketAddress addr) throws IOException {
+        if (encrypt) {
+            super.writePlain(plain, addr);
+        } else {
+            ring(addr).write(plain, 0);
+        }
+    }
+
+    @Override
+    protected void writeFrame(final Frame frame, final SocketAddress addr) throws IOException {
+        if (encrypt) {
+            super.writeFrame(frame, addr);
+        } else {
+            ring(addr).write(frame.encoded(), 0);
+        }
+    }
+
+    /**
+     * A quarter of a ring, so a ring holds several of the largest messages, encrypted or not.
+     */
+    @Override
+    protected int maxFrameSize() {
+        return ringBytes / 4;
+    }
+
+    /**
+     * A peer is connected while its process reads the ring to it.
+     */
+    @Override
+    public boolean isConnected(final SocketAddress addr) {
+        try {
+            return System.currentTimeMillis() - ring(addr).lastHeartbeat() < HEARTBEAT_TIMEOUT_MILLIS;
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    protected SocketAddress getBoundAddress() {
+        return bind;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getScheme() {
+        return "shm";
+    }
+
+    /**
+     * Stop reading, then unmap every ring and delete its file.
+     */
+    @Override
+    public void close() throws Exception {
+        closed = true;
+        poller.join();
+
+        for (final Inbound in : inbound) {
+            release(in.ring);
+        }
+        inbound.clear();
+
+        synchronized (outbound) {
+            for (final Ring ring : outbound.values()) {
+                release(ring);
+            }
+            outbound.clear();
+        }
+
+        super.close();
+    }
+
+    private static void release(final Ring ring) {
+        ring.close();
+        try {
+            Files.deleteIfExists(ring.getPath());
+        } catch (final IOException e) {
+            LOG.warn("Deleting " + ring.getPath(), e);
+        }
+    }
+
+    /**
+     * A ring this protocol reads and the peer that writes it.
+     */
+    private class Inbound {
+        final InetSocketAddress addr;
+        final Ring ring;
+
+        Inbound(final InetSocketAddress addr, final Ring ring) {
+            this.addr = addr;
+            this.ring = ring;
+        }
+
+        void read(final ByteBuffer record, final int flags) {
+            try {
+                if ((flags & ENCRYPTED) != 0) {
+                    record.limit(cipherUtil.decryptInPlace(record, 0, record.limit()));
+                } else if (encrypt) {
+                    LOG.warn("Dropping an unencrypted message from {}", addr);
+                    return;
+                }
+                BaseMessage.decode(record, addr, ProtocolShm.this, getMessageHandler());
+            } catch (final IOException e) {
+                LOG.error("Decoding message from " + addr, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package com.github.basking2.jaxos.shm;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+
+/**
+ * A ring of records in a memory mapped file, written by one process and read by another.
+ *
+ * The file holds a header then the records. The writer advances the tail and the reader advances
+ * the head, each only after the records they cover are written or read, so neither needs a lock or
+ * a system call. Both are kept in the file, so a restarted process resumes where it stopped.
+ *
+ * Each record is {@code [int length][int flags][bytes]}, padded to 8 bytes. A record never wraps;
+ * if it does not fit before the end of the ring, the rest of the ring is skipped.
+ *
+ * Writing is synchronized so many threads of the writing process may share a ring. Only one thread reads.
+ *
+ * A ring is unmapped when it is closed, so it must not be read once it is closed. Writes to a closed ring fail.
+ */
+class Ring {
+    private static final int CAPACITY = 0;
+    private static final int HEARTBEAT = 8;
+    private static final int TAIL = 64;
+    private static final int HEAD = 128;
+    private static final int HEADER_SIZE = 192;
+
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /**
+     * The length of the record that skips the rest of the ring.
+     */
+    private static final int PADDING = -1;
+
+    private static final MethodHandle LOAD_FENCE;
+    private static final MethodHandle STORE_FENCE;
+    private static final MethodHandle INVOKE_CLEANER;
+    private static volatile int fence;
+
+    static {
+        MethodHandle loadFence = null;
+        MethodHandle storeFence = null;
+        MethodHandle invokeCleaner = null;
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            final Object unsafe = field.get(null);
+            final MethodType type = MethodType.methodType(void.class);
+            loadFence = MethodHandles.lookup().findVirtual(unsafeClass, "loadFence", type).bindTo(unsafe);
+            storeFence = MethodHandles.lookup().findVirtual(unsafeClass, "storeFence", type).bindTo(unsafe);
+            invokeCleaner = MethodHandles.lookup().findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class)).bindTo(unsafe);
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            // Fall back to a volatile field, below, and to the buffer's own cleaner before Java 9.
+        }
+        LOAD_FENCE = loadFence;
+        STORE_FENCE = storeFence;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final Path path;
+
+    private final MappedByteBuffer buffer;
+
+    private final int capacity;
+
+    /**
+     * Identifies the file mapped, or null if the file system does not say.
+     */
+    private final Object fileKey;
+
+    private boolean closed;
+
+    /**
+     * The writer's or the reader's copy of its own position.
+     */
+    private long tail;
+    private long head;
+
+    /**
+     * Map a ring, creating its file, readable only by its owner, if there is none.
+     *
+     * @param path The file.
+     * @param capacity The bytes of records a new ring holds. An existing ring keeps its own capacity.
+     * @throws IOException If the file cannot be mapped.
+     */
+    Ring(final Path path, final int capacity) throws IOException {
+        this.path = path;
+
+        final FileAttribute<?>[] attributes = FileSystems.getDefault().supportedFileAttributeViews().contains("posix")
+                ? new FileAttribute<?>[]{ PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")) }
+                : new FileAttribute<?>[0];
+
+        try (FileChannel channel = FileChannel.open(
+                path,
+                EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE),
+                attributes
+        )) {
+            if (channel.size() < HEADER_SIZE) {
+                final ByteBuffer header = ByteBuffer.allocate(8);
+                header.putInt(0, align(capacity));
+                channel.write(header, CAPACITY);
+            }
+
+            final ByteBuffer header = ByteBuffer.allocate(4);
+            channel.read(header, CAPACITY);
+            this.capacity = header.getInt(0);
+            if (this.capacity <= 0 || this.capacity % 8 != 0) {
+                throw new IOException("Ring " + path + " has an invalid capacity of " + this.capacity + " bytes.");
+            }
+
+            // The mapping stays valid once the channel is closed.
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + this.capacity);
+        }
+
+        this.fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+
+        this.tail = buffer.getLong(TAIL);
+        this.head = buffer.getLong(HEAD);
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return The largest record that may be written.
+     */
+    int maxRecordSize() {
+        return capacity / 2 - RECORD_HEADER_SIZE;
+    }
+
+    /**
+     * Append a record.
+     *
+     * @param data The bytes from the buffer's position to its limit. The position is not changed.
+     * @param flags Flags the reader is given with the record.
+     * @throws IOException If the record is too large or the ring has no room for it.
+     */
+    synchronized void write(final ByteBuffer data, final int flags) throws IOException {
+        if (closed) {
+            throw new IOException("Ring " + path + " is closed.");
+        }
+
+        final int length = data.remaining();
+        if (length > maxRecordSize()) {
+            throw new IOException("Record of " + length + " bytes is too large for ring " + path);
+        }
+
+        final int size = align(RECORD_HEADER_SIZE + length);
+        int index = (int) (tail % capacity);
+        final int padding = capacity - index < size ? capacity - index : 0;
+
+        loadFence();
+        final long head = buffer.getLong(HEAD);
+        if (tail + padding + size - head > capacity) {
+            throw new IOException("Ring " + path + " is full.");
+        }
+
+        if (padding > 0) {
+            buffer.putInt(HEADER_SIZE + index, PADDING);
+            tail += padding;
+            index = 0;
+        }
+
+        final ByteBuffer record = buffer.duplicate();
+        record.position(HEADER_SIZE + index);
+        record.putInt(length).putInt(flags).put(data.duplicate());
+
+        // Publish the record only once it is written.
+        tail += size;
+        storeFence();
+        buffer.putLong(TAIL, tail);
+    }
+
+    /**
+     * Something that handles each record read.
+     */
+    @FunctionalInterface
+    interface Reader {
+        /**
+         * @param record The record from 0 to its limit. It may be modified, but not kept once this returns.
+         * @param flags The record's flags.
+         */
+        void read(ByteBuffer record, int flags);
+    }
+
+    /**
+     * Read every record written so far.
+     *
+     * @param reader Handles each record in turn.
+     * @return The number of records read.
+     * @throws IOException If the ring is corrupt. Its records are skipped.
+     */
+    int read(final Reader reader) throws IOException {
+        final long tail = buffer.getLong(TAIL);
+        loadFence();
+
+        int count = 0;
+        while (head < tail) {
+            final int index = (int) (head % capacity);
+            final int length = buffer.getInt(HEADER_SIZE + index);
+
+            if (length == PADDING) {
+                head += capacity - index;
+            } else if (length < 0 || RECORD_HEADER_SIZE + length > capacity - index) {
+                release(tail);
+                throw new IOException("Ring " + path + " has a record of " + length + " bytes at " + index + ". Skipping to the end.");
+            } else {
+                final ByteBuffer record = buffer.duplicate();
+                record.position(HEADER_SIZE + index + RECORD_HEADER_SIZE).limit(HEADER_SIZE + index + RECORD_HEADER_SIZE + length);
+                reader.read(record.slice(), buffer.getInt(HEADER_SIZE + index + 4));
+                head += align(RECORD_HEADER_SIZE + length);
+                ++count;
+            }
+
+            // Give the space back only once the record is read.
+            release(head);
+        }
+
+        return count;
+    }
+
+    private void release(final long head) {
+        this.head = head;
+        storeFence();
+        buffer.putLong(HEAD, head);
+    }
+
+    /**
+     * Record that the reader is alive.
+     *
+     * @param millis The time, or 0 when the reader stops.
+     */
+    void heartbeat(final long millis) {
+        buffer.putLong(HEARTBEAT, millis);
+    }
+
+    /**
+     * @return The time the reader last recorded it was alive, or 0. Always 0 once closed.
+     */
+    synchronized long lastHeartbeat() {
+        return closed ? 0L : buffer.getLong(HEARTBEAT);
+    }
+
+    /**
+     * @return True if the file was deleted or replaced since this mapped it, so the other process no longer uses this.
+     */
+    boolean isStale() {
+        try {
+            final Object key = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+            return key != null && !key.equals(fileKey);
+        } catch (final NoSuchFileException e) {
+            return true;
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Unmap the ring now, rather than when the buffer is collected. The file is left as it is.
+     */
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invokeExact((ByteBuffer) buffer);
+            } else {
+                final Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                final Object clean = cleaner.invoke(buffer);
+                clean.getClass().getMethod("clean").invoke(clean);
+            }
+        } catch (final Throwable t) {
+            // The mapping is released when the buffer is collected.
+        }
+    }
+
+    private static int align(final int size) {
+        return (size + 7) & ~7;
+    }
+
+    private static void loadFence() {
+        if (LOAD_FENCE == null) {
+            final int ignored = fence;
+            return;
+        }
+
+        try {
+            LOAD_FENCE.invokeExact();
+        } catch (final Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static void storeFence() {
+        if (STORE_FENCE == null) {
+            fence = 0;
+            return;
+        }
+
+        try {
+            STORE_FENCE.invokeExact();
+        } catch (final Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * A protocol between processes on one host, over memory mapped files.
+ */
+package com.github.basking2.jaxos.shm;
@@ -0,0 +1,215 @@
+package com.github.basking2.jaxos.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Gathers items into batches whose size and linger follow the latency each batch sees.
+ *
+ * While no batch is in flight, an item is sent at once, alone. While batches are in flight, items wait
+ * until the batch is full, until the linger ends or until no batch is in flight, so batches grow with the load.
+ *
+ * Each completed batch updates an average latency. If a full batch completed within the target, the size
+ * doubles, up to its maximum. Above the target, while other batches are in flight the latency is queueing,
+ * which fewer, larger batches relieve, so the size also doubles. With none in flight the batch itself was
+ * too slow, so the size halves. The linger is half of what remains of the target after the average latency.
+ * Once none remains, items wait only for a batch to complete.
+ */
+public class AdaptiveBatcher<T> implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(AdaptiveBatcher.class);
+
+    /**
+     * How much each batch's latency moves the average.
+     */
+    private static final double ALPHA = 0.2;
+
+    private final Function<List<T>, CompletableFuture<?>> sender;
+
+    private final long targetNanos;
+
+    private final int maxSize;
+
+    /**
+     * Sends lingering batches and handles completed batches, so a batch completing at once does not send the next from within itself.
+     */
+    private final ScheduledExecutorService timer;
+
+    private final List<T> pending = new ArrayList<T>();
+
+    private int size = 1;
+
+    private long lingerNanos;
+
+    /**
+     * The average latency of batches, or -1 before any completes.
+     */
+    private double latencyNanos = -1;
+
+    private int inFlight;
+
+    private ScheduledFuture<?> lingering;
+
+    /**
+     * @param name The name of the thread that sends lingering batches.
+     * @param target The latency batches should see.
+     * @param maxSize The most items in a batch.
+     * @param unit The unit of target.
+     * @param sender Sends a batch and returns a future that completes when the batch is done.
+     */
+    public AdaptiveBatcher(
+            final String name,
+            final long target,
+            final int maxSize,
+            final TimeUnit unit,
+            final Function<List<T>, CompletableFuture<?>> sender
+    ) {
+        this.sender = sender;
+        this.targetNanos = unit.toNanos(target);
+        this.maxSize = Math.max(1, maxSize);
+        this.lingerNanos = targetNanos / 2;
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Add an item to the next batch, sending the batch if it is full or nothing is in flight.
+     *
+     * @param item The item.
+     */
+    public void add(final T item) {
+        final List<T> batch;
+        synchronized (this) {
+            pending.add(item);
+
+            if (inFlight == 0 || pending.size() >= size) {
+                batch = take();
+            } else {
+                if (lingering == null && lingerNanos > 0) {
+                    lingering = timer.schedule(this::lingered, lingerNanos, TimeUnit.NANOSECONDS);
+                }
+                batch = null;
+            }
+        }
+
+        if (batch != null) {
+            send(batch);
+        }
+    }
+
+    /**
+     * Take the next batch from the pending items. The caller must hold this object's lock.
+     */
+    private List<T> take() {
+        final int count = Math.min(size, pending.size());
+        final List<T> head = pending.subList(0, count);
+        final List<T> batch = new ArrayList<T>(head);
+        head.clear();
+
+        if (pending.isEmpty() && lingering != null) {
+            lingering.cancel(false);
+            lingering = null;
+        }
+
+        ++inFlight;
+        return batch;
+    }
+
+    private void send(final List<T> batch) {
+        final long start = System.nanoTime();
+
+        CompletableFuture<?> sent;
+        try {
+            sent = sender.apply(batch);
+        }
+        catch (final RuntimeException e) {
+            LOG.error("Sending a batch of " + batch.size(), e);
+            sent = CompletableFuture.completedFuture(null);
+        }
+
+        sent.whenCompleteAsync((v, e) -> completed(batch.size(), System.nanoTime() - start), timer);
+    }
+
+    private void lingered() {
+        final List<T> batch;
+        synchronized (this) {
+            lingering = null;
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = take();
+        }
+
+        send(batch);
+    }
+
+    private void completed(final int count, final long nanos) {
+        final List<List<T>> batches = new ArrayList<List<T>>();
+        synchronized (this) {
+            --inFlight;
+
+            latencyNanos = latencyNanos < 0 ? nanos : latencyNanos + ALPHA * (nanos - latencyNanos);
+            if (latencyNanos > targetNanos && inFlight == 0) {
+                size = Math.max(1, size / 2);
+            } else if (latencyNanos > targetNanos || count >= size) {
+                size = Math.min(maxSize, size * 2);
+            }
+            lingerNanos = Math.max(0L, (long) ((targetNanos - latencyNanos) / 2));
+
+            while (!pending.isEmpty() && (inFlight == 0 || pending.size() >= size)) {
+                batches.add(take());
+            }
+        }
+
+        for (final List<T> batch : batches) {
+            send(batch);
+        }
+    }
+
+    /**
+     * @return The most items the next batch may hold.
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * @return The batches sent that have not completed.
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return How long items wait for a batch to fill while batches are in flight.
+     */
+    public synchronized long getLinger(final TimeUnit unit) {
+        return unit.convert(lingerNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return The average latency of batches, or -1 before any completes.
+     */
+    public synchronized long getLatency(final TimeUnit unit) {
+        return latencyNanos < 0 ? -1L : unit.convert((long) latencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stop sending lingering batches. Items not yet sent are dropped.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+}
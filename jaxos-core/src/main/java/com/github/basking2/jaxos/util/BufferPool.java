@@ -0,0 +1,140 @@
+package com.github.basking2.jaxos.util;
+
+import org.apache.commons.configuration.Configuration;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded pool of {@link ByteBuffer}s in power of two size classes.
+ *
+ * A request is served from the smallest class that fits it. Requests larger than the largest
+ * class are allocated and are dropped when released. The pool never allocates to track its own
+ * buffers, so steady state use creates no garbage.
+ */
+public class BufferPool {
+    private final int minSize;
+    private final boolean direct;
+
+    /**
+     * Released buffers by size class. Class i holds buffers of {@code minSize << i} bytes.
+     */
+    private final BlockingQueue<ByteBuffer>[] classes;
+
+    /**
+     * A pool with a single size class.
+     *
+     * @param bufferSize The capacity of pooled buffers.
+     * @param maxBuffers How many released buffers are kept.
+     * @param direct If true, buffers are allocated off-heap with {@link ByteBuffer#allocateDirect(int)}.
+     */
+    public BufferPool(final int bufferSize, final int maxBuffers, final boolean direct) {
+        this(bufferSize, bufferSize, maxBuffers, direct);
+    }
+
+    /**
+     * @param minSize The capacity of the smallest size class.
+     * @param maxSize The least capacity of the largest size class.
+     * @param maxBuffers How many released buffers are kept in each size class.
+     * @param direct If true, buffers are allocated off-heap with {@link ByteBuffer#allocateDirect(int)}.
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(final int minSize, final int maxSize, final int maxBuffers, final boolean direct) {
+        this.minSize = Math.max(1, minSize);
+        this.direct = direct;
+
+        int count = 1;
+        while ((long)this.minSize << (count - 1) < maxSize && (long)this.minSize << count <= Integer.MAX_VALUE) {
+            ++count;
+        }
+
+        @SuppressWarnings("unchecked")
+        final BlockingQueue<ByteBuffer>[] classes = (BlockingQueue<ByteBuffer>[]) new BlockingQueue<?>[count];
+        this.classes = classes;
+        for (int i = 0; i < count; ++i) {
+            classes[i] = new ArrayBlockingQueue<ByteBuffer>(Math.max(1, maxBuffers));
+        }
+    }
+
+    /**
+     * Build a pool from {@code jaxos.buffers.min}, {@code .max}, {@code .count} and {@code .direct}.
+     *
+     * @param configuration The configuration.
+     * @return A new pool.
+     */
+    public static BufferPool fromConfiguration(final Configuration configuration) {
+        return new BufferPool(
+            configuration.getInt("jaxos.buffers.min", 1024),
+            configuration.getInt("jaxos.buffers.max", 65536),
+            configuration.getInt("jaxos.buffers.count", 64),
+            configuration.getBoolean("jaxos.buffers.direct", false)
+        );
+    }
+
+    /**
+     * @param size The least capacity required.
+     * @return A cleared buffer with at least the requested capacity.
+     */
+    public ByteBuffer acquire(final int size) {
+        final int index = sizeClass(size);
+        if (index < 0) {
+            return allocate(size);
+        }
+
+        final ByteBuffer buffer = classes[index].poll();
+        if (buffer == null) {
+            return allocate(minSize << index);
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool. The caller must not use it afterwards.
+     *
+     * @param buffer A buffer from {@link #acquire(int)}.
+     */
+    public void release(final ByteBuffer buffer) {
+        final int index = sizeClass(buffer.capacity());
+        if (index >= 0 && buffer.capacity() == minSize << index && buffer.isDirect() == direct) {
+            classes[index].offer(buffer);
+        }
+    }
+
+    /**
+     * @return The capacity of the smallest pooled buffers.
+     */
+    public int getMinBufferSize() {
+        return minSize;
+    }
+
+    /**
+     * @return The capacity of the largest pooled buffers.
+     */
+    public int getMaxBufferSize() {
+        return minSize << (classes.length - 1);
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * @return The index of the smallest class holding {@code size} bytes, or -1 if none does.
+     */
+    private int sizeClass(final int size) {
+        for (int i = 0; i < classes.length; ++i) {
+            if (size <= minSize << i) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private ByteBuffer allocate(final int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+}
@@ -2,41 +2,135 @@ package com.github.basking2.jaxos.util;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.AlgorithmParameters;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.InvalidParameterSpecException;
 import java.security.spec.KeySpec;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.configuration.Configuration;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Encrypts and decrypts messages with a key derived from {@code jaxos.secret}.
+ *
+ * Deriving the key is very expensive, so it is done once per secret and shared by
+ * every instance of this class. Initialized {@link Cipher} objects are kept per thread.
+ *
+ * Authenticated ciphers, {@code AES/GCM/NoPadding} and {@code ChaCha20-Poly1305}, are selected
+ * with {@code jaxos.cipher} like any other. Each instance encrypts under its own key, derived from the
+ * shared key by HKDF with a random {@link #SALT_LENGTH} byte salt, and counts its nonces from 0.
+ * Nonces are then never reused for a key, however many instances share the secret. Output is
+ * prefixed with the salt and then the {@link #NONCE_LENGTH} byte nonce.
+ */
 public class CipherUtil {
+	/**
+	 * The length of the nonce that prefixes authenticated cipher text.
+	 */
+	public static final int NONCE_LENGTH = 12;
+
+	/**
+	 * The length of the salt that prefixes authenticated cipher text, ahead of the nonce.
+	 */
+	public static final int SALT_LENGTH = 16;
+
+	/**
+	 * The bytes authenticated cipher text is prefixed with.
+	 */
+	public static final int HEADER_LENGTH = SALT_LENGTH + NONCE_LENGTH;
+
+	/**
+	 * The length of authentication tags, in bits.
+	 */
+	public static final int TAG_LENGTH = 128;
+
+	/**
+	 * Keys derived from a secret, by key algorithm, key length and secret.
+	 */
+	private static final ConcurrentMap<String, Key> KEYS = new ConcurrentHashMap<String, Key>();
+
 	final String cipherName;
 	final String secret;
+	final String keyAlgorithm;
+	final int keyLength; //Cipher.getMaxAllowedKeyLength(cipherName);
+	final boolean aead;
+
+	/**
+	 * Salts the key this instance encrypts with.
+	 */
+	private final byte[] salt = new byte[SALT_LENGTH];
+
+	/**
+	 * The last 8 bytes of the next nonce this instance produces. The first 4 are 0.
+	 */
+	private final AtomicLong nonceCounter = new AtomicLong();
+
+	/**
+	 * Keys derived for the salts of other instances' messages, by salt.
+	 */
+	private final Cache<ByteBuffer, Key> saltedKeys = CacheBuilder.newBuilder().
+			maximumSize(1024).
+			build();
+
+	/**
+	 * The key for this instance, once it has been looked up.
+	 */
+	private volatile Key key;
+
+	private final ThreadLocal<Cipher> encryptCipher = new ThreadLocal<Cipher>();
+	private final ThreadLocal<Cipher> decryptCipher = new ThreadLocal<Cipher>();
 
 	public CipherUtil(final Configuration configuration) {
 		this.cipherName = configuration.getString("jaxos.cipher", "AES/CBC/PKCS5Padding");
 		this.secret = configuration.getString("jaxos.secret", "Don't tell.");
+
+		if (cipherName.startsWith("ChaCha20")) {
+			this.keyAlgorithm = "ChaCha20";
+			this.keyLength = 256;
+		} else {
+			this.keyAlgorithm = "AES";
+			this.keyLength = 128;
+		}
+
+		this.aead = cipherName.contains("/GCM/") || cipherName.endsWith("-Poly1305");
+		new SecureRandom().nextBytes(salt);
+	}
+
+	/**
+	 * @return True if the configured cipher authenticates what it decrypts.
+	 */
+	public boolean isAead() {
+		return aead;
 	}
 
 	public ByteBuffer decrypt(final ByteBuffer buffer) throws IOException
 	{
 		try {
-			final Cipher cipher = buildCipher(Cipher.DECRYPT_MODE);
-			return ByteBuffer.wrap(cipher.doFinal(buffer.array(), 0, buffer.position()));
+			return ByteBuffer.wrap(decrypt(buffer.array(), 0, buffer.position()));
 		}
 		catch (final Exception e){
 			throw new IOException("Cannot decrypt message.", e);
@@ -46,11 +140,10 @@ public class CipherUtil {
 	public ByteBuffer encrypt(final ByteBuffer buffer) throws IOException
 	{
 		try {
-			final Cipher cipher = buildCipher(Cipher.ENCRYPT_MODE);
-			return ByteBuffer.wrap(cipher.doFinal(buffer.array(), 0, buffer.position()));
+			return ByteBuffer.wrap(encrypt(buffer.array(), 0, buffer.position()));
 		}
 		catch (final Exception e){
-			throw new IOException("Cannot decrypt message.", e);
+			throw new IOException("Cannot encrypt message.", e);
 		}
 	}
 
@@ -77,8 +170,7 @@ public class CipherUtil {
 			InvalidParameterSpecException,
 			InvalidAlgorithmParameterException
 	{
-        final Cipher cipher = buildCipher(Cipher.DECRYPT_MODE);
-        return cipher.doFinal(data, start, length);
+		return doFinal(decryptCipher, Cipher.DECRYPT_MODE, data, start, length);
 	}
 
     public byte[] encrypt(final byte[] data) throws
@@ -104,8 +196,263 @@ public class CipherUtil {
 	InvalidParameterSpecException,
 	InvalidAlgorithmParameterException
 	{
-		final Cipher cipher = buildCipher(Cipher.ENCRYPT_MODE);
-		return cipher.doFinal(data, start, length);
+		return doFinal(encryptCipher, Cipher.ENCRYPT_MODE, data, start, length);
+	}
+
+	/**
+	 * @param length The length of some plain text.
+	 * @return The most bytes {@link #encrypt(ByteBuffer, ByteBuffer)} writes for it.
+	 * @throws IOException If the cipher cannot be built.
+	 */
+	public int getOutputSize(final int length) throws IOException
+	{
+		if (aead) {
+			return HEADER_LENGTH + length + TAG_LENGTH / 8;
+		}
+
+		try {
+			Cipher cipher = encryptCipher.get();
+			if (cipher == null) {
+				cipher = buildCipher(Cipher.ENCRYPT_MODE);
+				encryptCipher.set(cipher);
+			}
+			return cipher.getOutputSize(length);
+		}
+		catch (final Exception e) {
+			throw new IOException("Cannot size cipher text.", e);
+		}
+	}
+
+	/**
+	 * Encrypt into a buffer the caller provides, such as a pooled one, rather than a new array.
+	 *
+	 * @param plain The plain text from its position to its limit. Its position is advanced to its limit.
+	 * @param out Where the cipher text is written, from its position, which is advanced past it.
+	 *            It must have {@link #getOutputSize(int)} bytes remaining.
+	 * @throws IOException If the data cannot be encrypted.
+	 */
+	public void encrypt(final ByteBuffer plain, final ByteBuffer out) throws IOException
+	{
+		Cipher cipher = encryptCipher.get();
+
+		try {
+			if (cipher == null) {
+				cipher = buildCipher(Cipher.ENCRYPT_MODE);
+				encryptCipher.set(cipher);
+			}
+
+			if (aead) {
+				final byte[] nonce = nextNonce();
+				cipher.init(Cipher.ENCRYPT_MODE, getSaltedKey(salt, 0), nonceSpec(nonce));
+				out.put(salt).put(nonce);
+			}
+
+			cipher.doFinal(plain, out);
+		}
+		catch (final Exception e) {
+			encryptCipher.remove();
+			throw new IOException("Cannot encrypt message.", e);
+		}
+	}
+
+	/**
+	 * Run a whole encrypt or decrypt operation on this thread's cipher for the given mode.
+	 *
+	 * A {@link Cipher} returns to its initialized state after {@link Cipher#doFinal()}, so it is
+	 * reused for the next message. If the operation fails the cipher is discarded.
+	 */
+	private byte[] doFinal(
+			final ThreadLocal<Cipher> ciphers,
+			final int mode,
+			final byte[] data,
+			final int start,
+			final int length
+	) throws
+	NoSuchPaddingException,
+	NoSuchAlgorithmException,
+	InvalidKeySpecException,
+	InvalidKeyException,
+	BadPaddingException,
+	IllegalBlockSizeException,
+	InvalidParameterSpecException,
+	InvalidAlgorithmParameterException
+	{
+		Cipher cipher = ciphers.get();
+		if (cipher == null) {
+			cipher = buildCipher(mode);
+			ciphers.set(cipher);
+		}
+
+		try {
+			if (!aead) {
+				return cipher.doFinal(data, start, length);
+			}
+
+			if (mode == Cipher.ENCRYPT_MODE) {
+				final byte[] nonce = nextNonce();
+				cipher.init(mode, getSaltedKey(salt, 0), nonceSpec(nonce));
+				final byte[] out = new byte[HEADER_LENGTH + cipher.getOutputSize(length)];
+				System.arraycopy(salt, 0, out, 0, SALT_LENGTH);
+				System.arraycopy(nonce, 0, out, SALT_LENGTH, NONCE_LENGTH);
+				cipher.doFinal(data, start, length, out, HEADER_LENGTH);
+				return out;
+			}
+
+			checkNonce(length);
+			cipher.init(mode, getSaltedKey(data, start), nonceSpec(data, start + SALT_LENGTH));
+			return cipher.doFinal(data, start + HEADER_LENGTH, length - HEADER_LENGTH);
+		}
+		catch (final ShortBufferException e) {
+			ciphers.remove();
+			throw new IllegalStateException("Output buffer sized by the cipher was too small.", e);
+		}
+		catch (final BadPaddingException | IllegalBlockSizeException | RuntimeException e) {
+			ciphers.remove();
+			throw e;
+		}
+	}
+
+	/**
+	 * Decrypt the data in place, writing the plain text at {@code start}.
+	 *
+	 * This avoids copying received messages into a new buffer.
+	 *
+	 * @param data The array holding the cipher text.
+	 * @param start Where the cipher text, and then the plain text, starts.
+	 * @param length The length of the cipher text.
+	 * @return The length of the plain text written at {@code start}.
+	 * @throws IOException If the data cannot be decrypted or fails authentication.
+	 */
+	public int decryptInPlace(final byte[] data, final int start, final int length) throws IOException
+	{
+		Cipher cipher = decryptCipher.get();
+
+		try {
+			if (cipher == null) {
+				cipher = buildCipher(Cipher.DECRYPT_MODE);
+				decryptCipher.set(cipher);
+			}
+
+			// Cipher.doFinal is copy-safe when the input and output arrays are the same.
+			if (!aead) {
+				return cipher.doFinal(data, start, length, data, start);
+			}
+
+			checkNonce(length);
+			cipher.init(Cipher.DECRYPT_MODE, getSaltedKey(data, start), nonceSpec(data, start + SALT_LENGTH));
+			return cipher.doFinal(data, start + HEADER_LENGTH, length - HEADER_LENGTH, data, start);
+		}
+		catch (final Exception e) {
+			decryptCipher.remove();
+			throw new IOException("Cannot decrypt message.", e);
+		}
+	}
+
+	/**
+	 * Decrypt the data in place, writing the plain text at {@code start}.
+	 *
+	 * Heap buffers are decrypted in their backing array. Direct buffers are decrypted without
+	 * copying them onto the heap.
+	 *
+	 * @param buffer The buffer holding the cipher text. Its position and limit are not changed.
+	 * @param start Where the cipher text, and then the plain text, starts.
+	 * @param length The length of the cipher text.
+	 * @return The length of the plain text written at {@code start}.
+	 * @throws IOException If the data cannot be decrypted or fails authentication.
+	 */
+	public int decryptInPlace(final ByteBuffer buffer, final int start, final int length) throws IOException
+	{
+		if (buffer.hasArray()) {
+			return decryptInPlace(buffer.array(), buffer.arrayOffset() + start, length);
+		}
+
+		Cipher cipher = decryptCipher.get();
+
+		try {
+			if (cipher == null) {
+				cipher = buildCipher(Cipher.DECRYPT_MODE);
+				decryptCipher.set(cipher);
+			}
+
+			final ByteBuffer input = buffer.duplicate();
+			final ByteBuffer output = buffer.duplicate();
+			input.limit(start + length).position(start);
+			output.limit(output.capacity()).position(start);
+
+			if (aead) {
+				checkNonce(length);
+				final byte[] header = new byte[HEADER_LENGTH];
+				input.get(header);
+				cipher.init(Cipher.DECRYPT_MODE, getSaltedKey(header, 0), nonceSpec(header, SALT_LENGTH));
+			}
+
+			// Cipher.doFinal is copy-safe when the input and output share memory.
+			return cipher.doFinal(input, output);
+		}
+		catch (final Exception e) {
+			decryptCipher.remove();
+			throw new IOException("Cannot decrypt message.", e);
+		}
+	}
+
+	private byte[] nextNonce() {
+		return ByteBuffer.allocate(NONCE_LENGTH).putInt(0).putLong(nonceCounter.getAndIncrement()).array();
+	}
+
+	private void checkNonce(final int length) throws IllegalBlockSizeException {
+		if (length < HEADER_LENGTH) {
+			throw new IllegalBlockSizeException("Cipher text is shorter than its salt and nonce.");
+		}
+	}
+
+	/**
+	 * @return The key derived for the salt at {@code start}, deriving it only if this has not.
+	 */
+	private Key getSaltedKey(final byte[] data, final int start) throws InvalidKeySpecException, NoSuchAlgorithmException {
+		final ByteBuffer salt = ByteBuffer.wrap(data, start, SALT_LENGTH).slice();
+
+		Key key = saltedKeys.getIfPresent(salt);
+		if (key == null) {
+			final byte[] copy = new byte[SALT_LENGTH];
+			salt.duplicate().get(copy);
+			key = deriveKey(getKey(), copy, keyAlgorithm, keyLength);
+			saltedKeys.put(ByteBuffer.wrap(copy), key);
+		}
+
+		return key;
+	}
+
+	/**
+	 * HKDF (RFC 5869) with SHA-256, for keys up to 256 bits.
+	 */
+	private static Key deriveKey(final Key key, final byte[] salt, final String algorithm, final int length)
+			throws NoSuchAlgorithmException
+	{
+		try {
+			final Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+			final byte[] prk = mac.doFinal(key.getEncoded());
+
+			mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+			mac.update("jaxos message key".getBytes(StandardCharsets.UTF_8));
+			mac.update((byte) 1);
+			return new SecretKeySpec(mac.doFinal(), 0, length / 8, algorithm);
+		}
+		catch (final InvalidKeyException e) {
+			throw new IllegalStateException("HMAC refused a key.", e);
+		}
+	}
+
+	private AlgorithmParameterSpec nonceSpec(final byte[] nonce) {
+		return nonceSpec(nonce, 0);
+	}
+
+	private AlgorithmParameterSpec nonceSpec(final byte[] data, final int start) {
+		if (keyAlgorithm.equals("AES")) {
+			return new GCMParameterSpec(TAG_LENGTH, data, start, NONCE_LENGTH);
+		} else {
+			return new IvParameterSpec(data, start, NONCE_LENGTH);
+		}
 	}
 
 	public Cipher buildCipher(final int mode) throws
@@ -117,9 +464,14 @@ public class CipherUtil {
 	InvalidAlgorithmParameterException
 	{
 		final Cipher cipher = Cipher.getInstance(cipherName);
-		final int length = 128; //Cipher.getMaxAllowedKeyLength(cipherName);
 
-		final Key key = generateKey(secret, length);
+		final Key key = getKey();
+
+		// Authenticated ciphers are initialized with a fresh nonce for every message.
+		if (aead) {
+			cipher.init(mode, getSaltedKey(salt, 0), nonceSpec(nextNonce()));
+			return cipher;
+		}
 
 		final AlgorithmParameters params = cipher.getParameters();
 
@@ -133,20 +485,65 @@ public class CipherUtil {
 		return cipher;
 	}
 
-	private Key generateKey(final String phrase, final int length) 
+	/**
+	 * @param other Another cipher or null.
+	 * @return True if the other cipher uses the same algorithm and key, so their cipher text is interchangeable.
+	 */
+	public boolean sameKey(final CipherUtil other) {
+		if (other == this) {
+			return true;
+		}
+
+		if (other == null || !cipherName.equals(other.cipherName)) {
+			return false;
+		}
+
+		try {
+			return getKey() == other.getKey();
+		}
+		catch (final InvalidKeySpecException | NoSuchAlgorithmException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return The key for this secret, deriving it only if no other instance has.
+	 */
+	public Key getKey() throws InvalidKeySpecException, NoSuchAlgorithmException
+	{
+		if (this.key != null) {
+			return this.key;
+		}
+
+		final String keyId = keyAlgorithm + ":" + keyLength + ":" + secret;
+
+		Key key = KEYS.get(keyId);
+		if (key == null) {
+			key = generateKey(secret, keyAlgorithm, keyLength);
+
+			final Key other = KEYS.putIfAbsent(keyId, key);
+			if (other != null) {
+				key = other;
+			}
+		}
+
+		this.key = key;
+
+		return key;
+	}
+
+	private static Key generateKey(final String phrase, final String algorithm, final int length)
 			throws
-			NoSuchPaddingException,
 			NoSuchAlgorithmException,
-			InvalidKeySpecException,
-			InvalidKeyException
+			InvalidKeySpecException
 	{
 		// Generate a key.
 		final SecretKeyFactory secretKeyFactory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-		final KeySpec keySpec = new PBEKeySpec(secret.toCharArray(), "just some salt".getBytes(), 65535, length);
+		final KeySpec keySpec = new PBEKeySpec(phrase.toCharArray(), "just some salt".getBytes(), 65535, length);
 		final SecretKey tmpKey = secretKeyFactory.generateSecret(keySpec);
-		final SecretKey aesKey = new SecretKeySpec(tmpKey.getEncoded(), "AES");
+		final SecretKey key = new SecretKeySpec(tmpKey.getEncoded(), algorithm);
 
-		return aesKey;
+		return key;
 	}
 
 
@@ -0,0 +1,162 @@
+package com.github.basking2.jaxos.util;
+
+import com.github.basking2.jaxos.paxos.Proposal;
+import org.apache.commons.compress.compressors.deflate.DeflateCompressorInputStream;
+import org.apache.commons.compress.compressors.deflate.DeflateCompressorOutputStream;
+import org.apache.commons.compress.compressors.deflate.DeflateParameters;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * How a proposal's value is encoded.
+ *
+ * Values are compressed once when proposed and stay compressed as they are sent, accepted and
+ * learned. The encoding travels with the {@link Proposal} and values are decompressed
+ * with {@link #decompress(Proposal)} where they are finally read.
+ */
+public enum Compression {
+    /**
+     * The value is not compressed.
+     */
+    NONE(0),
+
+    /**
+     * Deflate at its fastest level. Cheap enough to use on every large value.
+     */
+    DEFLATE(1),
+
+    /**
+     * XZ. Slower, but compresses further for values that must fit in a datagram.
+     */
+    XZ(2);
+
+    /**
+     * The identifier sent on the network. This fits in 4 bits.
+     */
+    public final byte id;
+
+    Compression(final int id) {
+        this.id = (byte)id;
+    }
+
+    /**
+     * @param id An identifier from {@link #id}.
+     * @return The compression.
+     * @throws IOException If the identifier is unknown.
+     */
+    public static Compression of(final int id) throws IOException {
+        for (final Compression compression : values()) {
+            if (compression.id == id) {
+                return compression;
+            }
+        }
+
+        throw new IOException("Unknown value compression " + id);
+    }
+
+    /**
+     * @param name A compression name, such as {@code deflate}, in any case.
+     * @return The compression.
+     * @throws IllegalArgumentException If the name is unknown.
+     */
+    public static Compression of(final String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Compress a value.
+     *
+     * @param value The value from 0 to its limit. It is not modified.
+     * @return A new buffer holding the compressed value.
+     * @throws IOException If compression fails.
+     */
+    public ByteBuffer compress(final ByteBuffer value) throws IOException {
+        if (this == NONE) {
+            return value;
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.limit() / 2 + 64);
+        try (OutputStream out = compressor(bytes)) {
+            if (value.hasArray()) {
+                out.write(value.array(), value.arrayOffset(), value.limit());
+            } else {
+                final byte[] copy = new byte[value.limit()];
+                final ByteBuffer source = value.duplicate();
+                source.position(0);
+                source.get(copy);
+                out.write(copy);
+            }
+        }
+
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /**
+     * Decompress a value.
+     *
+     * @param value The compressed value from 0 to its limit. It is not modified.
+     * @return The value, which is the given buffer if it was not compressed.
+     * @throws IOException If the value cannot be decompressed.
+     */
+    public ByteBuffer decompress(final ByteBuffer value) throws IOException {
+        if (this == NONE) {
+            return value;
+        }
+
+        final byte[] compressed;
+        final int offset;
+        if (value.hasArray()) {
+            compressed = value.array();
+            offset = value.arrayOffset();
+        } else {
+            compressed = new byte[value.limit()];
+            final ByteBuffer source = value.duplicate();
+            source.position(0);
+            source.get(compressed);
+            offset = 0;
+        }
+
+        try (InputStream in = decompressor(new ByteArrayInputStream(compressed, offset, value.limit()))) {
+            return ByteBuffer.wrap(IOUtils.toByteArray(in));
+        }
+    }
+
+    /**
+     * @param proposal A proposal, as learned or accepted.
+     * @return The proposal's value, decompressed.
+     * @throws IOException If the value cannot be decompressed.
+     */
+    public static ByteBuffer decompress(final Proposal<ByteBuffer> proposal) throws IOException {
+        return of(proposal.getEncoding()).decompress(proposal.getValue());
+    }
+
+    private OutputStream compressor(final OutputStream out) throws IOException {
+        if (this == XZ) {
+            return new XZCompressorOutputStream(out);
+        }
+
+        final DeflateParameters parameters = new DeflateParameters();
+        parameters.setCompressionLevel(1);
+        parameters.setWithZlibHeader(false);
+        return new DeflateCompressorOutputStream(out, parameters);
+    }
+
+    private InputStream decompressor(final InputStream in) throws IOException {
+        if (this == XZ) {
+            return new XZCompressorInputStream(in);
+        }
+
+        final DeflateParameters parameters = new DeflateParameters();
+        parameters.setWithZlibHeader(false);
+        return new DeflateCompressorInputStream(in, parameters);
+    }
+}
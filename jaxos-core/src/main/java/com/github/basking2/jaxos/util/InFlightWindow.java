@@ -0,0 +1,152 @@
+package com.github.basking2.jaxos.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Starts asynchronous tasks such that at most a fixed number are in flight at once.
+ *
+ * A task is in flight from when it is started until the future it returns completes. Tasks submitted while
+ * the window is full wait, in the order submitted, for a task in flight to complete.
+ * Tasks complete in any order.
+ */
+public class InFlightWindow {
+    private static final Logger LOG = LoggerFactory.getLogger(InFlightWindow.class);
+
+    private final Queue<Runnable> waiting = new ArrayDeque<Runnable>();
+
+    private int size;
+
+    private int inFlight;
+
+    /**
+     * True on a thread that is starting waiting tasks.
+     */
+    private final ThreadLocal<Boolean> draining = ThreadLocal.withInitial(() -> false);
+
+    /**
+     * @param size The most tasks in flight at once. At least 1.
+     */
+    public InFlightWindow(final int size) {
+        this.size = Math.max(1, size);
+    }
+
+    /**
+     * Start a task now, or once there is room for it.
+     *
+     * @param task Starts the task and returns a future that completes when it is done.
+     * @param <T> The task's result.
+     * @return A future that completes as the task's does.
+     */
+    public <T> CompletableFuture<T> submit(final Supplier<CompletableFuture<T>> task) {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        final Runnable start = () -> {
+            CompletableFuture<T> started;
+            try {
+                started = task.get();
+            }
+            catch (final RuntimeException e) {
+                started = new CompletableFuture<T>();
+                started.completeExceptionally(e);
+            }
+
+            started.whenComplete((value, e) -> {
+                release();
+                if (e == null) {
+                    result.complete(value);
+                } else {
+                    result.completeExceptionally(e);
+                }
+            });
+        };
+
+        synchronized (this) {
+            waiting.add(start);
+        }
+
+        drain();
+        return result;
+    }
+
+    private void release() {
+        synchronized (this) {
+            --inFlight;
+        }
+
+        drain();
+    }
+
+    /**
+     * Start waiting tasks while there is room.
+     *
+     * A task that completes at once starts the next from this loop rather than from within itself,
+     * so a long queue does not grow the stack.
+     */
+    private void drain() {
+        if (draining.get()) {
+            return;
+        }
+
+        draining.set(true);
+        try {
+            while (true) {
+                final Runnable next;
+                synchronized (this) {
+                    if (inFlight >= size || waiting.isEmpty()) {
+                        return;
+                    }
+                    ++inFlight;
+                    next = waiting.poll();
+                }
+
+                try {
+                    next.run();
+                }
+                catch (final Throwable t) {
+                    LOG.error(t.getMessage(), t);
+                }
+            }
+        } finally {
+            draining.set(false);
+        }
+    }
+
+    /**
+     * Change the most tasks in flight. Waiting tasks start as tasks in flight complete.
+     *
+     * @param size The most tasks in flight at once. At least 1.
+     */
+    public void setSize(final int size) {
+        synchronized (this) {
+            this.size = Math.max(1, size);
+        }
+
+        drain();
+    }
+
+    /**
+     * @return The most tasks in flight at once.
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * @return The tasks in flight.
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return The tasks waiting for room.
+     */
+    public synchronized int getWaiting() {
+        return waiting.size();
+    }
+}
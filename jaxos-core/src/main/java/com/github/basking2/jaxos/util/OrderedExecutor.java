@@ -0,0 +1,89 @@
+package com.github.basking2.jaxos.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks on a fixed set of threads such that tasks with equal keys run in the order submitted.
+ *
+ * Keys are hashed to a partition and each partition is a single thread, so tasks for different
+ * keys run in parallel while tasks for one key never overlap or reorder.
+ */
+public class OrderedExecutor implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(OrderedExecutor.class);
+
+    private final ExecutorService[] partitions;
+
+    /**
+     * @param name The prefix of thread names.
+     * @param threads The number of partitions, each with one thread.
+     */
+    public OrderedExecutor(final String name, final int threads) {
+        this.partitions = new ExecutorService[Math.max(1, threads)];
+
+        for (int i = 0; i < partitions.length; ++i) {
+            partitions[i] = Executors.newSingleThreadExecutor(threadFactory(name + "-" + i));
+        }
+    }
+
+    /**
+     * @param key Tasks with equal keys run in order.
+     * @param task The task. Exceptions are logged.
+     */
+    public void execute(final Object key, final Runnable task) {
+        final int hash = key == null ? 0 : key.hashCode();
+
+        // Spread the hash so names differing only in their last characters land on different threads.
+        final int index = Math.floorMod(hash ^ (hash >>> 16), partitions.length);
+
+        partitions[index].execute(() -> {
+            try {
+                task.run();
+            }
+            catch (final Throwable t) {
+                LOG.error(t.getMessage(), t);
+            }
+        });
+    }
+
+    public int size() {
+        return partitions.length;
+    }
+
+    /**
+     * Stop accepting tasks and wait briefly for queued tasks to finish. If interrupted, queued tasks are dropped.
+     */
+    @Override
+    public void close() {
+        for (final ExecutorService partition : partitions) {
+            partition.shutdown();
+        }
+
+        try {
+            for (final ExecutorService partition : partitions) {
+                if (!partition.awaitTermination(10, TimeUnit.SECONDS)) {
+                    partition.shutdownNow();
+                }
+            }
+        } catch (final InterruptedException e) {
+            for (final ExecutorService partition : partitions) {
+                partition.shutdownNow();
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ThreadFactory threadFactory(final String name) {
+        return runnable -> {
+            final Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
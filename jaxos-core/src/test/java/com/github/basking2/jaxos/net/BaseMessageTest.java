@@ -6,8 +6,16 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import com.github.basking2.jaxos.paxos.Promise;
+import com.github.basking2.jaxos.util.BufferPool;
+import com.github.basking2.jaxos.util.Compression;
 import org.junit.Assert;
 import org.junit.Test;
 import com.github.basking2.jaxos.paxos.Proposal;
@@ -48,6 +56,62 @@ public class BaseMessageTest {
         Assert.assertEquals(0, msg2.promise.getProposal().getValue().compareTo(bb));
     }
 
+    @Test
+    public void testBatches() throws IOException {
+        final Map<String, Proposal<ByteBuffer>> proposals = new LinkedHashMap<String, Proposal<ByteBuffer>>();
+        proposals.put("b", new Proposal<ByteBuffer>(6L, ByteBuffer.wrap(new byte[] { 1, 2 })));
+        proposals.put("a", new Proposal<ByteBuffer>(6L, ByteBuffer.wrap(new byte[] { 3 }), Compression.DEFLATE.id));
+        proposals.put("\u00e9", new Proposal<ByteBuffer>(6L, ByteBuffer.allocate(0)));
+
+        final ProposeBatchMessage propose = (ProposeBatchMessage)BaseMessage.decode(
+            new ProposeBatchMessage(6L, proposals, addr, protocol).encode(), addr, protocol);
+        final AcceptBatchMessage accept = (AcceptBatchMessage)BaseMessage.decode(
+            new AcceptBatchMessage(6L, proposals, -3L, addr, protocol).encode(), addr, protocol);
+
+        Assert.assertEquals(-3L, accept.acceptor);
+        for (final ProposalBatchMessage msg : Arrays.asList(propose, accept)) {
+            Assert.assertEquals(6L, msg.n);
+            Assert.assertEquals(Arrays.asList("b", "a", "\u00e9"), new ArrayList<String>(msg.proposals.keySet()));
+            for (final Map.Entry<String, Proposal<ByteBuffer>> proposal : proposals.entrySet()) {
+                final Proposal<ByteBuffer> decoded = msg.proposals.get(proposal.getKey());
+                Assert.assertEquals((Long)6L, decoded.getN());
+                Assert.assertEquals(proposal.getValue().getEncoding(), decoded.getEncoding());
+                Assert.assertEquals(proposal.getValue().getValue(), decoded.getValue());
+            }
+        }
+    }
+
+    @Test
+    public void testLead() throws IOException {
+        final LeadMessage msg = new LeadMessage(5L << 32 | 7L, 2000L, 123456789L, addr, protocol);
+        final BaseMessage bm = BaseMessage.decode(msg.encode(), addr, protocol);
+        Assert.assertTrue(bm instanceof LeadMessage);
+        final LeadMessage msg2 = (LeadMessage)bm;
+        Assert.assertEquals(5L << 32 | 7L, msg2.n);
+        Assert.assertEquals(2000L, msg2.lease);
+        Assert.assertEquals(123456789L, msg2.stamp);
+    }
+
+    @Test
+    public void testLeadPromise() throws IOException {
+        final ByteBuffer bb = ByteBuffer.wrap(new byte[] { 1, 2, 3 });
+        final LeadPromiseMessage msg = new LeadPromiseMessage(
+                9L, 9L, -42L, 11L,
+                Collections.singletonMap("hi", new Proposal<ByteBuffer>(4l, bb)),
+                addr, protocol);
+        final BaseMessage bm = BaseMessage.decode(msg.encode(), addr, protocol);
+        Assert.assertTrue(bm instanceof LeadPromiseMessage);
+        final LeadPromiseMessage msg2 = (LeadPromiseMessage)bm;
+        Assert.assertEquals(9L, msg2.n);
+        Assert.assertEquals(9L, msg2.promised);
+        Assert.assertEquals(-42L, msg2.stamp);
+        Assert.assertEquals(11L, msg2.acceptor);
+        Assert.assertEquals(1, msg2.proposals.size());
+        Assert.assertEquals((Long)4l, msg2.proposals.get("hi").getN());
+        bb.rewind();
+        Assert.assertEquals(0, msg2.proposals.get("hi").getValue().compareTo(bb));
+    }
+
     @Test
     public void testPropose() throws IOException {
         final byte[] bbarray = new byte[] { 1, 2, 3 };
@@ -66,13 +130,145 @@ public class BaseMessageTest {
     public void testAccept() throws IOException {
         final byte[] bbarray = new byte[] { 1, 2, 3 };
         final ByteBuffer bb = ByteBuffer.wrap(bbarray);
-        final AcceptMessage msg = new AcceptMessage("hi", new Proposal<ByteBuffer>(4l, bb), addr, protocol);
+        final AcceptMessage msg = new AcceptMessage("hi", new Proposal<ByteBuffer>(4l, bb), 12L, addr, protocol);
         final BaseMessage bm = BaseMessage.decode(msg.encode(), addr, protocol);
         Assert.assertTrue(bm instanceof AcceptMessage);
         final AcceptMessage msg2 = (AcceptMessage)bm;
         Assert.assertEquals("hi", msg2.instance);
         Assert.assertEquals((Long)4l, msg2.proposal.getN());
+        Assert.assertEquals(12L, msg2.acceptor);
         bb.rewind();
         Assert.assertEquals(0, msg2.proposal.getValue().compareTo(bb));
     }
+
+    @Test
+    public void testEncodeIntoBuffer() throws IOException {
+        final byte[] bbarray = new byte[] { 1, 2, 3 };
+        final ByteBuffer bb = ByteBuffer.wrap(bbarray);
+        final String instance = "a much longer instance name";
+
+        // Encode after some other data and leave room after.
+        final ProposeMessage msg = new ProposeMessage(instance, new Proposal<ByteBuffer>(4l, bb), addr, protocol);
+        final ByteBuffer buffer = ByteBuffer.allocate(msg.encodedSize() + 10);
+        buffer.position(5);
+        msg.encode(buffer);
+        Assert.assertEquals(5 + msg.encodedSize(), buffer.position());
+
+        buffer.flip();
+        buffer.position(5);
+        final BaseMessage bm = BaseMessage.decode(buffer.slice(), addr, protocol);
+        Assert.assertTrue(bm instanceof ProposeMessage);
+        Assert.assertEquals(instance, bm.instance);
+        Assert.assertEquals(0, bb.position());
+
+        final PrepareMessage prepare = new PrepareMessage(instance, 2L, addr, protocol);
+        final PrepareMessage prepare2 = (PrepareMessage)BaseMessage.decode(prepare.encode(), addr, protocol);
+        Assert.assertEquals(instance, prepare2.instance);
+        Assert.assertEquals(2, prepare2.proposalN);
+    }
+
+    @Test
+    public void testDecodeBatch() throws IOException {
+        final BaseMessage[] messages = new BaseMessage[] {
+            new PrepareMessage("a", 1L, addr, protocol),
+            new ProposeMessage("b", new Proposal<ByteBuffer>(2L, ByteBuffer.wrap(new byte[] { 1, 2, 3 })), addr, protocol),
+            new PrepareMessage("c", 3L, addr, protocol)
+        };
+
+        final ByteBuffer batch = ByteBuffer.allocate(1024);
+        batch.put(BaseMessage.BATCH_MSG).putInt(messages.length);
+        for (final BaseMessage message : messages) {
+            batch.putInt(message.encodedSize());
+            message.encode(batch);
+        }
+        batch.flip();
+
+        final List<BaseMessage> decoded = new ArrayList<BaseMessage>();
+        BaseMessage.decode(batch, addr, protocol, new MessageHandler() {
+            @Override public void handlePrepare(final PrepareMessage m) { decoded.add(m); }
+            @Override public void handlePromise(final PromiseMessage m) { decoded.add(m); }
+            @Override public void handlePropose(final ProposeMessage m) { decoded.add(m); }
+            @Override public void handleAccept(final AcceptMessage m) { decoded.add(m); }
+        });
+
+        Assert.assertEquals(messages.length, decoded.size());
+        for (int i = 0; i < messages.length; ++i) {
+            Assert.assertEquals(messages[i].getClass(), decoded.get(i).getClass());
+            Assert.assertEquals(messages[i].instance, decoded.get(i).instance);
+        }
+        Assert.assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), ((ProposeMessage)decoded.get(1)).proposal.getValue());
+    }
+
+    @Test
+    public void testCompressedValue() throws IOException {
+        final byte[] json = new byte[4096];
+        for (int i = 0; i < json.length; ++i) {
+            json[i] = (byte)"{\"key\": \"value\"}, ".charAt(i % 18);
+        }
+        final ByteBuffer value = ByteBuffer.wrap(json);
+
+        for (final Compression compression : Compression.values()) {
+            final ByteBuffer compressed = compression.compress(value);
+            final Proposal<ByteBuffer> proposal = new Proposal<ByteBuffer>(7L, compressed, compression.id);
+
+            final AcceptMessage accept = (AcceptMessage)BaseMessage.decode(
+                new AcceptMessage("i", proposal, 1L, addr, protocol).encode(), addr, protocol);
+            Assert.assertEquals(compression.id, accept.proposal.getEncoding());
+            Assert.assertEquals(compressed, accept.proposal.getValue());
+            Assert.assertEquals(value, Compression.decompress(accept.proposal));
+
+            final PromiseMessage promise = (PromiseMessage)BaseMessage.decode(
+                new PromiseMessage("i", new Promise<ByteBuffer>(8L, proposal), addr, protocol).encode(), addr, protocol);
+            Assert.assertEquals(compression.id, promise.promise.getProposal().getEncoding());
+            Assert.assertEquals(value, Compression.decompress(promise.promise.getProposal()));
+
+            if (compression != Compression.NONE) {
+                Assert.assertTrue(compressed.limit() < value.limit() / 5);
+            }
+        }
+    }
+
+    @Test
+    public void testFragments() throws IOException {
+        final byte[] bytes = new byte[200000];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte)i;
+        }
+        final ByteBuffer value = ByteBuffer.wrap(bytes);
+        final ByteBuffer encoded = new ProposeMessage("big", new Proposal<ByteBuffer>(9L, value), addr, protocol).encode();
+        encoded.flip();
+
+        final Fragmenter fragmenter = new Fragmenter(new BufferPool(1024, 8, false), 1000, 1 << 20, 5000);
+        final List<ByteBuffer> fragments = new ArrayList<ByteBuffer>();
+        fragmenter.split(encoded, fragment -> {
+            Assert.assertTrue(fragment.remaining() <= 1000);
+            final ByteBuffer copy = ByteBuffer.allocate(fragment.remaining());
+            copy.put(fragment).flip();
+            fragments.add(copy);
+        });
+        Assert.assertEquals(0, encoded.position());
+
+        // Fragments may arrive in any order and more than once.
+        Collections.reverse(fragments);
+        fragments.add(1, fragments.get(0).duplicate());
+
+        try {
+            BaseMessage.decode(fragments.get(0), addr, protocol);
+            Assert.fail("A fragment alone was decoded.");
+        } catch (final IOException e) {
+            // Expected.
+        }
+
+        ByteBuffer whole = null;
+        for (int i = 0; i < fragments.size(); ++i) {
+            Assert.assertNull(whole);
+            whole = fragmenter.reassemble(addr, fragments.get(i));
+        }
+
+        Assert.assertNotNull(whole);
+        Assert.assertEquals(0, fragmenter.pending());
+        final ProposeMessage propose = (ProposeMessage)BaseMessage.decode(whole, addr, protocol);
+        Assert.assertEquals("big", propose.instance);
+        Assert.assertEquals(value, propose.proposal.getValue());
+    }
 }
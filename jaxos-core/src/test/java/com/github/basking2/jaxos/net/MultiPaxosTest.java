@@ -0,0 +1,214 @@
+package com.github.basking2.jaxos.net;
+
+import com.github.basking2.jaxos.JaxosConfiguration;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides values by multi paxos among five nodes in memory.
+ */
+public class MultiPaxosTest {
+    private static final int NODES = ProtocolLoopbackTest.NODES;
+
+    @Test
+    public void leaderSkipsPrepareTest() throws Exception {
+        final LoopbackNetwork network = new LoopbackNetwork(1L);
+        final ProtocolLoopbackTest.Nodes nodes = new ProtocolLoopbackTest.Nodes(network, new JaxosConfiguration(), 4030);
+        try {
+            for (final JaxosEnsemble ensemble : nodes.ensembles) {
+                ensemble.setMulti(true, 5000L);
+            }
+
+            // The first value elects its node, and a value from another node is forwarded to it.
+            nodes.ensembles.get(2).multiPropose("a", value(1));
+            assertLearned(nodes, "a", value(1));
+            nodes.ensembles.get(0).multiPropose("b", value(2));
+            assertLearned(nodes, "b", value(2));
+
+            // From the leader, each instance takes a proposal to the 4 other acceptors and
+            // each of 5 acceptors' accepts to the 4 other learners, with no prepares or promises.
+            final long before = settle(network);
+            for (int i = 0; i < 10; ++i) {
+                nodes.ensembles.get(2).multiPropose("c" + i, value(i));
+            }
+            for (int i = 0; i < 10; ++i) {
+                assertLearned(nodes, "c" + i, value(i));
+            }
+            Assert.assertEquals(10 * (4 + 5 * 4), settle(network) - before);
+        } finally {
+            nodes.close();
+        }
+    }
+
+    @Test
+    public void failoverTest() throws Exception {
+        final LoopbackNetwork network = new LoopbackNetwork(1L);
+        final ProtocolLoopbackTest.Nodes nodes = new ProtocolLoopbackTest.Nodes(network, new JaxosConfiguration(), 4040);
+        try {
+            for (final JaxosEnsemble ensemble : nodes.ensembles) {
+                ensemble.setMulti(true, 200L);
+            }
+
+            nodes.ensembles.get(4).multiPropose("a", value(1));
+            assertLearned(nodes, "a", value(1));
+
+            // The leader stops. A value forwarded to it is proposed by a new leader.
+            nodes.ensembles.get(4).close();
+            nodes.ensembles.get(1).multiPropose("b", value(2));
+            for (int i = 0; i < NODES - 1; ++i) {
+                Assert.assertEquals(value(2), nodes.learned(i, "b").get(10, TimeUnit.SECONDS));
+            }
+
+            // The new leader keeps what was decided under the old one.
+            nodes.ensembles.get(3).multiPropose("a", value(3));
+            Assert.assertEquals(value(1), nodes.learned(3, "a").get(10, TimeUnit.SECONDS));
+        } finally {
+            nodes.close();
+        }
+    }
+
+    @Test
+    public void preparedInstanceTest() throws Exception {
+        final LoopbackNetwork network = new LoopbackNetwork(1L);
+        final ProtocolLoopbackTest.Nodes nodes = new ProtocolLoopbackTest.Nodes(network, new JaxosConfiguration(), 4120);
+        try {
+            for (final JaxosEnsemble ensemble : nodes.ensembles) {
+                ensemble.setMulti(true, 200L);
+            }
+
+            nodes.ensembles.get(0).multiPropose("a", value(1));
+            assertLearned(nodes, "a", value(1));
+
+            // Another node prepares an instance with a number above the leader's, which the leader does not hear.
+            network.setLink(nodes.addrs.get(1), nodes.addrs.get(0), new LoopbackNetwork.Link(0L, 0L, 1.0, 0L));
+            Assert.assertTrue(nodes.ensembles.get(1).prepare("c", Long.MAX_VALUE / 4).get(10, TimeUnit.SECONDS).getN() > 0);
+
+            // The acceptors refuse the leader's proposal there, and it leads again past that number.
+            nodes.ensembles.get(0).multiPropose("c", value(3));
+            assertLearned(nodes, "c", value(3));
+        } finally {
+            nodes.close();
+        }
+    }
+
+    @Test
+    public void leaseTest() throws Exception {
+        final ProtocolLoopbackTest.Nodes nodes = new ProtocolLoopbackTest.Nodes(new LoopbackNetwork(1L), new JaxosConfiguration(), 4060);
+        try {
+            for (final JaxosEnsemble ensemble : nodes.ensembles) {
+                ensemble.setMulti(true, 300L);
+                ensemble.setLease(500L, 10L);
+            }
+
+            nodes.ensembles.get(0).multiPropose("a", value(1));
+            assertLearned(nodes, "a", value(1));
+            awaitLease(nodes.ensembles.get(0));
+
+            Assert.assertTrue(nodes.ensembles.get(0).leaseRead("a").get(10, TimeUnit.SECONDS));
+            Assert.assertFalse(nodes.ensembles.get(1).leaseRead("a").get(10, TimeUnit.SECONDS));
+
+            // A read waits for the leader's value in flight to be learned.
+            nodes.ensembles.get(0).multiPropose("b", value(2));
+            Assert.assertTrue(nodes.ensembles.get(0).leaseRead("b").get(10, TimeUnit.SECONDS));
+            Assert.assertEquals(value(2), nodes.learned(0, "b").getNow(null));
+
+            // The lease is renewed.
+            Thread.sleep(1500L);
+            Assert.assertTrue(nodes.ensembles.get(0).hasLease());
+
+            // Once the leader stops, another leads when its lease ends, and reads what was decided before.
+            nodes.ensembles.get(0).close();
+            nodes.ensembles.get(1).multiPropose("c", value(3));
+            for (int i = 1; i < NODES; ++i) {
+                Assert.assertEquals(value(3), nodes.learned(i, "c").get(10, TimeUnit.SECONDS));
+            }
+            awaitLease(nodes.ensembles.get(1));
+            Assert.assertTrue(nodes.ensembles.get(1).leaseRead("a").get(10, TimeUnit.SECONDS));
+            Assert.assertEquals(value(1), nodes.learned(1, "a").getNow(null));
+        } finally {
+            nodes.close();
+        }
+    }
+
+    @Test
+    public void batchTest() throws Exception {
+        final LoopbackNetwork network = new LoopbackNetwork(1L);
+        final JaxosConfiguration configuration = new JaxosConfiguration();
+        configuration.setProperty("jaxos.loopback.latency.micros", 1000L);
+        final ProtocolLoopbackTest.Nodes nodes = new ProtocolLoopbackTest.Nodes(network, configuration, 4080);
+        try {
+            for (final JaxosEnsemble ensemble : nodes.ensembles) {
+                ensemble.setMulti(true, 5000L);
+                ensemble.setBatching(50000L, 64);
+            }
+
+            nodes.ensembles.get(1).multiPropose("a", value(1));
+            assertLearned(nodes, "a", value(1));
+
+            // Batches grow from one value as they are learned within the target.
+            for (int i = 0; i < 200; ++i) {
+                nodes.ensembles.get(1).multiPropose("b" + i, value(i));
+            }
+            for (int i = 0; i < 200; ++i) {
+                assertLearned(nodes, "b" + i, value(i));
+            }
+
+            // Values given while a batch is in flight share the next batch's messages, each in its own instance.
+            final long before = settle(network);
+            for (int i = 0; i < 200; ++i) {
+                nodes.ensembles.get(1).multiPropose("c" + i, value(i));
+            }
+            for (int i = 0; i < 200; ++i) {
+                assertLearned(nodes, "c" + i, value(i));
+            }
+            Assert.assertTrue(settle(network) - before < 200 * (4 + 5 * 4) / 4);
+        } finally {
+            nodes.close();
+        }
+    }
+
+    private static void awaitLease(final JaxosEnsemble ensemble) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000L;
+        while (!ensemble.hasLease() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        Assert.assertTrue(ensemble.hasLease());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void disabledTest() throws Exception {
+        final ProtocolLoopbackTest.Nodes nodes = new ProtocolLoopbackTest.Nodes(new LoopbackNetwork(1L), new JaxosConfiguration(), 4050);
+        try {
+            nodes.ensembles.get(0).multiPropose("a", value(1));
+        } finally {
+            nodes.close();
+        }
+    }
+
+    /**
+     * Learners decide at a quorum, so the last accepts may still be crossing the network.
+     *
+     * @return The messages delivered once none have been for a while.
+     */
+    private static long settle(final LoopbackNetwork network) throws InterruptedException {
+        long delivered;
+        do {
+            delivered = network.getDelivered();
+            Thread.sleep(100L);
+        } while (delivered != network.getDelivered());
+        return delivered;
+    }
+
+    private static void assertLearned(final ProtocolLoopbackTest.Nodes nodes, final String instance, final ByteBuffer value) throws Exception {
+        for (int i = 0; i < NODES; ++i) {
+            Assert.assertEquals(value, nodes.learned(i, instance).get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    private static ByteBuffer value(final int i) {
+        return ByteBuffer.wrap(new byte[] { (byte) i });
+    }
+}
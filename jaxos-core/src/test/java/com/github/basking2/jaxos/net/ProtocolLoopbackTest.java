@@ -0,0 +1,304 @@
+package com.github.basking2.jaxos.net;
+
+import com.github.basking2.jaxos.JaxosConfiguration;
+import com.github.basking2.jaxos.paxos.DefaultPaxosAcceptorDao;
+import com.github.basking2.jaxos.paxos.DefaultPaxosProposerDao;
+import com.github.basking2.jaxos.paxos.Promise;
+import com.github.basking2.jaxos.paxos.Proposal;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs ensembles of five nodes in memory.
+ */
+public class ProtocolLoopbackTest {
+    static final int NODES = 5;
+
+    @Test
+    public void learnTest() throws Exception {
+        final LoopbackNetwork network = new LoopbackNetwork(1L);
+        final JaxosConfiguration configuration = new JaxosConfiguration();
+        configuration.setProperty("jaxos.loopback.latency.micros", 200L);
+        configuration.setProperty("jaxos.loopback.jitter.micros", 100L);
+
+        final Nodes nodes = new Nodes(network, configuration, 4000);
+        try {
+            final ByteBuffer value = ByteBuffer.wrap(new byte[] { 1, 2, 3 });
+            nodes.decide("a", 1L, value);
+
+            for (int i = 0; i < NODES; ++i) {
+                Assert.assertEquals(value, nodes.learned(i, "a").get(10, TimeUnit.SECONDS));
+            }
+            Assert.assertEquals(0, network.getDropped());
+        } finally {
+            nodes.close();
+        }
+    }
+
+    @Test
+    public void pipelineTest() throws Exception {
+        final LoopbackNetwork network = new LoopbackNetwork(1L);
+        final JaxosConfiguration configuration = new JaxosConfiguration();
+        configuration.setProperty("jaxos.loopback.latency.micros", 1000L);
+
+        final Nodes nodes = new Nodes(network, configuration, 4070);
+        try {
+            final JaxosEnsemble proposer = nodes.ensembles.get(0);
+            proposer.setWindow(4);
+
+            // More instances than the window, all in flight from one caller.
+            final List<CompletableFuture<Proposal<ByteBuffer>>> decisions = new ArrayList<CompletableFuture<Proposal<ByteBuffer>>>();
+            for (int i = 0; i < 20; ++i) {
+                decisions.add(proposer.decide("p" + i, ByteBuffer.wrap(new byte[] { (byte) i })));
+            }
+
+            // A second value for an instance being decided is not proposed. The last waits for many rounds
+            // ahead of it, so it is not yet learned.
+            Assert.assertSame(decisions.get(19), proposer.decide("p19", ByteBuffer.wrap(new byte[] { 100 })));
+
+            for (int i = 0; i < 20; ++i) {
+                final ByteBuffer value = ByteBuffer.wrap(new byte[] { (byte) i });
+                Assert.assertEquals(value, decisions.get(i).get(10, TimeUnit.SECONDS).getValue());
+                for (int j = 0; j < NODES; ++j) {
+                    Assert.assertEquals(value, nodes.learned(j, "p" + i).get(10, TimeUnit.SECONDS));
+                }
+            }
+        } finally {
+            nodes.close();
+        }
+    }
+
+    @Test
+    public void decideTimeoutTest() throws Exception {
+        final LoopbackNetwork network = new LoopbackNetwork(1L);
+        final Nodes nodes = new Nodes(network, new JaxosConfiguration(), 4100);
+        try {
+            final JaxosEnsemble proposer = nodes.ensembles.get(0);
+            proposer.setWindow(1);
+
+            // No other acceptor hears the proposer, so no quorum promises.
+            final LoopbackNetwork.Link lost = new LoopbackNetwork.Link(0L, 0L, 1.0, 0L);
+            for (int i = 1; i < NODES; ++i) {
+                network.setLink(nodes.addrs.get(0), nodes.addrs.get(i), lost);
+            }
+
+            final CompletableFuture<Proposal<ByteBuffer>> lostDecision =
+                    proposer.decide("t0", ByteBuffer.wrap(new byte[] { 0 }), 200, TimeUnit.MILLISECONDS);
+            final CompletableFuture<Proposal<ByteBuffer>> queued =
+                    proposer.decide("t1", ByteBuffer.wrap(new byte[] { 1 }), 10, TimeUnit.SECONDS);
+
+            // The first prepare is already lost, and nothing resends it.
+            for (int i = 1; i < NODES; ++i) {
+                network.setLink(nodes.addrs.get(0), nodes.addrs.get(i), null);
+            }
+
+            try {
+                lostDecision.get(10, TimeUnit.SECONDS);
+                Assert.fail("Decided without a quorum.");
+            } catch (final ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof TimeoutException);
+            }
+
+            // The timed out round left the window, so the next is decided.
+            Assert.assertEquals(ByteBuffer.wrap(new byte[] { 1 }), queued.get(10, TimeUnit.SECONDS).getValue());
+        } finally {
+            nodes.close();
+        }
+    }
+
+    @Test
+    public void sharedEncryptionTest() throws Exception {
+        final LoopbackNetwork network = new LoopbackNetwork(1L);
+        final JaxosConfiguration configuration = new JaxosConfiguration();
+        configuration.setProperty("jaxos.loopback.encrypt", true);
+        configuration.setProperty("jaxos.batch.bytes", 4096);
+
+        final List<SocketAddress> receivers = new ArrayList<SocketAddress>();
+        receivers.add(new InetSocketAddress("127.0.0.1", 4111));
+        receivers.add(new InetSocketAddress("127.0.0.1", 4112));
+
+        final List<ByteBuffer> written = new ArrayList<ByteBuffer>();
+        final CountDownLatch proposed = new CountDownLatch(2);
+        final CountDownLatch prepared = new CountDownLatch(2);
+        final List<Protocol> protocols = new ArrayList<Protocol>();
+        try {
+            protocols.add(new ProtocolLoopback(new InetSocketAddress("127.0.0.1", 4110), configuration, receivers, receivers, network, null, null) {
+                @Override
+                protected void write(final ByteBuffer encrypted, final SocketAddress addr) throws IOException {
+                    synchronized (written) {
+                        written.add(encrypted);
+                    }
+                    super.write(encrypted, addr);
+                }
+            });
+            for (final SocketAddress addr : receivers) {
+                final Protocol receiver = new ProtocolLoopback((InetSocketAddress) addr, configuration, receivers, receivers, network, null, null);
+                receiver.setMessageHandler(new MessageHandler() {
+                    @Override public void handlePrepare(PrepareMessage msg) { prepared.countDown(); }
+                    @Override public void handlePromise(PromiseMessage msg) { }
+                    @Override public void handlePropose(ProposeMessage msg) { proposed.countDown(); }
+                    @Override public void handleAccept(AcceptMessage msg) { }
+                });
+                protocols.add(receiver);
+            }
+
+            // Alone in each peer's batch, a broadcast is sent as its frame, encrypted once for both.
+            protocols.get(0).sendAcceptors(new Frame(new ProposeMessage("a", new Proposal<ByteBuffer>(1L, ByteBuffer.allocate(10)), null, null)));
+            Assert.assertTrue(proposed.await(10, TimeUnit.SECONDS));
+
+            // Sent one peer at a time, a message is encrypted into a pooled buffer for each.
+            for (final SocketAddress addr : receivers) {
+                protocols.get(0).send(new PrepareMessage("b", 2L, null, null), addr);
+            }
+
+            Assert.assertTrue(prepared.await(10, TimeUnit.SECONDS));
+            synchronized (written) {
+                Assert.assertEquals(4, written.size());
+                Assert.assertSame(written.get(0).array(), written.get(1).array());
+            }
+        } finally {
+            for (final Protocol protocol : protocols) {
+                protocol.close();
+            }
+        }
+    }
+
+    @Test
+    public void lossTest() throws Exception {
+        final LoopbackNetwork network = new LoopbackNetwork(1L);
+        final Nodes nodes = new Nodes(network, new JaxosConfiguration(), 4010);
+        try {
+            // The last acceptor hears nothing from the proposer, but still learns from the others.
+            final LoopbackNetwork.Link lost = new LoopbackNetwork.Link(0L, 0L, 1.0, 0L);
+            network.setLink(nodes.addrs.get(0), nodes.addrs.get(NODES - 1), lost);
+
+            final ByteBuffer value = ByteBuffer.wrap(new byte[] { 4 });
+            nodes.decide("a", 1L, value);
+
+            for (int i = 0; i < NODES; ++i) {
+                Assert.assertEquals(value, nodes.learned(i, "a").get(10, TimeUnit.SECONDS));
+            }
+            // The prepare, the proposal and the first node's own accept.
+            Assert.assertEquals(3, network.getDropped());
+        } finally {
+            nodes.close();
+        }
+    }
+
+    @Test
+    public void bandwidthTest() throws Exception {
+        final LoopbackNetwork network = new LoopbackNetwork(1L);
+        final JaxosConfiguration configuration = new JaxosConfiguration();
+        configuration.setProperty("jaxos.loopback.bandwidth", 1L << 20);
+
+        final Nodes nodes = new Nodes(network, configuration, 4020);
+        try {
+            // Each proposal of 100 KiB takes about 100 ms to cross a link of 1 MiB per second.
+            final ByteBuffer value = ByteBuffer.allocate(100 << 10);
+            final long start = System.nanoTime();
+            nodes.decide("a", 1L, value);
+            Assert.assertEquals(value, nodes.learned(1, "a").get(10, TimeUnit.SECONDS));
+            Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(90));
+        } finally {
+            nodes.close();
+        }
+    }
+
+    @Test
+    public void acceptorCountsOnceTest() throws Exception {
+        final LoopbackNetwork network = new LoopbackNetwork(1L);
+        final JaxosConfiguration configuration = new JaxosConfiguration();
+        final Nodes nodes = new Nodes(network, configuration, 4090);
+        final List<ProtocolLoopback> senders = new ArrayList<ProtocolLoopback>();
+        try {
+            for (int i = 0; i < 3; ++i) {
+                senders.add(new ProtocolLoopback(new InetSocketAddress("127.0.0.1", 4095 + i), configuration, nodes.addrs, nodes.addrs, network, null, null));
+            }
+
+            // One acceptor's accept arriving from three addresses, as over new connections, is one vote.
+            final Proposal<ByteBuffer> proposal = new Proposal<ByteBuffer>(5L, ByteBuffer.wrap(new byte[] { 1 }));
+            for (final ProtocolLoopback sender : senders) {
+                sender.send(new AcceptMessage("a", proposal, 77L, null, null), nodes.addrs.get(0));
+            }
+            Thread.sleep(200L);
+            Assert.assertFalse(nodes.learned(0, "a").isDone());
+
+            // Two more acceptors make a quorum of three.
+            senders.get(0).send(new AcceptMessage("a", proposal, 78L, null, null), nodes.addrs.get(0));
+            senders.get(1).send(new AcceptMessage("a", proposal, 79L, null, null), nodes.addrs.get(0));
+            Assert.assertEquals(proposal.getValue(), nodes.learned(0, "a").get(10, TimeUnit.SECONDS));
+        } finally {
+            for (final ProtocolLoopback sender : senders) {
+                sender.close();
+            }
+            nodes.close();
+        }
+    }
+
+    static class Nodes {
+        final List<SocketAddress> addrs = new ArrayList<SocketAddress>();
+        final List<JaxosEnsemble> ensembles = new ArrayList<JaxosEnsemble>();
+
+        /**
+         * What each node learned, by instance.
+         */
+        final List<ConcurrentMap<String, CompletableFuture<ByteBuffer>>> learned = new ArrayList<ConcurrentMap<String, CompletableFuture<ByteBuffer>>>();
+
+        Nodes(final LoopbackNetwork network, final JaxosConfiguration configuration, final int port) throws Exception {
+            for (int i = 0; i < NODES; ++i) {
+                addrs.add(new InetSocketAddress("127.0.0.1", port + i));
+            }
+
+            for (int i = 0; i < NODES; ++i) {
+                final ConcurrentMap<String, CompletableFuture<ByteBuffer>> values = new ConcurrentHashMap<String, CompletableFuture<ByteBuffer>>();
+                final JaxosEnsemble ensemble = new JaxosEnsemble(
+                        new DefaultPaxosProposerDao<ByteBuffer>(1, TimeUnit.MINUTES),
+                        new DefaultPaxosAcceptorDao<ByteBuffer>(1, TimeUnit.MINUTES),
+                        (instance, proposal) -> future(values, instance).complete(proposal.getValue()));
+                ensemble.addProtocol(new ProtocolLoopback((InetSocketAddress) addrs.get(i), configuration, addrs, addrs, network, null, null));
+                ensembles.add(ensemble);
+                learned.add(values);
+            }
+        }
+
+        /**
+         * @return What a node learns in an instance.
+         */
+        CompletableFuture<ByteBuffer> learned(final int node, final String instance) {
+            return future(learned.get(node), instance);
+        }
+
+        private static CompletableFuture<ByteBuffer> future(final ConcurrentMap<String, CompletableFuture<ByteBuffer>> values, final String instance) {
+            return values.computeIfAbsent(instance, i -> new CompletableFuture<ByteBuffer>());
+        }
+
+        /**
+         * Prepare and propose a value from the first node.
+         */
+        void decide(final String instance, final Long n, final ByteBuffer value) throws Exception {
+            final Promise<ByteBuffer> promise = ensembles.get(0).prepare(instance, n).get(10, TimeUnit.SECONDS);
+            Assert.assertNull(promise.getProposal());
+            ensembles.get(0).propose(instance, n, value);
+        }
+
+        void close() throws Exception {
+            for (final JaxosEnsemble ensemble : ensembles) {
+                ensemble.close();
+            }
+        }
+    }
+}
@@ -1,15 +1,26 @@
 package com.github.basking2.jaxos.net;
 
 import com.github.basking2.jaxos.JaxosConfiguration;
+import com.github.basking2.jaxos.paxos.DefaultPaxosAcceptorDao;
+import com.github.basking2.jaxos.paxos.DefaultPaxosProposerDao;
+import com.github.basking2.jaxos.paxos.Promise;
 import com.github.basking2.jaxos.paxos.Proposal;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  */
@@ -22,7 +33,10 @@ public class ProtocolTcpTest {
         final InetSocketAddress addr = new InetSocketAddress("::1", 3001);
         acceptors.add(addr);
         learners.add(addr);
-        final Protocol p = new ProtocolTcp(addr, new JaxosConfiguration(), acceptors, learners);
+        // Send through the network rather than to the handler directly.
+        final JaxosConfiguration configuration = new JaxosConfiguration();
+        configuration.setProperty("jaxos.local.delivery", false);
+        final Protocol p = new ProtocolTcp(addr, configuration, acceptors, learners);
 
         final Object lock = new Object();
         final int result[] = new int[1];
@@ -63,7 +77,7 @@ public class ProtocolTcpTest {
                 }
             });
 
-            p.send(new AcceptMessage("a", new Proposal<ByteBuffer>(0L, ByteBuffer.allocate(0)), addr, p), addr);
+            p.send(new AcceptMessage("a", new Proposal<ByteBuffer>(0L, ByteBuffer.allocate(0)), 1L, addr, p), addr);
 
             lock.wait();
         }
@@ -71,4 +85,148 @@ public class ProtocolTcpTest {
         Assert.assertEquals(4, result[0]);
 
     }
+
+    @Test
+    public void localDeliveryTest() throws Exception {
+        final List<SocketAddress> peers = new ArrayList<SocketAddress>();
+        final InetSocketAddress addr = new InetSocketAddress("127.0.0.1", 3002);
+        peers.add(addr);
+
+        final AtomicInteger written = new AtomicInteger();
+        final CompletableFuture<ProposeMessage> received = new CompletableFuture<ProposeMessage>();
+        final Protocol p = new ProtocolTcp(addr, new JaxosConfiguration(), peers, peers) {
+            @Override
+            protected void write(final ByteBuffer encrypted, final SocketAddress addr) throws IOException {
+                written.incrementAndGet();
+                super.write(encrypted, addr);
+            }
+        };
+
+        try {
+            p.setMessageHandler(new MessageHandler() {
+                @Override public void handlePrepare(PrepareMessage msg) { }
+                @Override public void handlePromise(PromiseMessage msg) { }
+                @Override public void handlePropose(ProposeMessage msg) { received.complete(msg); }
+                @Override public void handleAccept(AcceptMessage msg) { }
+            });
+
+            final Proposal<ByteBuffer> proposal = new Proposal<ByteBuffer>(3L, ByteBuffer.allocate(10));
+            p.sendAcceptors(new ProposeMessage("a", proposal, null, null));
+
+            final ProposeMessage msg = received.get(5, TimeUnit.SECONDS);
+            Assert.assertSame(proposal, msg.proposal);
+            Assert.assertSame(p, msg.protocol);
+            Assert.assertEquals(addr, msg.addr);
+            Assert.assertEquals(0, written.get());
+        } finally {
+            p.close();
+        }
+    }
+
+    @Test
+    public void batchedReplyTest() throws Exception {
+        final InetSocketAddress acceptorAddr = new InetSocketAddress("127.0.0.1", 3003);
+        final InetSocketAddress proposerAddr = new InetSocketAddress("127.0.0.1", 3004);
+        final List<SocketAddress> acceptors = new ArrayList<SocketAddress>();
+        acceptors.add(acceptorAddr);
+        final List<SocketAddress> none = new ArrayList<SocketAddress>();
+
+        final JaxosConfiguration batching = new JaxosConfiguration();
+        batching.setProperty("jaxos.batch.bytes", 4096);
+        batching.setProperty("jaxos.batch.linger.micros", 1000L);
+
+        final BlockingQueue<PromiseMessage> promises = new LinkedBlockingQueue<PromiseMessage>();
+
+        try (
+                Protocol acceptor = new ProtocolTcp(acceptorAddr, batching, none, none);
+                Protocol proposer = new ProtocolTcp(proposerAddr, new JaxosConfiguration(), acceptors, none)
+        ) {
+            acceptor.setMessageHandler(new MessageHandler() {
+                @Override
+                public void handlePrepare(PrepareMessage msg) {
+                    try {
+                        // Replies go to the proposer's connection, not a configured peer.
+                        msg.protocol.send(new PromiseMessage(msg.instance, new Promise<ByteBuffer>(msg.proposalN), null, null), msg.addr);
+                    } catch (final IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                @Override public void handlePromise(PromiseMessage msg) { }
+                @Override public void handlePropose(ProposeMessage msg) { }
+                @Override public void handleAccept(AcceptMessage msg) { }
+            });
+            proposer.setMessageHandler(new MessageHandler() {
+                @Override public void handlePrepare(PrepareMessage msg) { }
+                @Override public void handlePromise(PromiseMessage msg) { promises.add(msg); }
+                @Override public void handlePropose(ProposeMessage msg) { }
+                @Override public void handleAccept(AcceptMessage msg) { }
+            });
+
+            // The batch for the first reply is removed once sent. The second reply gets a new one.
+            for (long n = 1; n <= 2; ++n) {
+                proposer.sendPrepare("a", n);
+                final PromiseMessage promise = promises.poll(5, TimeUnit.SECONDS);
+                Assert.assertNotNull(promise);
+                Assert.assertEquals(n, promise.promise.getN().longValue());
+            }
+        }
+    }
+
+    @Test
+    public void oversizedFrameTest() throws Exception {
+        final InetSocketAddress addr = new InetSocketAddress("127.0.0.1", 3005);
+        final List<SocketAddress> none = new ArrayList<SocketAddress>();
+        final JaxosConfiguration configuration = new JaxosConfiguration();
+        configuration.setProperty("jaxos.tcp.frame.bytes", 1024);
+
+        try (
+                Protocol p = new ProtocolTcp(addr, configuration, none, none);
+                SocketChannel peer = SocketChannel.open(addr)
+        ) {
+            // A length past the limit is refused before any buffer is taken for it, and the peer is disconnected.
+            final ByteBuffer length = ByteBuffer.allocate(4);
+            length.putInt(0, Integer.MAX_VALUE);
+            peer.write(length);
+
+            peer.socket().setSoTimeout(5000);
+            Assert.assertEquals(-1, peer.socket().getInputStream().read());
+
+            // Nor is a frame sent that peers would not read.
+            try {
+                p.send(new ProposeMessage("a", new Proposal<ByteBuffer>(1L, ByteBuffer.allocate(2048)), null, null), addr);
+                Assert.fail("A frame longer than peers read was sent.");
+            } catch (final IOException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void mismatchedPortsTest() throws Exception {
+        final InetSocketAddress udpAddr = new InetSocketAddress("127.0.0.1", 3006);
+        final InetSocketAddress tcpAddr = new InetSocketAddress("127.0.0.1", 3007);
+        final JaxosEnsemble ensemble = new JaxosEnsemble(
+                new DefaultPaxosProposerDao<ByteBuffer>(1, TimeUnit.MINUTES),
+                new DefaultPaxosAcceptorDao<ByteBuffer>(1, TimeUnit.MINUTES),
+                (instance, proposal) -> { });
+
+        // One node listed at one port for udp and another for tcp would count as two acceptors.
+        final Protocol udp = new ProtocolUdp(udpAddr, new JaxosConfiguration(), Collections.singletonList(udpAddr), Collections.singletonList(udpAddr));
+        final Protocol tcp = new ProtocolTcp(tcpAddr, new JaxosConfiguration(), Collections.singletonList(tcpAddr), Collections.singletonList(tcpAddr));
+        try {
+            ensemble.addProtocol(udp);
+            try {
+                ensemble.addProtocol(tcp);
+                Assert.fail("One node was listed under two ports.");
+            } catch (final IllegalArgumentException e) {
+                // Expected.
+            }
+
+            // Sending on every protocol counts each protocol's acceptors apart, so it is allowed.
+            ensemble.setTransport(JaxosEnsemble.ALL_PROTOCOLS);
+            ensemble.addProtocol(tcp);
+        } finally {
+            ensemble.close();
+        }
+    }
 }
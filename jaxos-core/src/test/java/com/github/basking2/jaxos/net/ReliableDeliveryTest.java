@@ -0,0 +1,87 @@
+package com.github.basking2.jaxos.net;
+
+import com.github.basking2.jaxos.JaxosConfiguration;
+import com.github.basking2.jaxos.util.BufferPool;
+import com.github.basking2.jaxos.util.CipherUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ */
+public class ReliableDeliveryTest {
+    @Test
+    public void lossyDeliveryTest() throws Exception {
+        final JaxosConfiguration configuration = new JaxosConfiguration();
+        configuration.setProperty("jaxos.udp.reliable.rto.initial", 20);
+        configuration.setProperty("jaxos.udp.reliable.rto.min", 5);
+        configuration.setProperty("jaxos.udp.reliable.rto.max", 100);
+        configuration.setProperty("jaxos.udp.reliable.retries", 50);
+
+        final CipherUtil cipherUtil = new CipherUtil(configuration);
+        final BufferPool bufferPool = new BufferPool(64, 1024, 16, false);
+        final SocketAddress addrA = new InetSocketAddress("127.0.0.1", 1);
+        final SocketAddress addrB = new InetSocketAddress("127.0.0.1", 2);
+
+        // A third of all datagrams, acknowledgements included, are lost.
+        final Random random = new Random(1);
+        final ConcurrentMap<Integer, AtomicInteger> delivered = new ConcurrentHashMap<Integer, AtomicInteger>();
+        final ReliableDelivery[] ends = new ReliableDelivery[2];
+
+        try (SelectorPool selectorPool = new SelectorPool(2)) {
+            ends[0] = new ReliableDelivery(configuration, cipherUtil, selectorPool, bufferPool, (encrypted, addr) -> {
+                if (!lost(random)) {
+                    final ByteBuffer payload = ends[1].receive(decrypt(cipherUtil, encrypted), addrA);
+                    if (payload != null) {
+                        delivered.computeIfAbsent(payload.getInt(0), k -> new AtomicInteger()).incrementAndGet();
+                    }
+                }
+            });
+            ends[1] = new ReliableDelivery(configuration, cipherUtil, selectorPool, bufferPool, (encrypted, addr) -> {
+                if (!lost(random)) {
+                    Assert.assertNull(ends[0].receive(decrypt(cipherUtil, encrypted), addrB));
+                }
+            });
+
+            final int count = 200;
+            for (int i = 0; i < count; ++i) {
+                final ByteBuffer plain = ByteBuffer.allocate(4);
+                plain.putInt(i).flip();
+                ends[0].send(plain, addrB);
+            }
+
+            for (int i = 0; i < 500 && delivered.size() < count; ++i) {
+                Thread.sleep(10);
+            }
+
+            Assert.assertEquals(count, delivered.size());
+            for (final AtomicInteger times : delivered.values()) {
+                Assert.assertEquals(1, times.get());
+            }
+
+            ends[0].close();
+            ends[1].close();
+        }
+    }
+
+    private static boolean lost(final Random random) {
+        synchronized (random) {
+            return random.nextInt(3) == 0;
+        }
+    }
+
+    private static ByteBuffer decrypt(final CipherUtil cipherUtil, final ByteBuffer encrypted) throws IOException {
+        final ByteBuffer copy = ByteBuffer.allocate(encrypted.remaining());
+        copy.put(encrypted).flip();
+        copy.limit(cipherUtil.decryptInPlace(copy, 0, copy.limit()));
+        return copy;
+    }
+}
@@ -0,0 +1,47 @@
+package com.github.basking2.jaxos.paxos;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ */
+public class AcceptorTest {
+    private final List<Proposal<String>> accepted = new ArrayList<Proposal<String>>();
+
+    private Acceptor<String> acceptor() throws Exception {
+        return new Acceptor<String>((instance, proposal) -> accepted.add(proposal), new DefaultPaxosAcceptorDao<String>(1, TimeUnit.MINUTES));
+    }
+
+    @Test
+    public void testUnpreparedRefused() throws Exception {
+        final Acceptor<String> acceptor = acceptor();
+
+        // Two proposers could each have a different value accepted if nothing prepared counted.
+        acceptor.accept("i", new Proposal<String>(0L, "a"));
+        Assert.assertTrue(acceptor.acceptAll(Collections.singletonMap("i", new Proposal<String>(0L, "b"))).isEmpty());
+        Assert.assertTrue(accepted.isEmpty());
+    }
+
+    @Test
+    public void testOneValuePerNumber() throws Exception {
+        final Acceptor<String> acceptor = acceptor();
+        Assert.assertNotNull(acceptor.lead(7L));
+
+        acceptor.accept("i", new Proposal<String>(7L, "a"));
+        acceptor.accept("i", new Proposal<String>(7L, "b"));
+        final Map<String, Proposal<String>> again = acceptor.acceptAll(Collections.singletonMap("i", new Proposal<String>(7L, "b")));
+        Assert.assertTrue(again.isEmpty());
+
+        // The same value may be accepted again, as when a leader proposes it again.
+        acceptor.accept("i", new Proposal<String>(7L, "a"));
+        Assert.assertEquals(2, accepted.size());
+        Assert.assertEquals("a", accepted.get(1).getValue());
+        Assert.assertEquals("a", acceptor.lead(8L).get("i").getValue());
+    }
+}
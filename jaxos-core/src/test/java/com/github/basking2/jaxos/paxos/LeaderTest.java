@@ -0,0 +1,110 @@
+package com.github.basking2.jaxos.paxos;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ */
+public class LeaderTest {
+    @Test
+    public void testNoLeaseUntilRecovered() throws Exception {
+        final Map<String, Proposal<String>> sent = new LinkedHashMap<String, Proposal<String>>();
+        final long[] stamps = new long[1];
+        final Leader<String> leader = new Leader<String>(2, (n, lease, stamp) -> stamps[0] = stamp, sent::put);
+        leader.setLease(10, 0, TimeUnit.SECONDS);
+
+        final long n = leader.lead();
+        final Map<String, Proposal<String>> earlier = Collections.singletonMap("i", new Proposal<String>(1L, "a"));
+        Assert.assertFalse(leader.promise(n, n, "x", earlier, stamps[0]));
+        Assert.assertTrue(leader.promise(n, n, "y", Collections.emptyMap(), stamps[0]));
+
+        // Leading with a lease granted, but a value decided before this led is not yet proposed.
+        Assert.assertTrue(leader.isLeading());
+        Assert.assertFalse(leader.hasLease());
+
+        leader.recover();
+        Assert.assertEquals("a", sent.get("i").getValue());
+        Assert.assertTrue(leader.hasLease());
+
+        // Asking to lead again gives up the lease until that leadership recovers too.
+        leader.lead();
+        Assert.assertFalse(leader.hasLease());
+    }
+
+    @Test
+    public void testLapsedLeaseNotRenewed() throws Exception {
+        final List<Acceptor<String>> acceptors = new ArrayList<Acceptor<String>>();
+        for (int i = 0; i < 3; i++) {
+            acceptors.add(new Acceptor<String>((instance, proposal) -> { }, new DefaultPaxosAcceptorDao<String>(1, TimeUnit.MINUTES)));
+        }
+
+        final Map<String, Proposal<String>> sent = new LinkedHashMap<String, Proposal<String>>();
+        final List<Leader<String>> leader = new ArrayList<Leader<String>>();
+        leader.add(new Leader<String>(
+                2,
+                (n, lease, stamp) -> {
+                    for (int i = 0; i < acceptors.size(); i++) {
+                        final Map<String, Proposal<String>> proposals = acceptors.get(i).lead(n, TimeUnit.MILLISECONDS.toNanos(lease));
+                        leader.get(0).promise(
+                                n,
+                                acceptors.get(i).getLeadPromise(),
+                                i,
+                                proposals == null ? Collections.<String, Proposal<String>>emptyMap() : proposals,
+                                proposals == null ? 0L : stamp);
+                    }
+                },
+                sent::put));
+        leader.get(0).setLease(100, 0, TimeUnit.MILLISECONDS);
+
+        final long n = leader.get(0).lead();
+        leader.get(0).recover();
+        Assert.assertTrue(leader.get(0).hasLease());
+
+        // Once the lease lapses, another proposer prepares an instance and a quorum accepts its value.
+        Thread.sleep(150);
+        for (final Acceptor<String> acceptor : acceptors.subList(0, 2)) {
+            Assert.assertNull(acceptor.prepare("i", n + 1).getProposal());
+            acceptor.accept("i", new Proposal<String>(n + 1, "b"));
+        }
+
+        // The acceptors do not renew the lapsed lease, so the leader cannot read without learning that value.
+        Assert.assertNull(acceptors.get(0).lead(n, TimeUnit.MILLISECONDS.toNanos(100)));
+        Assert.assertTrue(leader.get(0).renew());
+        Assert.assertTrue(leader.get(0).getN() > n + 1);
+        Assert.assertFalse(leader.get(0).hasLease());
+
+        leader.get(0).recover();
+        Assert.assertEquals("b", sent.get("i").getValue());
+        Assert.assertTrue(leader.get(0).hasLease());
+    }
+
+    @Test
+    public void testElectionPending() throws Exception {
+        final long[] asks = new long[1];
+        final Leader<String> leader = new Leader<String>(2, (n, lease, stamp) -> asks[0]++, (instance, proposal) -> { });
+        leader.setElectionTimeout(50, TimeUnit.MILLISECONDS);
+        Assert.assertFalse(leader.isElecting());
+
+        final long n = leader.lead();
+        Assert.assertTrue(leader.isElecting());
+
+        // Unanswered, the election stops pending after the timeout, so a caller may ask again.
+        Thread.sleep(100);
+        Assert.assertFalse(leader.isElecting());
+
+        final long again = leader.lead();
+        Assert.assertTrue(again > n);
+        leader.promise(again, again, "x", Collections.emptyMap(), 0L);
+        leader.promise(again, again, "y", Collections.emptyMap(), 0L);
+        Assert.assertTrue(leader.isLeading());
+        Assert.assertFalse(leader.isElecting());
+        Assert.assertEquals(2, asks[0]);
+    }
+}
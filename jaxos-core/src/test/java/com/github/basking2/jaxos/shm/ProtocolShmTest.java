@@ -0,0 +1,177 @@
+package com.github.basking2.jaxos.shm;
+
+import com.github.basking2.jaxos.JaxosConfiguration;
+import com.github.basking2.jaxos.net.AcceptMessage;
+import com.github.basking2.jaxos.net.MessageHandler;
+import com.github.basking2.jaxos.net.PrepareMessage;
+import com.github.basking2.jaxos.net.PromiseMessage;
+import com.github.basking2.jaxos.net.ProposeMessage;
+import com.github.basking2.jaxos.net.Protocol;
+import com.github.basking2.jaxos.paxos.Promise;
+import com.github.basking2.jaxos.paxos.Proposal;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ */
+public class ProtocolShmTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void promiseTest() throws Exception {
+        final InetSocketAddress proposerAddr = new InetSocketAddress("127.0.0.1", 3021);
+        final InetSocketAddress acceptorAddr = new InetSocketAddress("127.0.0.1", 3022);
+        final List<SocketAddress> acceptors = Collections.<SocketAddress>singletonList(acceptorAddr);
+        final List<SocketAddress> proposers = Collections.<SocketAddress>singletonList(proposerAddr);
+
+        final JaxosConfiguration configuration = configuration();
+        configuration.setProperty("jaxos.shm.encrypt", true);
+
+        final CompletableFuture<PromiseMessage> promised = new CompletableFuture<PromiseMessage>();
+
+        try (
+                Protocol proposer = new ProtocolShm(proposerAddr, configuration, acceptors, acceptors);
+                Protocol acceptor = new ProtocolShm(acceptorAddr, configuration, proposers, proposers)
+        ) {
+            proposer.setMessageHandler(new Handler() {
+                @Override
+                public void handlePromise(final PromiseMessage msg) {
+                    promised.complete(msg);
+                }
+            });
+
+            acceptor.setMessageHandler(new Handler() {
+                @Override
+                public void handlePrepare(final PrepareMessage msg) {
+                    try {
+                        msg.protocol.send(new PromiseMessage(msg.instance, new Promise<ByteBuffer>(msg.proposalN), null, null), msg.addr);
+                    } catch (final IOException e) {
+                        promised.completeExceptionally(e);
+                    }
+                }
+            });
+
+            proposer.sendPrepare("a", 7L);
+
+            final PromiseMessage promise = promised.get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(7L, promise.promise.getN().longValue());
+            Assert.assertEquals(acceptorAddr, promise.addr);
+            Assert.assertTrue(proposer.isConnected(acceptorAddr));
+        }
+    }
+
+    @Test
+    public void wrapTest() throws Exception {
+        final InetSocketAddress senderAddr = new InetSocketAddress("127.0.0.1", 3023);
+        final InetSocketAddress receiverAddr = new InetSocketAddress("127.0.0.1", 3024);
+        final List<SocketAddress> receivers = Collections.<SocketAddress>singletonList(receiverAddr);
+        final JaxosConfiguration configuration = configuration();
+        configuration.setProperty("jaxos.shm.ring.bytes", 1 << 16);
+
+        final int count = 1000;
+        final CountDownLatch received = new CountDownLatch(count);
+        final long[] next = new long[1];
+
+        try (
+                Protocol sender = new ProtocolShm(senderAddr, configuration, receivers, receivers);
+                Protocol receiver = new ProtocolShm(receiverAddr, configuration, Collections.<SocketAddress>emptyList(), Collections.<SocketAddress>emptyList())
+        ) {
+            receiver.setMessageHandler(new Handler() {
+                @Override
+                public void handlePropose(final ProposeMessage msg) {
+                    // Messages arrive in order and whole.
+                    if (msg.proposal.getN() == next[0] && msg.proposal.getValue().remaining() == 1000 + (int) (next[0] % 7)) {
+                        ++next[0];
+                        received.countDown();
+                    }
+                }
+            });
+
+            for (long n = 0; n < count; ++n) {
+                final ProposeMessage msg = new ProposeMessage("a", new Proposal<ByteBuffer>(n, ByteBuffer.allocate(1000 + (int) (n % 7))), null, null);
+                for (int tries = 0; ; ++tries) {
+                    try {
+                        sender.send(msg, receiverAddr);
+                        break;
+                    } catch (final IOException e) {
+                        // The ring is full. Let the receiver catch up.
+                        Assert.assertTrue(tries < 1000);
+                        Thread.sleep(1);
+                    }
+                }
+            }
+
+            Assert.assertTrue(received.await(10, TimeUnit.SECONDS));
+        }
+
+        // Closed protocols leave no rings behind.
+        Assert.assertArrayEquals(new String[0], folder.getRoot().list());
+    }
+
+    @Test
+    public void unencryptedDroppedTest() throws Exception {
+        final InetSocketAddress receiverAddr = new InetSocketAddress("127.0.0.1", 3025);
+        final InetSocketAddress plainAddr = new InetSocketAddress("127.0.0.1", 3026);
+        final InetSocketAddress encryptedAddr = new InetSocketAddress("127.0.0.1", 3027);
+        final List<SocketAddress> receivers = Collections.<SocketAddress>singletonList(receiverAddr);
+        final List<SocketAddress> none = Collections.<SocketAddress>emptyList();
+        final JaxosConfiguration plain = configuration();
+        final JaxosConfiguration encrypting = configuration();
+        encrypting.setProperty("jaxos.shm.encrypt", true);
+
+        final BlockingQueue<String> prepared = new LinkedBlockingQueue<String>();
+
+        try (
+                Protocol receiver = new ProtocolShm(receiverAddr, encrypting, none, none);
+                Protocol plainSender = new ProtocolShm(plainAddr, plain, receivers, receivers);
+                Protocol encryptedSender = new ProtocolShm(encryptedAddr, encrypting, receivers, receivers)
+        ) {
+            receiver.setMessageHandler(new Handler() {
+                @Override
+                public void handlePrepare(final PrepareMessage msg) {
+                    prepared.add(msg.instance);
+                }
+            });
+
+            // Anyone who can write the ring could forge a record that is not encrypted.
+            plainSender.sendPrepare("plain", 1L);
+            encryptedSender.sendPrepare("encrypted", 1L);
+
+            Assert.assertEquals("encrypted", prepared.poll(10, TimeUnit.SECONDS));
+            Assert.assertNull(prepared.poll(200, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void factoryTest() {
+        Assert.assertTrue(new JaxosConfiguration().getProtocolFactories().get("shm") instanceof ShmProtocolFactory);
+    }
+
+    private JaxosConfiguration configuration() {
+        final JaxosConfiguration configuration = new JaxosConfiguration();
+        configuration.setProperty("jaxos.shm.dir", folder.getRoot().toString());
+        return configuration;
+    }
+
+    private static class Handler implements MessageHandler {
+        @Override public void handlePrepare(final PrepareMessage msg) { }
+        @Override public void handlePromise(final PromiseMessage msg) { }
+        @Override public void handlePropose(final ProposeMessage msg) { }
+        @Override public void handleAccept(final AcceptMessage msg) { }
+    }
+}
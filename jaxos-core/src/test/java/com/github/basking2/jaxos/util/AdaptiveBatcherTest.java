@@ -0,0 +1,114 @@
+package com.github.basking2.jaxos.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ */
+public class AdaptiveBatcherTest {
+    @Test
+    public void testBatching() throws Exception {
+        final List<List<Integer>> sent = new ArrayList<List<Integer>>();
+        final List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+
+        // A long target and no linger to speak of, so only completions send what waits.
+        try (final AdaptiveBatcher<Integer> batcher = new AdaptiveBatcher<Integer>("test", 1, 8, TimeUnit.HOURS, batch -> {
+            final CompletableFuture<Void> future = new CompletableFuture<Void>();
+            synchronized (sent) {
+                sent.add(batch);
+                futures.add(future);
+            }
+            return future;
+        })) {
+            // A batch starts with one item, so it is full at once.
+            batcher.add(0);
+            batcher.add(1);
+            Assert.assertEquals(Arrays.asList(Arrays.asList(0), Arrays.asList(1)), sent);
+
+            // The first full batch completed within the target, so batches grow to two.
+            // The second was then not full, so they grow no further.
+            complete(sent, futures, 0);
+            complete(sent, futures, 1);
+            await(() -> batcher.getInFlight() == 0);
+            Assert.assertEquals(2, batcher.getSize());
+
+            // Nothing is in flight, so the next is sent alone at once. Those after it wait for a full batch.
+            for (int i = 2; i < 5; ++i) {
+                batcher.add(i);
+            }
+            Assert.assertEquals(Arrays.asList(Arrays.asList(2), Arrays.asList(3, 4)), sent.subList(2, 4));
+            batcher.add(5);
+            Assert.assertEquals(4, sent.size());
+
+            // The last waits while a batch is in flight.
+            complete(sent, futures, 2);
+            Thread.sleep(50L);
+            Assert.assertEquals(4, sent.size());
+
+            // A full batch completed within the target, so the size doubles and the last is sent.
+            complete(sent, futures, 3);
+            await(() -> sent.size() == 5);
+            Assert.assertEquals(4, batcher.getSize());
+            Assert.assertEquals(Arrays.asList(5), sent.get(4));
+            Assert.assertTrue(batcher.getLatency(TimeUnit.NANOSECONDS) >= 0);
+        }
+    }
+
+    @Test
+    public void testShrink() throws Exception {
+        final List<List<Integer>> sent = new ArrayList<List<Integer>>();
+        final List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+
+        // Every batch takes longer than a target of 1ns, so nothing lingers.
+        try (final AdaptiveBatcher<Integer> batcher = new AdaptiveBatcher<Integer>("test", 1, 8, TimeUnit.NANOSECONDS, batch -> {
+            final CompletableFuture<Void> future = new CompletableFuture<Void>();
+            synchronized (sent) {
+                sent.add(batch);
+                futures.add(future);
+            }
+            return future;
+        })) {
+            for (int i = 0; i < 3; ++i) {
+                batcher.add(i);
+            }
+            Assert.assertEquals(3, sent.size());
+
+            // Slow while others are in flight is queueing, so batches grow.
+            complete(sent, futures, 0);
+            await(() -> batcher.getSize() == 2);
+            complete(sent, futures, 1);
+            await(() -> batcher.getSize() == 4);
+
+            // Slow with nothing else in flight is the batch itself, so batches shrink.
+            complete(sent, futures, 2);
+            await(() -> batcher.getSize() == 2);
+            Assert.assertEquals(0, batcher.getLinger(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    private static void complete(final List<List<Integer>> sent, final List<CompletableFuture<Void>> futures, final int i) {
+        final CompletableFuture<Void> future;
+        synchronized (sent) {
+            future = futures.get(i);
+        }
+        future.complete(null);
+    }
+
+    /**
+     * Completions are handled on the batcher's thread, so wait for what they do.
+     */
+    private static void await(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000L;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        Assert.assertTrue(condition.getAsBoolean());
+    }
+}
@@ -3,9 +3,16 @@ package com.github.basking2.jaxos.util;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.not;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 import com.github.basking2.jaxos.JaxosConfiguration;
+import org.apache.commons.configuration.BaseConfiguration;
 import org.junit.Test;
 
 /**
@@ -23,4 +30,100 @@ public class CipherUtilTest {
         assertThat(plaintext, not(equalTo(ciphertext)));
 
     }
+
+    @Test
+    public void testReuse() throws Exception {
+        final CipherUtil p1 = new CipherUtil(new JaxosConfiguration());
+        final CipherUtil p2 = new CipherUtil(new JaxosConfiguration());
+
+        assertSame(p1.getKey(), p2.getKey());
+
+        for (int i = 0; i < 10; ++i) {
+            final byte[] plaintext = ("Message " + i).getBytes();
+            assertArrayEquals(plaintext, p2.decrypt(p1.encrypt(plaintext)));
+        }
+    }
+
+    @Test
+    public void testAead() throws Exception {
+        for (final String cipherName : new String[]{ "AES/GCM/NoPadding", "ChaCha20-Poly1305" }) {
+            final BaseConfiguration configuration = new BaseConfiguration();
+            configuration.setProperty("jaxos.cipher", cipherName);
+            final CipherUtil p = new CipherUtil(configuration);
+
+            final byte[] plaintext = "Hi!".getBytes();
+            final byte[] ciphertext1 = p.encrypt(plaintext);
+            final byte[] ciphertext2 = p.encrypt(plaintext);
+
+            // Every message gets its own nonce.
+            assertThat(ciphertext1, not(equalTo(ciphertext2)));
+            assertArrayEquals(plaintext, p.decrypt(ciphertext1));
+
+            final int length = p.decryptInPlace(ciphertext2, 0, ciphertext2.length);
+            assertEquals(plaintext.length, length);
+            assertArrayEquals(plaintext, Arrays.copyOf(ciphertext2, length));
+
+            // Another instance with the secret encrypts under its own salt, and each decrypts the other.
+            final CipherUtil other = new CipherUtil(configuration);
+            final byte[] ciphertext3 = other.encrypt(plaintext);
+            assertThat(Arrays.copyOf(ciphertext3, CipherUtil.SALT_LENGTH), not(equalTo(Arrays.copyOf(ciphertext1, CipherUtil.SALT_LENGTH))));
+            assertArrayEquals(plaintext, p.decrypt(ciphertext3));
+            assertArrayEquals(plaintext, other.decrypt(ciphertext1));
+
+            ciphertext1[ciphertext1.length - 1] ^= 1;
+            try {
+                p.decryptInPlace(ciphertext1, 0, ciphertext1.length);
+                throw new AssertionError("Altered cipher text was decrypted.");
+            }
+            catch (final IOException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void testDecryptDirectBuffer() throws Exception {
+        for (final String cipherName : new String[]{ "AES/CBC/PKCS5Padding", "AES/GCM/NoPadding" }) {
+            final BaseConfiguration configuration = new BaseConfiguration();
+            configuration.setProperty("jaxos.cipher", cipherName);
+            final CipherUtil p = new CipherUtil(configuration);
+
+            final byte[] plaintext = "Hello, direct buffer.".getBytes();
+            final byte[] ciphertext = p.encrypt(plaintext);
+
+            // Offset the cipher text as a frame header would.
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(ciphertext.length + 4);
+            buffer.position(4);
+            buffer.put(ciphertext);
+
+            final int length = p.decryptInPlace(buffer, 4, ciphertext.length);
+            assertEquals(plaintext.length, length);
+            assertEquals(ciphertext.length + 4, buffer.position());
+
+            final byte[] decrypted = new byte[length];
+            buffer.position(4);
+            buffer.get(decrypted);
+            assertArrayEquals(plaintext, decrypted);
+        }
+    }
+
+    @Test
+    public void testEncryptIntoBuffer() throws Exception {
+        for (final String cipherName : new String[]{ "AES/CBC/PKCS5Padding", "AES/GCM/NoPadding" }) {
+            final BaseConfiguration configuration = new BaseConfiguration();
+            configuration.setProperty("jaxos.cipher", cipherName);
+            final CipherUtil p = new CipherUtil(configuration);
+
+            final byte[] plaintext = "Hello, pooled buffer.".getBytes();
+            final ByteBuffer plain = ByteBuffer.wrap(plaintext);
+            final ByteBuffer out = ByteBuffer.allocateDirect(p.getOutputSize(plaintext.length));
+            p.encrypt(plain, out);
+            assertEquals(plaintext.length, plain.position());
+
+            out.flip();
+            final byte[] ciphertext = new byte[out.remaining()];
+            out.get(ciphertext);
+            assertArrayEquals(plaintext, p.decrypt(ciphertext));
+        }
+    }
 }
@@ -0,0 +1,67 @@
+package com.github.basking2.jaxos.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ */
+public class InFlightWindowTest {
+    @Test
+    public void testWindow() {
+        final InFlightWindow window = new InFlightWindow(2);
+        final List<CompletableFuture<Integer>> started = new ArrayList<CompletableFuture<Integer>>();
+        final List<CompletableFuture<Integer>> results = new ArrayList<CompletableFuture<Integer>>();
+
+        for (int i = 0; i < 4; ++i) {
+            results.add(window.submit(() -> {
+                final CompletableFuture<Integer> task = new CompletableFuture<Integer>();
+                started.add(task);
+                return task;
+            }));
+        }
+
+        Assert.assertEquals(2, started.size());
+        Assert.assertEquals(2, window.getInFlight());
+        Assert.assertEquals(2, window.getWaiting());
+
+        // The second completes first, and the third starts in its place.
+        started.get(1).complete(1);
+        Assert.assertEquals(Integer.valueOf(1), results.get(1).getNow(null));
+        Assert.assertFalse(results.get(0).isDone());
+        Assert.assertEquals(3, started.size());
+
+        // Growing the window starts the last.
+        window.setSize(3);
+        Assert.assertEquals(4, started.size());
+
+        started.get(0).completeExceptionally(new Exception("Failed."));
+        started.get(2).complete(2);
+        started.get(3).complete(3);
+        Assert.assertTrue(results.get(0).isCompletedExceptionally());
+        Assert.assertEquals(Integer.valueOf(3), results.get(3).getNow(null));
+        Assert.assertEquals(0, window.getInFlight());
+    }
+
+    @Test
+    public void testImmediate() {
+        final InFlightWindow window = new InFlightWindow(1);
+        final CompletableFuture<Integer> blocker = new CompletableFuture<Integer>();
+        window.submit(() -> blocker);
+
+        // Tasks that complete as they start must not nest one within another.
+        final List<CompletableFuture<Integer>> results = new ArrayList<CompletableFuture<Integer>>();
+        for (int i = 0; i < 100000; ++i) {
+            final int value = i;
+            results.add(window.submit(() -> CompletableFuture.completedFuture(value)));
+        }
+        Assert.assertEquals(100000, window.getWaiting());
+
+        blocker.complete(-1);
+        Assert.assertEquals(0, window.getWaiting());
+        Assert.assertEquals(Integer.valueOf(99999), results.get(99999).getNow(null));
+    }
+}
@@ -0,0 +1,34 @@
+package com.github.basking2.jaxos.netty;
+
+import com.github.basking2.jaxos.net.Protocol;
+import com.github.basking2.jaxos.net.ProtocolFactory;
+import com.github.basking2.jaxos.net.SelectorPool;
+import com.github.basking2.jaxos.util.BufferPool;
+import org.apache.commons.configuration.Configuration;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+
+/**
+ * Builds a {@link ProtocolNetty} for each {@code netty/host:port} bind address.
+ */
+public class NettyProtocolFactory implements ProtocolFactory {
+    @Override
+    public String getScheme() {
+        return "netty";
+    }
+
+    @Override
+    public Protocol build(
+            final InetSocketAddress bind,
+            final Configuration configuration,
+            final List<? extends SocketAddress> acceptors,
+            final List<? extends SocketAddress> learners,
+            final SelectorPool selectorPool,
+            final BufferPool bufferPool
+    ) throws IOException {
+        return new ProtocolNetty(bind, configuration, acceptors, learners, selectorPool, bufferPool);
+    }
+}
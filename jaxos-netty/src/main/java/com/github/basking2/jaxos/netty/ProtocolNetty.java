@@ -0,0 +1,432 @@
+package com.github.basking2.jaxos.netty;
+
+import com.github.basking2.jaxos.net.AbstractProtocol;
+import com.github.basking2.jaxos.net.BaseMessage;
+import com.github.basking2.jaxos.net.SelectorPool;
+import com.github.basking2.jaxos.util.BufferPool;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A TCP protocol on Netty, using the native epoll transport where it is available and pooled buffers.
+ *
+ * Frames are the same as those of {@link com.github.basking2.jaxos.net.ProtocolTcp}, so the two interoperate.
+ * Its addresses are written {@code netty/host:port}. It reads the {@code jaxos.tcp.*} settings that
+ * {@code ProtocolTcp} does, except for {@code jaxos.tcp.bulk.bytes}: every frame to a peer shares one connection.
+ *
+ * Writes from many threads are flushed together by the event loop. When more than
+ * {@code jaxos.tcp.queue.bytes} wait to be written to a peer, sending to it fails until they drain.
+ */
+public class ProtocolNetty extends AbstractProtocol {
+    private static final Logger LOG = LoggerFactory.getLogger(ProtocolNetty.class);
+
+    private final EventLoopGroup group;
+
+    private final Bootstrap bootstrap;
+
+    private final Channel serverChannel;
+
+    /**
+     * Connections opened to peers.
+     */
+    private final ConcurrentMap<SocketAddress, Peer> peers = new ConcurrentHashMap<SocketAddress, Peer>();
+
+    /**
+     * Connections accepted, by their remote address, so replies go back on them.
+     */
+    private final ConcurrentMap<SocketAddress, Channel> accepted = new ConcurrentHashMap<SocketAddress, Channel>();
+
+    /**
+     * The configured acceptors and learners, which are reconnected to when their connection fails.
+     */
+    private final Set<SocketAddress> configured;
+
+    private final long maxConnectingBytes;
+    private final long reconnectMin;
+    private final long reconnectMax;
+
+    /**
+     * The longest frame read, with its length and encryption, as {@code jaxos.tcp.frame.bytes} bounds it for tcp.
+     */
+    private final int maxFrameBytes;
+
+    private volatile boolean closing;
+
+    /**
+     * @param bind The address to bind.
+     * @param configuration The configuration.
+     * @param acceptors The list of acceptors to consult.
+     * @param learners The list of the learners to consult.
+     * @param selectorPool Threads that batches linger on, or null to start one for this protocol.
+     * @param bufferPool Where messages are encoded into, or null to build a pool for this protocol.
+     * @throws IOException If binding fails.
+     */
+    public ProtocolNetty(
+            final InetSocketAddress bind,
+            final Configuration configuration,
+            final List<? extends SocketAddress> acceptors,
+            final List<? extends SocketAddress> learners,
+            final SelectorPool selectorPool,
+            final BufferPool bufferPool
+    ) throws IOException {
+        super(bind, configuration, acceptors, learners, selectorPool, bufferPool);
+
+        final long maxQueuedBytes = configuration.getLong("jaxos.tcp.queue.bytes", 16L * 1024 * 1024);
+        final int connectTimeout = configuration.getInt("jaxos.tcp.connect.timeout", 5000);
+        this.maxConnectingBytes = configuration.getLong("jaxos.tcp.connect.queue.bytes", 1024L * 1024);
+        this.reconnectMin = Math.max(1L, configuration.getLong("jaxos.tcp.reconnect.min", 100L));
+        this.reconnectMax = Math.max(reconnectMin, configuration.getLong("jaxos.tcp.reconnect.max", 30000L));
+        this.maxFrameBytes = 4 + cipherUtil.getOutputSize(configuration.getInt("jaxos.tcp.frame.bytes", 16 * 1024 * 1024));
+        this.configured = new HashSet<SocketAddress>(acceptors);
+        this.configured.addAll(learners);
+
+        final boolean epoll = configuration.getBoolean("jaxos.netty.epoll", true) && Epoll.isAvailable();
+        final int threads = configuration.getInt("jaxos.netty.threads", Runtime.getRuntime().availableProcessors());
+        this.group = epoll ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+
+        final int high = (int) Math.min(Integer.MAX_VALUE, maxQueuedBytes);
+        final WriteBufferWaterMark waterMark = new WriteBufferWaterMark(high / 2, high);
+
+        this.bootstrap = new Bootstrap()
+                .group(group)
+                .channel(epoll ? EpollSocketChannel.class : NioSocketChannel.class)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(final Channel channel) {
+                        initPipeline(channel);
+                    }
+                });
+
+        final ServerBootstrap server = new ServerBootstrap()
+                .group(group)
+                .channel(epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(final Channel channel) {
+                        initPipeline(channel);
+                        channel.pipeline().addLast(new AcceptedHandler());
+                    }
+                });
+
+        try {
+            this.serverChannel = server.bind(bind).sync().channel();
+        } catch (final Exception e) {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+            throw new IOException("Binding " + bind, e);
+        }
+
+        LOG.info("Bound {} with {}.", serverChannel.localAddress(), epoll ? "epoll" : "nio");
+
+        // Connect to every peer now so the first messages do not wait for connections.
+        for (final SocketAddress addr : configured) {
+            peer(addr);
+        }
+    }
+
+    /**
+     * Frames are {@code [int length including itself][cipher text]}. A longer frame than peers send closes the connection.
+     */
+    private void initPipeline(final Channel channel) {
+        channel.pipeline().addLast(
+                new FlushConsolidationHandler(FlushConsolidationHandler.DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES, true),
+                new LengthFieldBasedFrameDecoder(maxFrameBytes, 0, 4, -4, 4),
+                new FrameHandler());
+    }
+
+    /**
+     * @return The connection to a peer, starting one if there is none.
+     */
+    private Peer peer(final SocketAddress addr) {
+        return peers.computeIfAbsent(addr, a -> {
+            final Peer peer = new Peer(a, configured.contains(a));
+            peer.connect();
+            return peer;
+        });
+    }
+
+    @Override
+    public String getScheme() {
+        return "netty";
+    }
+
+    @Override
+    protected SocketAddress getBoundAddress() {
+        return serverChannel.localAddress();
+    }
+
+    @Override
+    public boolean isConnected(final SocketAddress addr) {
+        final Peer peer = peers.get(addr);
+        return peer != null && peer.isConnected();
+    }
+
+    /**
+     * Write the frame on the connection accepted from the address, if there is one, else on the connection to it.
+     *
+     * @throws IOException If too many bytes are waiting to be written to the peer.
+     */
+    @Override
+    protected void write(final ByteBuffer encrypted, final SocketAddress addr) throws IOException {
+        // The length prefix is written ahead of the shared encrypted frame, which is wrapped, not copied.
+        final ByteBuf length = PooledByteBufAllocator.DEFAULT.directBuffer(4);
+        length.writeInt(4 + encrypted.remaining());
+        final ByteBuf frame = Unpooled.wrappedBuffer(length, Unpooled.wrappedBuffer(encrypted));
+
+        final Channel channel = accepted.get(addr);
+        if (channel != null) {
+            send(channel, addr, frame);
+        } else {
+            peer(addr).send(frame);
+        }
+    }
+
+    /**
+     * Write a frame to a connected channel, or release it and fail if the channel's queue is full.
+     */
+    private static void send(final Channel channel, final SocketAddress addr, final ByteBuf frame) throws IOException {
+        if (!channel.isWritable()) {
+            frame.release();
+            throw new IOException("Outbound queue to " + addr + " is full with " + channel.unsafe().outboundBuffer().totalPendingWriteBytes() + " bytes.");
+        }
+
+        channel.writeAndFlush(frame, channel.voidPromise());
+    }
+
+    @Override
+    public void close() throws Exception {
+        closing = true;
+
+        for (final Peer peer : peers.values()) {
+            peer.close();
+        }
+
+        serverChannel.close().syncUninterruptibly();
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+
+        super.close();
+    }
+
+    /**
+     * Decrypt and decode each whole frame.
+     */
+    private class FrameHandler extends SimpleChannelInboundHandler<ByteBuf> {
+        @Override
+        protected void channelRead0(final ChannelHandlerContext ctx, final ByteBuf frame) throws Exception {
+            // Decrypted in place in the pooled buffer. Decoded messages copy what they keep.
+            final ByteBuffer buffer = frame.nioBuffer(frame.readerIndex(), frame.readableBytes());
+            final int length = cipherUtil.decryptInPlace(buffer, buffer.position(), buffer.remaining());
+            buffer.limit(buffer.position() + length);
+            BaseMessage.decode(buffer.slice(), ctx.channel().remoteAddress(), ProtocolNetty.this, getMessageHandler());
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) {
+            LOG.error("Closing connection with " + ctx.channel().remoteAddress(), cause);
+            ctx.close();
+        }
+    }
+
+    /**
+     * Tracks accepted connections so replies can be sent on them.
+     */
+    private class AcceptedHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+            LOG.info("Accepted connection {}", ctx.channel().remoteAddress());
+            accepted.put(ctx.channel().remoteAddress(), ctx.channel());
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+            accepted.remove(ctx.channel().remoteAddress(), ctx.channel());
+            super.channelInactive(ctx);
+        }
+    }
+
+    /**
+     * A connection to a peer.
+     *
+     * Connections to configured acceptors and learners are reconnected with exponential backoff.
+     * While connecting, up to {@code jaxos.tcp.connect.queue.bytes} wait to be sent, and are dropped
+     * if connecting fails. Other connections are forgotten when they fail.
+     */
+    private class Peer {
+        final SocketAddress addr;
+
+        final boolean reconnect;
+
+        /**
+         * The connected channel, or null while connecting.
+         */
+        Channel channel;
+
+        final Deque<ByteBuf> pending = new ArrayDeque<ByteBuf>();
+
+        long pendingBytes;
+
+        long backoff = reconnectMin;
+
+        boolean closed;
+
+        Peer(final SocketAddress addr, final boolean reconnect) {
+            this.addr = addr;
+            this.reconnect = reconnect;
+        }
+
+        synchronized void connect() {
+            if (closed || closing) {
+                return;
+            }
+
+            bootstrap.connect(addr).addListener((ChannelFuture future) -> {
+                if (future.isSuccess()) {
+                    connected(future.channel());
+                } else {
+                    failed(future.cause());
+                }
+            });
+        }
+
+        private synchronized void connected(final Channel channel) {
+            if (closed) {
+                channel.close();
+                return;
+            }
+
+            LOG.info("Connected to {}.", addr);
+            this.channel = channel;
+            this.backoff = reconnectMin;
+            channel.closeFuture().addListener(future -> disconnected(channel));
+
+            for (final ByteBuf frame : pending) {
+                channel.write(frame, channel.voidPromise());
+            }
+            channel.flush();
+            pending.clear();
+            pendingBytes = 0;
+        }
+
+        private synchronized void disconnected(final Channel channel) {
+            if (this.channel == channel) {
+                this.channel = null;
+                failed(new IOException("Connection closed."));
+            }
+        }
+
+        private synchronized void failed(final Throwable t) {
+            releasePending();
+
+            if (closed || closing) {
+                return;
+            }
+
+            if (!reconnect) {
+                LOG.error("Connection to " + addr + " failed.", t);
+                closed = true;
+                peers.remove(addr, this);
+                return;
+            }
+
+            // Only the first failure in a row is worth a warning.
+            if (backoff == reconnectMin) {
+                LOG.warn("Connection to {} failed. Reconnecting in {} ms. {}", addr, backoff, t.getMessage());
+            } else {
+                LOG.debug("Connection to {} failed. Reconnecting in {} ms. {}", addr, backoff, t.getMessage());
+            }
+
+            group.schedule(this::connect, backoff, TimeUnit.MILLISECONDS);
+            backoff = Math.min(backoff * 2, reconnectMax);
+        }
+
+        synchronized void send(final ByteBuf frame) throws IOException {
+            if (closed) {
+                frame.release();
+                throw new IOException("Connection to " + addr + " is closed.");
+            }
+
+            if (channel != null) {
+                ProtocolNetty.send(channel, addr, frame);
+                return;
+            }
+
+            // Always allow one frame, no matter how large, on an empty queue.
+            final int size = frame.readableBytes();
+            if (pendingBytes > 0 && pendingBytes + size > maxConnectingBytes) {
+                frame.release();
+                throw new IOException("Outbound queue to " + addr + " is full with " + pendingBytes + " bytes.");
+            }
+
+            pending.add(frame);
+            pendingBytes += size;
+        }
+
+        synchronized boolean isConnected() {
+            return channel != null && channel.isActive();
+        }
+
+        synchronized void close() {
+            closed = true;
+            releasePending();
+            if (channel != null) {
+                channel.close();
+            }
+        }
+
+        private void releasePending() {
+            if (!pending.isEmpty()) {
+                LOG.debug("Dropping {} bytes queued for {}.", pendingBytes, addr);
+            }
+
+            for (final ByteBuf frame : pending) {
+                frame.release();
+            }
+            pending.clear();
+            pendingBytes = 0;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.basking2.jaxos.netty;
+
+import com.github.basking2.jaxos.JaxosConfiguration;
+import com.github.basking2.jaxos.net.AcceptMessage;
+import com.github.basking2.jaxos.net.MessageHandler;
+import com.github.basking2.jaxos.net.PrepareMessage;
+import com.github.basking2.jaxos.net.PromiseMessage;
+import com.github.basking2.jaxos.net.ProposeMessage;
+import com.github.basking2.jaxos.net.Protocol;
+import com.github.basking2.jaxos.net.ProtocolTcp;
+import com.github.basking2.jaxos.paxos.Promise;
+import com.github.basking2.jaxos.paxos.Proposal;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ */
+public class ProtocolNettyTest {
+    @Test
+    public void interoperateWithTcpTest() throws Exception {
+        final InetSocketAddress nettyAddr = new InetSocketAddress("127.0.0.1", 3011);
+        final InetSocketAddress tcpAddr = new InetSocketAddress("127.0.0.1", 3012);
+        final List<SocketAddress> nettyPeers = Collections.<SocketAddress>singletonList(tcpAddr);
+        final List<SocketAddress> tcpPeers = Collections.<SocketAddress>singletonList(nettyAddr);
+        final JaxosConfiguration configuration = new JaxosConfiguration();
+
+        final CompletableFuture<PromiseMessage> promised = new CompletableFuture<PromiseMessage>();
+        final CompletableFuture<ProposeMessage> proposed = new CompletableFuture<ProposeMessage>();
+
+        try (
+                Protocol netty = new ProtocolNetty(nettyAddr, configuration, nettyPeers, nettyPeers, null, null);
+                Protocol tcp = new ProtocolTcp(tcpAddr, configuration, tcpPeers, tcpPeers)
+        ) {
+            netty.setMessageHandler(new Handler() {
+                @Override
+                public void handlePromise(final PromiseMessage msg) {
+                    promised.complete(msg);
+                }
+            });
+
+            // Reply on the connection the prepare came in on.
+            tcp.setMessageHandler(new Handler() {
+                @Override
+                public void handlePrepare(final PrepareMessage msg) {
+                    try {
+                        msg.protocol.send(new PromiseMessage(msg.instance, new Promise<ByteBuffer>(msg.proposalN), null, null), msg.addr);
+                    } catch (final IOException e) {
+                        promised.completeExceptionally(e);
+                    }
+                }
+
+                @Override
+                public void handlePropose(final ProposeMessage msg) {
+                    proposed.complete(msg);
+                }
+            });
+
+            netty.sendPrepare("a", 7L);
+            Assert.assertEquals(7L, promised.get(10, TimeUnit.SECONDS).promise.getN().longValue());
+
+            final byte[] value = new byte[1 << 20];
+            value[value.length - 1] = 1;
+            netty.sendAcceptors(new ProposeMessage("a", new Proposal<ByteBuffer>(7L, ByteBuffer.wrap(value)), null, null));
+            Assert.assertEquals(ByteBuffer.wrap(value), proposed.get(10, TimeUnit.SECONDS).proposal.getValue());
+        }
+    }
+
+    @Test
+    public void factoryTest() {
+        Assert.assertTrue(new JaxosConfiguration().getProtocolFactories().get("netty") instanceof NettyProtocolFactory);
+    }
+
+    private static class Handler implements MessageHandler {
+        @Override public void handlePrepare(final PrepareMessage msg) { }
+        @Override public void handlePromise(final PromiseMessage msg) { }
+        @Override public void handlePropose(final ProposeMessage msg) { }
+        @Override public void handleAccept(final AcceptMessage msg) { }
+    }
+}
@@ -2,24 +2,31 @@ package com.github.basking2.jaxos;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.github.basking2.jaxos.paxos.Proposal;
+import com.github.basking2.jaxos.util.Compression;
 import org.apache.commons.io.IOUtils;
 import org.glassfish.grizzly.http.Method;
 import org.glassfish.grizzly.http.server.HttpHandler;
 import org.glassfish.grizzly.http.server.Request;
 import org.glassfish.grizzly.http.server.Response;
 import org.glassfish.grizzly.http.util.HttpStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import com.github.basking2.jaxos.dao.LearnerDao;
 
 /**
  */
 public class JaxosApiHttpHandler extends HttpHandler {
+	private static final Logger LOG = LoggerFactory.getLogger(JaxosApiHttpHandler.class);
 
     public static final String MULTI_PAXOS = "/multipaxos/";
     public static final String PAXOS = "/paxos/";
+    public static final String LEASE = "/lease/";
 
 	private int timeout = 2;
 	private TimeUnit timeunit = TimeUnit.MINUTES;
@@ -45,9 +52,7 @@ public class JaxosApiHttpHandler extends HttpHandler {
 
 				response.suspend();
 
-				final Future<Proposal<ByteBuffer>> proposalFuture = jaxosClient.mutiPaxos(subject, value, timeout, timeunit);
-				final Proposal<ByteBuffer> proposal = proposalFuture.get();
-				serveProposal(proposal, response);
+				serveDecision(jaxosClient.mutiPaxos(subject, value, timeout, timeunit), response);
 			} else if (path.startsWith(PAXOS)) {
 
 				final String subject = path.substring(PAXOS.length());
@@ -55,14 +60,19 @@ public class JaxosApiHttpHandler extends HttpHandler {
 
 				response.suspend();
 
-				final Future<Proposal<ByteBuffer>> proposalFuture = jaxosClient.paxos(subject, value, timeout, timeunit);
-				final Proposal<ByteBuffer> proposal = proposalFuture.get();
-				serveProposal(proposal, response);
+				serveDecision(jaxosClient.paxos(subject, value, timeout, timeunit), response);
 			} else {
 				response.setStatus(HttpStatus.BAD_REQUEST_400);
 				response.getWriter().write("Unhandled url: " + request.getHttpHandlerPath());
 				response.finish();
 			}
+        } else if (request.getMethod() == Method.GET && path.startsWith(LEASE)) {
+            // Linearizable reads, served only by the leader while it holds its lease.
+            final String instance = path.substring(LEASE.length());
+
+            response.suspend();
+
+            serveLeaseRead(instance, jaxosClient.leaseRead(instance, timeout, timeunit), response);
         } else if (request.getMethod() == Method.GET) {
             final String[] splitPath = request.getHttpHandlerPath().split("/", 3);
             if (splitPath.length == 3) {
@@ -92,10 +102,70 @@ public class JaxosApiHttpHandler extends HttpHandler {
         }
 	}
 
+	/**
+	 * Serve a proposal once it is decided, without holding this thread, so that many requests are decided at once.
+	 */
+	private void serveDecision(final CompletableFuture<Proposal<ByteBuffer>> decision, final Response response) {
+		decision.whenComplete((proposal, e) -> {
+			try {
+				if (e == null) {
+					serveProposal(proposal, response);
+				}
+				else {
+					LOG.error("Deciding a value.", e);
+					response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR_500);
+					response.getWriter().write("Not decided: " + e.getMessage());
+					response.resume();
+				}
+			}
+			catch (final IOException ioe) {
+				LOG.error("Serving a proposal.", ioe);
+				response.resume();
+			}
+		});
+	}
+
+	/**
+	 * Serve a lease read once values in flight are learned, without holding this thread.
+	 */
+	private void serveLeaseRead(final String instance, final CompletableFuture<Proposal<ByteBuffer>> read, final Response response) {
+		read.whenComplete((proposal, e) -> {
+			final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+			try {
+				if (cause == null && proposal != null) {
+					serveProposal(proposal, response);
+				}
+				else if (cause == null) {
+					response.setStatus(HttpStatus.NOT_FOUND_404);
+					response.getWriter().write(instance + " not decided");
+					response.resume();
+				}
+				else {
+					if (cause instanceof IllegalStateException) {
+						response.setStatus(HttpStatus.SERVICE_UNAVAILABLE_503);
+					}
+					else if (cause instanceof TimeoutException) {
+						response.setStatus(HttpStatus.GATEWAY_TIMEOUT_504);
+					}
+					else {
+						LOG.error("Reading a value.", cause);
+						response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR_500);
+					}
+					response.getWriter().write("Not read: " + cause.getMessage());
+					response.resume();
+				}
+			}
+			catch (final IOException ioe) {
+				LOG.error("Serving a proposal.", ioe);
+				response.resume();
+			}
+		});
+	}
+
 	private void serveProposal(final Proposal<ByteBuffer> proposal, final Response response) throws IOException {
 		if (proposal != null) {
 			response.setHeader("X-Jaxos-Proposal-Number", proposal.getN().toString());
-			final ByteBuffer buffer = proposal.getValue();			
+			final ByteBuffer buffer = Compression.decompress(proposal);
 			response.getNIOOutputStream().write(
 					buffer.array(),
 					buffer.arrayOffset(),
@@ -3,17 +3,15 @@ package com.github.basking2.jaxos;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import com.github.basking2.jaxos.paxos.DefaultPaxosProposerDao;
-import com.github.basking2.jaxos.paxos.Promise;
 import com.github.basking2.jaxos.net.JaxosEnsemble;
 import com.github.basking2.jaxos.paxos.DefaultPaxosAcceptorDao;
 import com.github.basking2.jaxos.paxos.Proposal;
-import com.github.basking2.jaxos.util.FutureFinished;
 import com.github.basking2.jaxos.dao.LearnerDao;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -80,44 +78,64 @@ public class JaxosFacade {
                 });
 	}
 	
-	public Future<Proposal<ByteBuffer>> mutiPaxos(
+	public CompletableFuture<Proposal<ByteBuffer>> mutiPaxos(
 			final String subject,
 			final String value,
 			final long timeout,
 			final TimeUnit timeunit)
 	{
+		if (!ensemble.isMulti()) {
+			return paxos(subject, value, timeout, timeunit);
+		}
+
 		try {
-			Future<Proposal<ByteBuffer>> future = cache.get(subject);
-			ensemble.propose(subject, 0L, ByteBuffer.wrap(value.getBytes()));
+			CompletableFuture<Proposal<ByteBuffer>> future = cache.get(subject);
+			ensemble.multiPropose(subject, ByteBuffer.wrap(value.getBytes()));
 			return future;
 		} catch (ExecutionException e) {
 			throw new RuntimeException(e);
 		}
 	}
 	
-	public Future<Proposal<ByteBuffer>> paxos(
+	/**
+	 * Read what this node has learned in a subject linearizably, without a round of messages,
+	 * if it leads and holds a lease.
+	 *
+	 * @return The learned proposal, or null if none is decided. It fails with an {@link IllegalStateException}
+	 *         if this node does not hold the lease, and with a {@link TimeoutException} if values in flight in the
+	 *         subject are not learned within the timeout.
+	 */
+	public CompletableFuture<Proposal<ByteBuffer>> leaseRead(
+			final String subject,
+			final long timeout,
+			final TimeUnit timeunit)
+	{
+		return ensemble.leaseRead(subject, timeout, timeunit).thenApply(held -> {
+			if (!held) {
+				throw new IllegalStateException("This node does not hold the lease.");
+			}
+
+			try {
+				return dao.get(subject);
+			}
+			catch (final IOException e) {
+				throw new CompletionException(e);
+			}
+		});
+	}
+
+	/**
+	 * Decide a value by a round of paxos, without waiting for the round.
+	 *
+	 * Rounds of many calls are in flight at once, up to the ensemble's window.
+	 * The future fails with a {@link TimeoutException} if the value is not learned within the timeout.
+	 */
+	public CompletableFuture<Proposal<ByteBuffer>> paxos(
 			final String subject, 
 			final String value, 
 			final long timeout, 
 			final TimeUnit timeunit)
 	{
-		final long n = (long)(Math.random() * Long.MAX_VALUE);
-		final Future<Promise<ByteBuffer>> prepFuture = ensemble.prepare(subject, n);
-		
-		try {
-			final Promise<ByteBuffer> promise = prepFuture.get(timeout, timeunit);
-			
-			if (promise.getProposal() == null) {
-				final Future<Proposal<ByteBuffer>> future = cache.get(subject);
-				ensemble.propose(subject, promise.getN(), ByteBuffer.wrap(value.getBytes()));
-				
-				return future;
-			}
-			else {
-				return new FutureFinished<Proposal<ByteBuffer>>(promise.getProposal());
-			}
-		} catch (InterruptedException | ExecutionException | TimeoutException e) {
-			throw new RuntimeException(e);
-		}
+		return ensemble.decide(subject, ByteBuffer.wrap(value.getBytes()), timeout, timeunit);
 	}
 }
@@ -1,6 +1,7 @@
 package com.github.basking2.jaxos;
 
 import com.github.basking2.jaxos.paxos.Proposal;
+import com.github.basking2.jaxos.util.Compression;
 import org.apache.commons.io.IOUtils;
 import org.glassfish.grizzly.http.Method;
 import org.glassfish.grizzly.http.server.HttpHandler;
@@ -102,7 +103,7 @@ public class JaxosUiHttpHandler extends HttpHandler {
         try {
             final Proposal<ByteBuffer> proposal = future.get(timeout, timeunit);
             response.setContentType("text/plain");
-            ByteBuffer buffer = proposal.getValue();
+            ByteBuffer buffer = Compression.decompress(proposal);
             response.getNIOOutputStream().write(
                     buffer.array(),
                     buffer.arrayOffset(),
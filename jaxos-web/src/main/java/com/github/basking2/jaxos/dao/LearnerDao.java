@@ -10,6 +10,9 @@ import java.util.Map;
 
 /**
  * How the web interface will store learned facts.
+ *
+ * Values are stored as they were learned, which may be compressed.
+ * Use {@link com.github.basking2.jaxos.util.Compression#decompress(Proposal)} to read them.
  */
 public class LearnerDao {
     final Map<String, Proposal<ByteBuffer>> map;